@@ -0,0 +1,395 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Contraction Hierarchy over a frozen road graph. Vertices are contracted one at a time, least
+ * important first; whenever removing a vertex v would lengthen the shortest path between two
+ * of its remaining neighbours, a shortcut edge through v is added between them. A shortest
+ * path query then only has to search upwards, towards more important vertices, from both
+ * ends, which settles a few hundred vertices instead of the thousands A* needs.
+ *
+ * Since every road is stored in both directions, the hierarchy is undirected and one upward
+ * graph serves both the forward and the backward search. It is stored in compressed sparse
+ * row form: the upward edges of vertex v are upTarget[upBegin[v]] .. upTarget[upBegin[v + 1] - 1],
+ * and upMiddle is the vertex a shortcut skips over, or -1 for an original road segment.
+ *
+ * File layout, little-endian, every section starting on an 8 byte boundary:
+ * <pre>
+ *   int MAGIC, int VERSION, long source length, long source lastModified
+ *   int n, int m
+ *   int[n] rank, int[n + 1] upBegin, int[m] upTarget, double[m] upWeight, int[m] upMiddle
+ * </pre>
+ */
+final class ContractionHierarchy {
+    private static final int MAGIC = 0x43484d44; // "DMHC"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    /**
+     * Witness searches give up after settling this many vertices and assume no witness
+     * exists. That may add a superfluous shortcut, but never a wrong one.
+     */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    /** Contraction order: rank[v] < rank[w] iff v was contracted before w. */
+    final int[] rank;
+    final int[] upBegin;
+    final int[] upTarget;
+    final double[] upWeight;
+    final int[] upMiddle;
+
+    ContractionHierarchy(int[] rank, int[] upBegin, int[] upTarget, double[] upWeight,
+                         int[] upMiddle) {
+        this.rank = rank;
+        this.upBegin = upBegin;
+        this.upTarget = upTarget;
+        this.upWeight = upWeight;
+        this.upMiddle = upMiddle;
+    }
+
+    /** Number of vertices. */
+    int size() {
+        return rank.length;
+    }
+
+    /** Number of upward edges, shortcuts included. */
+    int edges() {
+        return upTarget.length;
+    }
+
+    /** The upward edge between a and b, which the lower ranked of the two stores, or -1. */
+    int edge(int a, int b) {
+        int lo = rank[a] < rank[b] ? a : b;
+        int hi = lo == a ? b : a;
+        for (int e = upBegin[lo], end = upBegin[lo + 1]; e < end; e++) {
+            if (upTarget[e] == hi) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /** Where the hierarchy of the given OSM file under the given metric lives. */
+    static File fileFor(String dbPath, Router.Metric metric) {
+        return new File(dbPath + (metric == Router.Metric.TIME ? ".time.ch" : ".ch"));
+    }
+
+    /**
+     * Contract the whole graph with edges weighed in the given metric. Takes a few seconds
+     * for a city-sized extract.
+     */
+    static ContractionHierarchy build(GraphStore g, Router.Metric metric) {
+        return new Builder(g, metric).run();
+    }
+
+    /** True if file exists, has this version, and was built from source as it is now. */
+    static boolean isFresh(File source, File file) {
+        if (!source.isFile() || !file.isFile() || file.length() < HEADER_BYTES) {
+            return false;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            in.getChannel().read(header, 0);
+            header.flip();
+            return header.getInt() == MAGIC && header.getInt() == VERSION
+                    && header.getLong() == source.length()
+                    && header.getLong() == source.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static ContractionHierarchy read(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileChannel ch = in.getChannel()) {
+            ByteBuffer header = GraphSnapshot.section(ch, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " hierarchy: " + file);
+            }
+            int n = header.getInt(24), m = header.getInt(28);
+            long at = HEADER_BYTES;
+            int[] rank = new int[n];
+            GraphSnapshot.section(ch, at, 4L * n).asIntBuffer().get(rank);
+            at = GraphSnapshot.padded(at + 4L * n);
+            int[] upBegin = new int[n + 1];
+            GraphSnapshot.section(ch, at, 4L * (n + 1)).asIntBuffer().get(upBegin);
+            at = GraphSnapshot.padded(at + 4L * (n + 1));
+            int[] upTarget = new int[m];
+            GraphSnapshot.section(ch, at, 4L * m).asIntBuffer().get(upTarget);
+            at = GraphSnapshot.padded(at + 4L * m);
+            double[] upWeight = new double[m];
+            GraphSnapshot.section(ch, at, 8L * m).asDoubleBuffer().get(upWeight);
+            at = GraphSnapshot.padded(at + 8L * m);
+            int[] upMiddle = new int[m];
+            GraphSnapshot.section(ch, at, 4L * m).asIntBuffer().get(upMiddle);
+            return new ContractionHierarchy(rank, upBegin, upTarget, upWeight, upMiddle);
+        }
+    }
+
+    /** Write the hierarchy built from source, moving it into place once complete. */
+    void write(File source, File file) throws IOException {
+        int n = size(), m = edges();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+             FileChannel ch = out.getChannel()) {
+            ch.truncate(0);
+            GraphSnapshot.Writer w = new GraphSnapshot.Writer(ch);
+            w.putInt(MAGIC);
+            w.putInt(VERSION);
+            w.putLong(source.length());
+            w.putLong(source.lastModified());
+            w.putInt(n);
+            w.putInt(m);
+            for (int r : rank) {
+                w.putInt(r);
+            }
+            w.pad(GraphSnapshot.padded(w.position()));
+            for (int b : upBegin) {
+                w.putInt(b);
+            }
+            w.pad(GraphSnapshot.padded(w.position()));
+            for (int t : upTarget) {
+                w.putInt(t);
+            }
+            w.pad(GraphSnapshot.padded(w.position()));
+            for (double d : upWeight) {
+                w.putDouble(d);
+            }
+            w.pad(GraphSnapshot.padded(w.position()));
+            for (int mid : upMiddle) {
+                w.putInt(mid);
+            }
+            w.flush();
+            ch.force(false);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Contracts vertices in order of twice the edge difference (shortcuts added minus edges
+     * removed) plus the number of already contracted neighbours plus the level in the
+     * hierarchy, the latter two spreading contraction evenly over the map. Priorities are
+     * recomputed when a vertex comes up and for the neighbours of every contracted vertex.
+     */
+    private static final class Builder {
+        private final int n;
+        /** Remaining graph: the uncontracted neighbours of each uncontracted vertex. */
+        private final int[][] nbr;
+        private final double[][] wt;
+        private final int[][] mid;
+        private final int[] deg;
+        private final boolean[] contracted;
+        private final int[] deletedNeighbours;
+        private final int[] version;
+        /** One more than the highest level of any contracted neighbour. */
+        private final int[] level;
+        private final SearchState witness;
+        /** target[x] == targetMark marks x as a neighbour the current witness search wants. */
+        private final int[] target;
+        private int targetMark;
+        /** Upward edges of each vertex, captured when it is contracted. */
+        private final int[][] upT;
+        private final double[][] upW;
+        private final int[][] upM;
+
+        Builder(GraphStore g, Router.Metric metric) {
+            n = g.size();
+            nbr = new int[n][];
+            wt = new double[n][];
+            mid = new int[n][];
+            deg = new int[n];
+            contracted = new boolean[n];
+            deletedNeighbours = new int[n];
+            version = new int[n];
+            level = new int[n];
+            witness = new SearchState(n);
+            target = new int[n];
+            upT = new int[n][];
+            upW = new double[n][];
+            upM = new int[n][];
+            for (int v = 0; v < n; v++) {
+                int d = g.end(v) - g.begin(v);
+                nbr[v] = new int[Math.max(d, 2)];
+                wt[v] = new double[Math.max(d, 2)];
+                mid[v] = new int[Math.max(d, 2)];
+            }
+            for (int v = 0; v < n; v++) {
+                for (int e = g.begin(v), end = g.end(v); e < end; e++) {
+                    int w = g.target(e);
+                    if (w != v) {
+                        link(v, w, metric.cost(g, e), -1);
+                    }
+                }
+            }
+        }
+
+        ContractionHierarchy run() {
+            PriorityQueue<long[]> queue = new PriorityQueue<>(Math.max(1, n),
+                    (a, b) -> Long.compare(a[0], b[0]));
+            for (int v = 0; v < n; v++) {
+                queue.add(new long[]{priority(v), v, version[v]});
+            }
+            int[] rank = new int[n];
+            int next = 0;
+            while (!queue.isEmpty()) {
+                long[] top = queue.poll();
+                int v = (int) top[1];
+                if (contracted[v] || top[2] != version[v]) {
+                    continue;
+                }
+                long p = priority(v);
+                if (!queue.isEmpty() && p > queue.peek()[0]) {
+                    queue.add(new long[]{p, v, ++version[v]});
+                    continue;
+                }
+                contract(v);
+                rank[v] = next++;
+                for (int i = 0; i < deg[v]; i++) {
+                    int u = nbr[v][i];
+                    deletedNeighbours[u]++;
+                    level[u] = Math.max(level[u], level[v] + 1);
+                    queue.add(new long[]{priority(u), u, ++version[u]});
+                }
+            }
+            int[] upBegin = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                upBegin[v + 1] = upBegin[v] + upT[v].length;
+            }
+            int m = upBegin[n];
+            int[] upTarget = new int[m];
+            double[] upWeight = new double[m];
+            int[] upMiddle = new int[m];
+            for (int v = 0; v < n; v++) {
+                System.arraycopy(upT[v], 0, upTarget, upBegin[v], upT[v].length);
+                System.arraycopy(upW[v], 0, upWeight, upBegin[v], upW[v].length);
+                System.arraycopy(upM[v], 0, upMiddle, upBegin[v], upM[v].length);
+            }
+            return new ContractionHierarchy(rank, upBegin, upTarget, upWeight, upMiddle);
+        }
+
+        private long priority(int v) {
+            long edgeDifference = (long) shortcuts(v, false) - deg[v];
+            return 2 * edgeDifference + deletedNeighbours[v] + level[v];
+        }
+
+        /** Remove v from the remaining graph, adding the shortcuts its removal requires. */
+        private void contract(int v) {
+            int d = deg[v];
+            upT[v] = Arrays.copyOf(nbr[v], d);
+            upW[v] = Arrays.copyOf(wt[v], d);
+            upM[v] = Arrays.copyOf(mid[v], d);
+            contracted[v] = true;
+            shortcuts(v, true);
+            for (int i = 0; i < d; i++) {
+                unlink(upT[v][i], v);
+            }
+        }
+
+        /**
+         * Count the shortcuts contracting v needs, adding them if add is set: for each pair of
+         * neighbours u, w, a shortcut u - w is needed unless a witness path avoiding v is no
+         * longer than u - v - w.
+         */
+        private int shortcuts(int v, boolean add) {
+            int d = deg[v];
+            int[] ns = Arrays.copyOf(nbr[v], d);
+            double[] ws = Arrays.copyOf(wt[v], d);
+            double maxW = 0;
+            for (int i = 0; i < d; i++) {
+                maxW = Math.max(maxW, ws[i]);
+            }
+            int count = 0;
+            for (int i = 0; i < d - 1; i++) {
+                targetMark++;
+                for (int j = i + 1; j < d; j++) {
+                    target[ns[j]] = targetMark;
+                }
+                witnessSearch(ns[i], v, ws[i] + maxW, d - 1 - i);
+                for (int j = i + 1; j < d; j++) {
+                    double via = ws[i] + ws[j];
+                    if (witness.distance(ns[j]) > via) {
+                        count++;
+                        if (add) {
+                            link(ns[i], ns[j], via, v);
+                            link(ns[j], ns[i], via, v);
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Dijkstra from u in the remaining graph without v, up to the given distance or until
+         * the given number of marked targets are settled.
+         */
+        private void witnessSearch(int u, int v, double limit, int targets) {
+            SearchState st = witness;
+            st.reset();
+            st.relax(u, 0, -1, 0);
+            int settled = 0;
+            while (!st.isEmpty() && st.peekKey() <= limit && settled < WITNESS_SETTLE_LIMIT) {
+                int x = st.pop();
+                settled++;
+                if (target[x] == targetMark && --targets == 0) {
+                    return;
+                }
+                double dx = st.dist[x];
+                for (int i = 0; i < deg[x]; i++) {
+                    int y = nbr[x][i];
+                    if (y == v) {
+                        continue;
+                    }
+                    double dy = dx + wt[x][i];
+                    if (!st.reached(y) || (dy < st.dist[y] && !st.settled(y))) {
+                        st.relax(y, dy, x, 0);
+                    }
+                }
+            }
+        }
+
+        /** Add or shorten the remaining-graph edge a - b, stored at a. */
+        private void link(int a, int b, double w, int m) {
+            for (int i = 0; i < deg[a]; i++) {
+                if (nbr[a][i] == b) {
+                    if (w < wt[a][i]) {
+                        wt[a][i] = w;
+                        mid[a][i] = m;
+                    }
+                    return;
+                }
+            }
+            if (deg[a] == nbr[a].length) {
+                int cap = 2 * deg[a];
+                nbr[a] = Arrays.copyOf(nbr[a], cap);
+                wt[a] = Arrays.copyOf(wt[a], cap);
+                mid[a] = Arrays.copyOf(mid[a], cap);
+            }
+            nbr[a][deg[a]] = b;
+            wt[a][deg[a]] = w;
+            mid[a][deg[a]] = m;
+            deg[a]++;
+        }
+
+        /** Remove the edge a - b stored at a. */
+        private void unlink(int a, int b) {
+            for (int i = 0; i < deg[a]; i++) {
+                if (nbr[a][i] == b) {
+                    int last = --deg[a];
+                    nbr[a][i] = nbr[a][last];
+                    wt[a][i] = wt[a][last];
+                    mid[a][i] = mid[a][last];
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Frozen, read-only form of the cleaned road graph in compressed sparse row layout, kept in
+ * heap arrays. The neighbours of vertex v are targets[offsets[v]] .. targets[offsets[v + 1] - 1],
+ * with the matching edge lengths in weights, travel times in times and way names in ways.
+ * Nothing here is boxed, and walking an adjacency range reads the same span of each flat
+ * array: targets plus whichever of weights, times and ways the search uses.
+ */
+final class CsrGraph implements GraphStore {
+    static final CsrGraph EMPTY = new CsrGraph(new long[0], new double[0], new double[0],
+            new int[1], new int[0], new float[0], new float[0], new int[0]);
+
+    private final long[] ids;
+    private final double[] lat;
+    private final double[] lon;
+    private final int[] offsets;
+    private final int[] targets;
+    private final float[] weights;
+    private final float[] times;
+    private final int[] ways;
+
+    CsrGraph(long[] ids, double[] lat, double[] lon, int[] offsets, int[] targets,
+             float[] weights, float[] times, int[] ways) {
+        this.ids = ids;
+        this.lat = lat;
+        this.lon = lon;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.times = times;
+        this.ways = ways;
+    }
+
+    /**
+     * Freeze the given nodes, whose index fields must already number them 0..n-1 in
+     * ascending id order, and whose adjacency lists only point at nodes in the map.
+     */
+    static CsrGraph of(Map<Long, GraphDB.Node> nodes) {
+        int n = nodes.size();
+        GraphDB.Node[] byIndex = new GraphDB.Node[n];
+        for (GraphDB.Node node : nodes.values()) {
+            byIndex[node.index] = node;
+        }
+        long[] ids = new long[n];
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        int[] offsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            GraphDB.Node node = byIndex[v];
+            ids[v] = node.id;
+            lat[v] = node.latitude;
+            lon[v] = node.longitude;
+            int degree = 0;
+            for (GraphDB.Node.Vertix e = node.head.next; e != null; e = e.next) {
+                degree++;
+            }
+            offsets[v + 1] = offsets[v] + degree;
+        }
+        int[] targets = new int[offsets[n]];
+        float[] weights = new float[offsets[n]];
+        float[] times = new float[offsets[n]];
+        int[] ways = new int[offsets[n]];
+        for (int v = 0; v < n; v++) {
+            int i = offsets[v];
+            for (GraphDB.Node.Vertix e = byIndex[v].head.next; e != null; e = e.next, i++) {
+                targets[i] = e.node.index;
+                weights[i] = (float) e.distance();
+                times[i] = e.time();
+                ways[i] = e.way();
+            }
+        }
+        return new CsrGraph(ids, lat, lon, offsets, targets, weights, times, ways);
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    @Override
+    public int edges() {
+        return targets.length;
+    }
+
+    @Override
+    public int index(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? -1 : i;
+    }
+
+    @Override
+    public long id(int v) {
+        return ids[v];
+    }
+
+    @Override
+    public double lat(int v) {
+        return lat[v];
+    }
+
+    @Override
+    public double lon(int v) {
+        return lon[v];
+    }
+
+    @Override
+    public int begin(int v) {
+        return offsets[v];
+    }
+
+    @Override
+    public int end(int v) {
+        return offsets[v + 1];
+    }
+
+    @Override
+    public int target(int e) {
+        return targets[e];
+    }
+
+    @Override
+    public float weight(int e) {
+        return weights[e];
+    }
+
+    @Override
+    public float time(int e) {
+        return times[e];
+    }
+
+    @Override
+    public int way(int e) {
+        return ways[e];
+    }
+
+    @Override
+    public double distance(int v, int w) {
+        double dlon = lon[v] - lon[w];
+        double dlat = lat[v] - lat[w];
+        return Math.sqrt(dlon * dlon + dlat * dlat);
+    }
+}
@@ -1,18 +1,29 @@
-import org.xml.sax.SAXException;
-
 import java.io.File;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.nio.ByteBuffer;
+import javax.xml.stream.XMLStreamException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
- * Uses your GraphBuildingHandler to convert the XML files into a graph. Your
+ * Uses OsmIngest to convert the XML files into a graph. Your
  * code must include the vertices, adjacent, distance, closest, lat, and lon
  * methods. You'll also need to include instance variables and methods for
  * modifying the graph (e.g. addNode and addEdge).
@@ -29,34 +40,171 @@ public class GraphDB {
      * @param dbPath Path to the XML file to be parsed.
      */
     private HashMap<Long, Node> nodes = new HashMap<>();
-    private HashMap<Long, Way> ways = new HashMap<>();
-    private HashMap<String, Node> name2node = new HashMap<>();
-    Trie trie = new Trie();
+    /** Index of every distinct way name seen while parsing, into wayNames; dropped by freeze(). */
+    private HashMap<String, Integer> wayIndex = new HashMap<>();
+    /** Names of the ways edges belong to, indexed by GraphStore.way. */
+    private String[] wayNames = new String[0];
+    /** Named nodes given to addname2node while parsing, in file order; dropped by freeze(). */
+    private ArrayList<Node> named = new ArrayList<>();
+    /** Every named location, by cleaned name; built by freeze() or loaded from a snapshot. */
+    private LocationIndex places = LocationIndex.EMPTY;
+    /** Results of findlocations for recently searched names. */
+    private final LruCache<String, List<Map<String, Object>>> locationResults =
+            new LruCache<>(LOCATION_CACHE_SIZE, r -> r.size() + 1);
+    /**
+     * Roads of the graph by way id, in file order, so a change can rebuild their edges. A
+     * graph loaded from a snapshot leaves them there until readRoads() is first called.
+     */
+    private LinkedHashMap<Long, Road> roads = new LinkedHashMap<>();
+    /** Where the nodes that are on paths but no road are, so a change can place them. */
+    private NodePositions offRoad = NodePositions.EMPTY;
+    /** Snapshot section roads and offRoad are still to be read from, or null once they are. */
+    private ByteBuffer unreadRoads;
+    /** Cleaned names given to addtn while parsing, indexed into trie by freeze(). */
+    private ArrayList<String> trieWords = new ArrayList<>();
+    RadixTrie trie = RadixTrie.EMPTY;
     int node_number = 0;
+    /** Read-optimized copy of the cleaned graph; built by freeze() or loaded from a snapshot. */
+    private GraphStore store = CsrGraph.EMPTY;
+    /** Nearest-vertex index over store, built alongside it. */
+    private KdTree spatial = new KdTree(CsrGraph.EMPTY);
+    /** The OSM file the graph was built from. */
+    private final File source;
+    /**
+     * Contraction Hierarchies over store, per metric, loaded or built on first use, or being
+     * built in the background for a version made by apply.
+     */
+    private final ConcurrentHashMap<Router.Metric, CompletableFuture<ContractionHierarchy>>
+            hierarchies = new ConcurrentHashMap<>();
+    /** ALT landmarks over store, per metric, computed on first use or in the background. */
+    private final ConcurrentHashMap<Router.Metric, CompletableFuture<Landmarks>> landmarks =
+            new ConcurrentHashMap<>();
+    /**
+     * Builds the hierarchies and landmarks of versions made by apply, one at a time so a
+     * burst of changes does not take every core from the searches.
+     */
+    private static final Executor REBUILDS = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "graph-rebuild");
+        t.setDaemon(true);
+        return t;
+    });
+    /** 0 for the graph of the OSM file, and one more for every change applied since. */
+    private final long version;
+    /** Fastest speed of any edge of store, in meters per second. */
+    private double fastest = 1;
+    /** How long parsing the OSM file took, or null if the graph came from a snapshot. */
+    private OsmIngest.Stats ingest;
+
+    /** Locations to keep cached results of findlocations for, summed over all results. */
+    private static final long LOCATION_CACHE_SIZE = 10_000;
+    /** System property with the number of threads that parse OSM files, all cores if unset. */
+    static final String INGEST_THREADS_PROPERTY = "bearmaps.ingest.threads";
 
     public GraphDB(String dbPath) {
+        this(dbPath, false);
+    }
+
+    /**
+     * @param dbPath Path to the XML file to be parsed.
+     * @param offHeap If true, serve the graph straight out of a memory-mapped snapshot of the
+     *                parsed file, so heap use no longer grows with the size of the extract.
+     */
+    public GraphDB(String dbPath, boolean offHeap) {
+        File inputFile = new File(dbPath);
+        source = inputFile;
+        version = 0;
+        File snapshot = GraphSnapshot.fileFor(dbPath);
+        if (GraphSnapshot.isFresh(inputFile, snapshot) && load(snapshot, offHeap)) {
+            return;
+        }
         try {
-            File inputFile = new File(dbPath);
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputFile, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            ingest = OsmIngest.read(inputFile, this, ingestThreads());
+        } catch (XMLStreamException | IOException e) {
             e.printStackTrace();
+            return;
         }
         clean();
+        freeze();
+        try {
+            GraphSnapshot.write(inputFile, snapshot, store, spatial, locations(), wayNames,
+                    offRoad, roads.values(), trie);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (offHeap) {
+            load(snapshot, true);
+        }
+    }
+
+    /** An empty next version of a graph, for apply to fill in. */
+    private GraphDB(File source, long version) {
+        this.source = source;
+        this.version = version;
+    }
+
+    /** Adopt the graph, names and trie of a snapshot; false if it could not be read. */
+    private boolean load(File snapshot, boolean offHeap) {
+        GraphSnapshot s;
+        try {
+            s = offHeap ? GraphSnapshot.map(snapshot) : GraphSnapshot.read(snapshot);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        store = s.store;
+        spatial = s.spatial;
+        fastest = fastestSpeed(store);
+        wayNames = s.wayNames;
+        trie = s.trie;
+        places = LocationIndex.of(s.locations);
+        roads = new LinkedHashMap<>();
+        unreadRoads = s.roads;
+        node_number = store.size();
+        return true;
     }
 
     public void addnode(Node n){
         this.nodes.put(n.id(), n);
     }
 
-    public void addtn(String word) { this.trie.insert(cleanString(word));}
+    public void addtn(String word) { this.trieWords.add(cleanString(word));}
+
+    /**
+     * Index of the given way name for GraphStore.way, adding it if it is new; -1 for ways
+     * without a name. Called once per way, so edges only carry an int.
+     */
+    public int addwayname(String name){
+        if (name == null || name.isEmpty()) {
+            return -1;
+        }
+        Integer i = wayIndex.get(name);
+        if (i == null) {
+            i = wayIndex.size();
+            wayIndex.put(name, i);
+        }
+        return i;
+    }
+
+    /**
+     * Add the way with the given id as a road: its consecutive nodes are connected at speed
+     * meters per second, and it is kept so that a later change can replace its edges.
+     */
+    void addroad(long id, long[] nodes, double speed, int way) {
+        roads.put(id, new Road(id, nodes, speed, way));
+        for (int i = 0; i + 1 < nodes.length; i++) {
+            adj(nodes[i], nodes[i + 1], speed, way);
+        }
+    }
 
-    public void addway(Way w){ this.ways.put(w.id, w); }
+    /** Name of the way with the given index from GraphStore.way, or null for -1. */
+    String wayName(int way) {
+        return way < 0 ? null : wayNames[way];
+    }
 
+    /** Record n, which carries the given name, as a location. */
     public void addname2node(String name, Node n){
-        this.name2node.put(cleanString(name), n);
+        this.named.add(n);
     }
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
@@ -74,48 +222,528 @@ public class GraphDB {
      */
     public ArrayList<String> findlocationbyprefix(String s){
         ArrayList<String> result = new ArrayList<>();
-        for (String i : this.trie.findbyprefix(cleanString(s))){
-            result.add(this.name2node.get(i).name);
+        for (String i : this.trie.withPrefix(cleanString(s))){
+            result.add(this.places.name(i));
         }
         return result;
     }
 
     /**
-     *  Remove nodes with no connections from the graph.
+     * The names of the best limit locations whose name has prefix s, best first: names
+     * carried by more locations, then shorter names, then alphabetical.
+     */
+    public ArrayList<String> findlocationbyprefix(String s, int limit){
+        ArrayList<String> result = new ArrayList<>();
+        for (String i : this.trie.withPrefix(cleanString(s), limit)){
+            result.add(this.places.name(i));
+        }
+        return result;
+    }
+
+    /**
+     * Every location whose cleaned name is the cleaned name given, in file order, each as
+     * "lat", "lon", "name" and "id". Results are cached, since the same few names are
+     * searched for over and over; they are shared and must not be modified.
+     */
+    List<Map<String, Object>> findlocations(String name) {
+        return locationResults.get(cleanString(name), key -> {
+            List<Map<String, Object>> result = new ArrayList<>();
+            for (int row : places.rows(key)) {
+                Map<String, Object> location = new HashMap<>();
+                location.put("lat", places.lat(row));
+                location.put("lon", places.lon(row));
+                location.put("name", places.name(row));
+                location.put("id", places.id(row));
+                result.add(Collections.unmodifiableMap(location));
+            }
+            return Collections.unmodifiableList(result);
+        });
+    }
+
+    /** Every named location as a node, in file order. */
+    private List<Node> locations() {
+        List<Node> result = new ArrayList<>(places.size());
+        for (int row = 0; row < places.size(); row++) {
+            result.add(places.node(row));
+        }
+        return result;
+    }
+
+    /**
+     *  Remove nodes with no connections from the graph, keeping where they are in offRoad.
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
      */
     private void clean() {
         // TODO: Your code here.
+        List<Node> removed = new ArrayList<>();
         Iterator iter = nodes.entrySet().iterator();
         while (iter.hasNext()){
             Map.Entry<Long, Node> entry = (Map.Entry) iter.next();
             if (entry.getValue().head == entry.getValue().tail){
+                removed.add(entry.getValue());
                 iter.remove();
                 this.node_number--;
             }
         }
+        offRoad = NodePositions.of(removed);
+        index();
+    }
+
+    /**
+     * Number the remaining nodes 0..size()-1 in ascending id order so that searches can keep
+     * their per-vertex state in plain arrays instead of maps keyed by boxed ids.
+     */
+    private void index() {
+        long[] ids = new long[nodes.size()];
+        int i = 0;
+        for (long id : nodes.keySet()) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        for (i = 0; i < ids.length; i++) {
+            nodes.get(ids[i]).index = i;
+        }
+    }
+
+    /**
+     * Copy the cleaned graph into flat CSR arrays and drop the per-node objects and their
+     * adjacency cells. From here on every graph query reads the arrays, and named locations
+     * are found through their own index.
+     */
+    private void freeze() {
+        store = CsrGraph.of(nodes);
+        spatial = new KdTree(store);
+        fastest = fastestSpeed(store);
+        nodes = new HashMap<>();
+        wayNames = new String[wayIndex.size()];
+        for (Map.Entry<String, Integer> e : wayIndex.entrySet()) {
+            wayNames[e.getValue()] = e.getKey();
+        }
+        wayIndex = new HashMap<>();
+        trie = RadixTrie.of(trieWords);
+        trieWords = new ArrayList<>();
+        places = LocationIndex.of(named);
+        named = new ArrayList<>();
+    }
+
+    /**
+     * Contraction Hierarchy of the graph under the given metric, for fast point-to-point
+     * queries. It is read from next to the OSM file if one was built from the file as it is
+     * now, and otherwise contracted here and saved there for the next start. If it is being
+     * built in the background, this waits for it.
+     */
+    ContractionHierarchy hierarchy(Router.Metric metric) {
+        return built(hierarchies, metric, this::loadHierarchy);
+    }
+
+    /**
+     * The Contraction Hierarchy of the graph under the given metric, or null while it is
+     * still being built in the background after a change.
+     */
+    ContractionHierarchy readyHierarchy(Router.Metric metric) {
+        return hierarchies.containsKey(metric) ? ready(hierarchies.get(metric))
+                : hierarchy(metric);
+    }
+
+    private ContractionHierarchy loadHierarchy(Router.Metric metric) {
+        if (version > 0) {
+            /* The files next to the source describe the graph before any change. */
+            return ContractionHierarchy.build(store, metric);
+        }
+        File file = ContractionHierarchy.fileFor(source.getPath(), metric);
+        ContractionHierarchy ch = null;
+        if (ContractionHierarchy.isFresh(source, file)) {
+            try {
+                ch = ContractionHierarchy.read(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (ch == null || ch.size() != store.size()) {
+            ch = ContractionHierarchy.build(store, metric);
+            if (source.isFile()) {
+                try {
+                    ch.write(source, file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * ALT landmarks of the graph under the given metric, computed on first use. If they are
+     * being computed in the background, this waits for them.
+     */
+    Landmarks landmarks(Router.Metric metric) {
+        return built(landmarks, metric, this::buildLandmarks);
+    }
+
+    /** ALT landmarks of the graph, or null while they are still being computed after a change. */
+    Landmarks readyLandmarks(Router.Metric metric) {
+        return landmarks.containsKey(metric) ? ready(landmarks.get(metric)) : landmarks(metric);
+    }
+
+    private Landmarks buildLandmarks(Router.Metric metric) {
+        return Landmarks.build(store, Landmarks.DEFAULT_COUNT, metric, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * The value of metric in builds, waiting for it if it is being built, and building it
+     * here if it is not there yet or its background build was cancelled or failed.
+     */
+    private static <T> T built(ConcurrentHashMap<Router.Metric, CompletableFuture<T>> builds,
+                               Router.Metric metric, Function<Router.Metric, T> build) {
+        try {
+            return builds.computeIfAbsent(metric,
+                    m -> CompletableFuture.completedFuture(build.apply(m))).join();
+        } catch (CancellationException | CompletionException e) {
+            return builds.compute(metric, (m, old) -> old.isCompletedExceptionally()
+                    ? CompletableFuture.completedFuture(build.apply(m)) : old).join();
+        }
+    }
+
+    /** The value of f, or null if it is still being built or its build did not finish. */
+    private static <T> T ready(CompletableFuture<T> f) {
+        return f.isDone() && !f.isCompletedExceptionally() ? f.join() : null;
+    }
+
+    /** Worker threads for parsing OSM files, from INGEST_THREADS_PROPERTY. */
+    private static int ingestThreads() {
+        return Integer.getInteger(INGEST_THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The graph with an osmChange file applied, as a new version next to this one. Only the
+     * vertices whose edges the change touches are rebuilt: every other adjacency range is
+     * copied across as it is, the k-d tree is shared unless vertices come, go or move and is
+     * patched around them if they do, and the names and trie are only redone if a named node
+     * changed. This graph is left exactly as it was, so searches still running on it finish
+     * on a consistent graph, and callers publish the new version by swapping a single
+     * reference. Whatever hierarchies and landmarks this graph has are rebuilt for the new
+     * version in the background rather than before it is returned: until they are ready,
+     * readyHierarchy and readyLandmarks return null and searches fall back to plain A*.
+     *
+     * A change lists just the nodes it changes itself, so a way that becomes a road, say a
+     * footway, runs over nodes the change does not place. The positions of the nodes of
+     * every path of the file are kept for that, as are those of nodes a change moves off the
+     * roads. A road over a node that is on no path either, nor in the change, cannot be
+     * placed, and the change is refused with an IOException.
+     *
+     * The result is not saved: the snapshot and hierarchy files next to the OSM file still
+     * describe the file itself.
+     */
+    GraphDB apply(File osmChange) throws IOException, XMLStreamException {
+        return apply(OsmChange.read(osmChange));
+    }
+
+    GraphDB apply(OsmChange change) throws IOException, XMLStreamException {
+        readRoads();
+        GraphDB next = new GraphDB(source, version + 1);
+        for (int i = 0; i < wayNames.length; i++) {
+            next.wayIndex.put(wayNames[i], i);
+        }
+        next.roads = new LinkedHashMap<>(roads);
+        /* The vertices to rebuild: every node of a changed road, before and after the change,
+         * and every vertex that moves or goes away, with its neighbours. */
+        HashSet<Long> touched = new HashSet<>();
+        for (Map.Entry<Long, OsmIngest.Road> e : change.ways.entrySet()) {
+            Road before = next.roads.remove(e.getKey());
+            if (before != null) {
+                touch(touched, before.nodes);
+            }
+            OsmIngest.Road after = e.getValue();
+            if (after != null) {
+                next.roads.put(after.id, new Road(after.id, after.nodes, after.speed,
+                        next.addwayname(after.name)));
+                touch(touched, after.nodes);
+            }
+        }
+        boolean moved = false;
+        for (Map.Entry<Long, Node> e : change.nodes.entrySet()) {
+            int v = store.index(e.getKey());
+            Node n = e.getValue();
+            if (v >= 0 && (n == null || n.latitude != store.lat(v)
+                    || n.longitude != store.lon(v))) {
+                moved = true;
+                touched.add(store.id(v));
+                for (int s = store.begin(v), end = store.end(v); s < end; s++) {
+                    touched.add(store.id(store.target(s)));
+                }
+            }
+        }
+        /* New adjacency of the touched vertices, from every road through them. Segments
+         * with an end that was deleted are left out. */
+        HashMap<Long, List<Link>> links = new HashMap<>();
+        HashMap<Long, Node> at = new HashMap<>();
+        for (Road r : next.roads.values()) {
+            for (int i = 0; i + 1 < r.nodes.length; i++) {
+                long a = r.nodes[i], b = r.nodes[i + 1];
+                boolean ta = touched.contains(a), tb = touched.contains(b);
+                if (!ta && !tb) {
+                    continue;
+                }
+                Node na = position(a, change), nb = position(b, change);
+                if (na == null || nb == null) {
+                    long missing = na == null ? a : b;
+                    if (!change.nodes.containsKey(missing)) {
+                        throw new IOException("Node " + missing + " of way " + r.id
+                                + " is on no road or path of " + source
+                                + " and not in the change");
+                    }
+                    continue;
+                }
+                if (ta) {
+                    at.put(a, na);
+                    links.computeIfAbsent(a, k -> new ArrayList<>()).add(new Link(na, nb, r));
+                }
+                if (tb) {
+                    at.put(b, nb);
+                    links.computeIfAbsent(b, k -> new ArrayList<>()).add(new Link(nb, na, r));
+                }
+            }
+        }
+        /* Untouched vertices stay, touched ones stay or come in if they still have edges. */
+        long[] ids = new long[store.size() + links.size()];
+        int n = 0;
+        for (int v = 0; v < store.size(); v++) {
+            long id = store.id(v);
+            if (!touched.contains(id) || links.containsKey(id)) {
+                ids[n++] = id;
+            }
+        }
+        for (long id : links.keySet()) {
+            if (store.index(id) < 0) {
+                ids[n++] = id;
+            }
+        }
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        int[] from = new int[n];
+        int[] remap = new int[store.size()];
+        /* Where the k-d tree finds each old vertex now, -1 if it is gone or moved, and the
+         * vertices it has to add. */
+        int[] kept = new int[store.size()];
+        Arrays.fill(kept, -1);
+        int[] added = new int[n];
+        int addedCount = 0;
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        int[] offsets = new int[n + 1];
+        boolean sameVertices = !moved && n == store.size();
+        for (int v = 0; v < n; v++) {
+            from[v] = store.index(ids[v]);
+            sameVertices &= from[v] == v;
+            List<Link> l = links.get(ids[v]);
+            if (l != null) {
+                lat[v] = at.get(ids[v]).latitude;
+                lon[v] = at.get(ids[v]).longitude;
+                offsets[v + 1] = offsets[v] + l.size();
+            } else {
+                lat[v] = store.lat(from[v]);
+                lon[v] = store.lon(from[v]);
+                offsets[v + 1] = offsets[v] + store.end(from[v]) - store.begin(from[v]);
+            }
+            if (from[v] >= 0) {
+                remap[from[v]] = v;
+            }
+            if (from[v] >= 0 && lat[v] == store.lat(from[v]) && lon[v] == store.lon(from[v])) {
+                kept[from[v]] = v;
+            } else {
+                added[addedCount++] = v;
+            }
+        }
+        int m = offsets[n];
+        int[] targets = new int[m];
+        float[] weights = new float[m];
+        float[] times = new float[m];
+        int[] ways = new int[m];
+        for (int v = 0; v < n; v++) {
+            int i = offsets[v];
+            List<Link> l = links.get(ids[v]);
+            if (l != null) {
+                for (Link link : l) {
+                    targets[i] = Arrays.binarySearch(ids, link.to);
+                    weights[i] = link.weight;
+                    times[i] = link.time;
+                    ways[i++] = link.way;
+                }
+            } else {
+                for (int s = store.begin(from[v]), end = store.end(from[v]); s < end; s++) {
+                    targets[i] = remap[store.target(s)];
+                    weights[i] = store.weight(s);
+                    times[i] = store.time(s);
+                    ways[i++] = store.way(s);
+                }
+            }
+        }
+        next.store = new CsrGraph(ids, lat, lon, offsets, targets, weights, times, ways);
+        next.spatial = sameVertices ? spatial
+                : spatial.patched(next.store, kept, Arrays.copyOf(added, addedCount));
+        next.fastest = fastestSpeed(next.store);
+        next.node_number = n;
+        next.wayNames = new String[next.wayIndex.size()];
+        for (Map.Entry<String, Integer> e : next.wayIndex.entrySet()) {
+            next.wayNames[e.getValue()] = e.getKey();
+        }
+        next.wayIndex = new HashMap<>();
+        /* Nodes leaving the roads keep their position, changed ones take the new one. */
+        HashMap<Long, Node> off = new HashMap<>(change.nodes);
+        for (long id : touched) {
+            int v = store.index(id);
+            if (v >= 0 && !links.containsKey(id) && !off.containsKey(id)) {
+                off.put(id, new Node(id, store.lat(v), store.lon(v)));
+            }
+        }
+        next.offRoad = offRoad.with(off);
+
+        /* Changed locations keep their place in file order, new ones go at the end. */
+        List<Node> located = new ArrayList<>(places.size() + change.nodes.size());
+        boolean renamed = false;
+        for (int row = 0; row < places.size(); row++) {
+            long id = places.id(row);
+            if (!change.nodes.containsKey(id)) {
+                located.add(places.node(row));
+                continue;
+            }
+            renamed = true;
+            Node after = change.nodes.get(id);
+            if (after != null && after.name != null) {
+                located.add(after);
+            }
+        }
+        for (Node after : change.nodes.values()) {
+            if (after != null && after.name != null && places.row(after.id) < 0) {
+                located.add(after);
+                renamed = true;
+            }
+        }
+        next.places = renamed ? LocationIndex.of(located) : places;
+        next.trie = renamed ? RadixTrie.of(next.places.weights()) : trie;
+        return prepared(next);
+    }
+
+    /**
+     * next, with every hierarchy and landmark set this graph has queued for building in the
+     * background. next supersedes this graph, so builds of this graph still pending are
+     * cancelled; readyHierarchy and readyLandmarks return null for those from then on.
+     */
+    private GraphDB prepared(GraphDB next) {
+        for (Router.Metric metric : hierarchies.keySet()) {
+            hierarchies.get(metric).cancel(false);
+            next.hierarchies.put(metric, rebuild(() -> next.loadHierarchy(metric)));
+        }
+        for (Router.Metric metric : landmarks.keySet()) {
+            landmarks.get(metric).cancel(false);
+            next.landmarks.put(metric, rebuild(() -> next.buildLandmarks(metric)));
+        }
+        return next;
+    }
+
+    private static <T> CompletableFuture<T> rebuild(Supplier<T> build) {
+        CompletableFuture<T> f = CompletableFuture.supplyAsync(build, REBUILDS);
+        f.whenComplete((value, e) -> {
+            if (e != null && !(e instanceof CancellationException)) {
+                e.printStackTrace();
+            }
+        });
+        return f;
+    }
+
+    /** Read roads and offRoad from the snapshot, the first time a change needs them. */
+    private synchronized void readRoads() {
+        if (unreadRoads != null) {
+            roads = GraphSnapshot.roads(unreadRoads);
+            offRoad = GraphSnapshot.offRoad(unreadRoads);
+            unreadRoads = null;
+        }
+    }
+
+    private static void touch(HashSet<Long> touched, long[] nodes) {
+        for (long id : nodes) {
+            touched.add(id);
+        }
     }
 
+    /**
+     * Where node id is once change is made: as the change puts it, else where it is in this
+     * graph or off its roads; null if it was deleted or is not known.
+     */
+    private Node position(long id, OsmChange change) {
+        if (change.nodes.containsKey(id)) {
+            return change.nodes.get(id);
+        }
+        int v = store.index(id);
+        if (v >= 0) {
+            return new Node(id, store.lat(v), store.lon(v));
+        }
+        int i = offRoad.index(id);
+        return i >= 0 ? new Node(id, offRoad.lat(i), offRoad.lon(i)) : null;
+    }
+
+    /** Which version of the graph this is; see apply. */
+    long version() { return version; }
+
+    /** Rows read and time taken parsing the OSM file, or null if it was not parsed. */
+    OsmIngest.Stats ingestStats() { return ingest; }
+
+    /** Fastest speed of any road in the graph, in meters per second. */
+    double fastest() { return fastest; }
+
+    /**
+     * Fastest speed over the edges of g, taken from the stored times themselves so that the
+     * straight-line time bound can never exceed a stored edge time.
+     */
+    private static double fastestSpeed(GraphStore g) {
+        double max = 0;
+        for (int v = 0; v < g.size(); v++) {
+            for (int e = g.begin(v), end = g.end(v); e < end; e++) {
+                int w = g.target(e);
+                double meters = SpeedLimits.meters(g.lon(v), g.lat(v), g.lon(w), g.lat(w));
+                if (g.time(e) > 0) {
+                    max = Math.max(max, meters / g.time(e));
+                }
+            }
+        }
+        return max > 0 ? max : 1;
+    }
+
+    /** The frozen graph, for callers that want to walk adjacency ranges directly. */
+    GraphStore store() { return store; }
+
+    /** Number of vertices in the cleaned graph. */
+    int size() { return store.size(); }
+
+    /** Dense index of vertex id, or -1 if it is not in the cleaned graph. */
+    int indexOf(long id) { return store.index(id); }
+
+    /** Vertex id at dense index i. */
+    long idAt(int i) { return store.id(i); }
+
+    /** Longitude of the vertex at dense index i. */
+    double lonAt(int i) { return store.lon(i); }
+
+    /** Latitude of the vertex at dense index i. */
+    double latAt(int i) { return store.lat(i); }
+
     /** Returns an iterable of all vertex IDs in the graph. */
     Iterable<Long> vertices() {
-        //YOUR CODE HERE, this currently returns only an empty list.
-        ArrayList<Long> result = new ArrayList<>();
-        Iterator iter = nodes.entrySet().iterator();
-        while (iter.hasNext()){
-            Map.Entry entry = (Map.Entry) iter.next();
-            result.add((Long) entry.getKey());
+        ArrayList<Long> result = new ArrayList<>(store.size());
+        for (int i = 0; i < store.size(); i++) {
+            result.add(store.id(i));
         }
         return result;
     }
 
     /** Returns ids of all vertices adjacent to v. */
     Iterable<Long> adjacent(long v) {
-        ArrayList<Long> result = new ArrayList<>();
-        Node.Vertix point = this.nodes.get(v).head;
-        while (point.next != null){
-            point = point.next;
-            result.add(point.id);
+        int i = store.index(v);
+        ArrayList<Long> result = new ArrayList<>(store.end(i) - store.begin(i));
+        for (int e = store.begin(i); e < store.end(i); e++) {
+            result.add(store.id(store.target(e)));
         }
         return result;
     }
@@ -123,42 +751,102 @@ public class GraphDB {
     /** Returns the Euclidean distance between vertices v and w, where Euclidean distance
      *  is defined as sqrt( (lonV - lonV)^2 + (latV - latV)^2 ). */
     double distance(long v, long w) {
-        double result;
-        result = Math.sqrt((nodes.get(v).latitude - nodes.get(w).latitude) * (nodes.get(v).latitude - nodes.get(w).latitude) +
-                (nodes.get(v).longitude - nodes.get(w).longitude) * (nodes.get(v).longitude - nodes.get(w).longitude));
-        return result;
+        return store.distance(store.index(v), store.index(w));
+    }
+
+    /** Euclidean distance between two nodes that are still being parsed. */
+    private static double distance(Node v, Node w) {
+        double dlat = v.latitude - w.latitude;
+        double dlon = v.longitude - w.longitude;
+        return Math.sqrt(dlat * dlat + dlon * dlon);
     }
 
     /** set adjacent nodes **/
     public void adj(long v, long w){
-        this.nodes.get(v).insert_adj(w, distance(v, w));
-        this.nodes.get(w).insert_adj(v, distance(v, w));
+        adj(v, w, SpeedLimits.metersPerSecond(null, null), -1);
+    }
+
+    /**
+     * Connect v and w by a road driven at speed meters per second, part of the way whose
+     * name has the given index from addwayname.
+     */
+    public void adj(long v, long w, double speed, int way){
+        Node nv = this.nodes.get(v), nw = this.nodes.get(w);
+        double d = distance(nv, nw);
+        float time = (float) (SpeedLimits.meters(nv.longitude, nv.latitude, nw.longitude,
+                nw.latitude) / speed);
+        nv.insert_adj(nw, d, time, way);
+        nw.insert_adj(nv, d, time, way);
     }
 
     /** Returns the vertex id closest to the given longitude and latitude. */
     long closest(double lon, double lat) {
-        long result=0;
-        double s = 10000, lon2, lat2;
-        Iterator iter = nodes.entrySet().iterator();
-        while (iter.hasNext()){
-            Map.Entry entry = (Map.Entry) iter.next();
-            lon2 = ((Node) entry.getValue()).longitude;
-            lat2 = ((Node) entry.getValue()).latitude;
-            if (s > Math.sqrt(Math.pow(lon2-lon, 2) + Math.pow(lat2-lat, 2))){
-                s = (Math.pow(lon2-lon, 2) + Math.pow(lat2-lat, 2));
-                result = (long) entry.getKey();
-            }
+        int i = spatial.nearest(lon, lat);
+        return i < 0 ? 0 : store.id(i);
+    }
+
+    /**
+     * Snap a batch of points at once.
+     * @return the closest vertex id for every (lons[i], lats[i]).
+     */
+    long[] closest(double[] lons, double[] lats) {
+        long[] result = new long[lons.length];
+        for (int i = 0; i < lons.length; i++) {
+            result[i] = closest(lons[i], lats[i]);
+        }
+        return result;
+    }
+
+    /** Dense index of the vertex closest to the given point, or -1 for an empty graph. */
+    int closestIndex(double lon, double lat) { return spatial.nearest(lon, lat); }
+
+    /** Dense indices of the vertices closest to every (lons[i], lats[i]), -1 if none. */
+    int[] closestIndex(double[] lons, double[] lats) {
+        int[] result = new int[lons.length];
+        for (int i = 0; i < lons.length; i++) {
+            result[i] = spatial.nearest(lons[i], lats[i]);
         }
         return result;
     }
 
     /** Longitude of vertex v. */
     double lon(long v) {
-        return this.nodes.get(v).longitude;
+        return store.lon(store.index(v));
     }
 
     /** Latitude of vertex v. */
-    double lat(long v) { return this.nodes.get(v).latitude; }
+    double lat(long v) { return store.lat(store.index(v)); }
+
+    /** A way that is a road: its nodes in order, speed in meters per second and name. */
+    static final class Road {
+        final long id;
+        final long[] nodes;
+        final double speed;
+        /** Index of the name of the way, as from addwayname. */
+        final int name;
+
+        Road(long id, long[] nodes, double speed, int name) {
+            this.id = id;
+            this.nodes = nodes;
+            this.speed = speed;
+            this.name = name;
+        }
+    }
+
+    /** One edge out of a vertex that apply rebuilds. */
+    private static final class Link {
+        final long to;
+        final float weight, time;
+        final int way;
+
+        Link(Node from, Node to, Road road) {
+            this.to = to.id;
+            this.weight = (float) distance(from, to);
+            this.time = (float) (SpeedLimits.meters(from.longitude, from.latitude, to.longitude,
+                    to.latitude) / road.speed);
+            this.way = road.name;
+        }
+    }
 
     /**
      * Node which comprises the backbone of the map
@@ -168,6 +856,8 @@ public class GraphDB {
         double latitude, longitude;
         String name;
         long id;
+        /** Dense index assigned by GraphDB.clean(), -1 until then. */
+        int index = -1;
 
         public Node(String i, String lat, String lon){
             this.head = new Vertix(Long.parseLong(i));
@@ -177,10 +867,17 @@ public class GraphDB {
             id = Long.parseLong(i);
         }
 
-        public void insert_adj(long n, double dist){
-            this.tail.next = new Vertix(n, dist);
+        public Node(long i, double lat, double lon){
+            this.head = new Vertix(i);
+            this.tail = this.head;
+            this.latitude = lat;
+            this.longitude = lon;
+            id = i;
+        }
+
+        public void insert_adj(Node n, double dist, float time, int way){
+            this.tail.next = new Vertix(n, dist, time, way);
             this.tail = this.tail.next;
-            this.tail.distance = dist;
         }
 
         /** return name of this node **/
@@ -189,6 +886,12 @@ public class GraphDB {
         public class Vertix{
             private long id;
             private double distance;
+            /** Travel time to the neighbour in seconds. */
+            private float time;
+            /** Index of the name of the way this edge is part of, or -1. */
+            private int way;
+            /** The neighbouring node itself, so searches can reach its index without a lookup. */
+            Node node;
             Vertix next;
 
             public Vertix(long n){
@@ -196,9 +899,12 @@ public class GraphDB {
                 this.distance = 0;
             }
 
-            public Vertix(long n, double dist){
-                this.id = n;
+            public Vertix(Node n, double dist, float time, int way){
+                this.id = n.id;
+                this.node = n;
                 this.distance = dist;
+                this.time = time;
+                this.way = way;
             }
 
             public long name(){
@@ -208,108 +914,16 @@ public class GraphDB {
             public double distance(){
                 return this.distance;
             }
-        }
-    }
-
-    /** Way which is comprised by Nodes **/
-    public static class Way{
-        boolean valid;
-        String maxspeed;
-        String name;
-        String lastnode;
-        ArrayList<Long> nodes = new ArrayList<>();
-        long id;
-
-        public Way(String i){
-            this.valid = false;
-            this.maxspeed = "";
-            this.name = "";
-            this.id = Long.parseLong(i);
-        }
-
-        public void addnode(String i) { nodes.add(Long.parseLong(i)); }
-    }
-
-    public static class Trienode{
-        char content;
-        boolean isEnd;
-        ArrayList<Trienode> childlist;
-
-        public Trienode(char c){
-            childlist = new ArrayList<>();
-            isEnd = false;
-            content = c;
-        }
 
-        public Trienode subNode(char c){
-                if (childlist != null){
-                    for (Trienode child : childlist){
-                        if (child.content == c)
-                            return child;
-                    }
-                }
-                return null;
-        }
-
-        public ArrayList<String> findbyprefix(String prefix){
-            ArrayList<String> result = new ArrayList<>();
-            for (Trienode tn : this.childlist){
-                if (tn.isEnd == true)
-                    result.add(prefix + tn.content);
-                if (tn.childlist.size() != 0)
-                    result.addAll(tn.findbyprefix(prefix + tn.content));
+            /** travel time of this vertix from main vertix, in seconds **/
+            public float time(){
+                return this.time;
             }
-            return result;
-        }
-    }
-
-    public static class Trie{
-        private Trienode root;
 
-        public Trie(){
-            root = new Trienode(' ');
-        }
-
-        public boolean search(String word){
-            Trienode current = root;
-            for (int i = 0; i < word.length(); i++){
-                if (current.subNode(word.charAt(i)) == null)
-                    return false;
-                else
-                    current = current.subNode(word.charAt(i));
+            /** name index of the way from main vertix to this vertix **/
+            public int way(){
+                return this.way;
             }
-            if (current.isEnd == true)
-                return true;
-            else
-                return false;
-        }
-
-        public ArrayList<String> findbyprefix(String prefix){
-            Trienode current = root;
-            for (int i = 0; i < prefix.length(); i++){
-                if (current.subNode(prefix.charAt(i)) == null)
-                    return new ArrayList<>();
-                else
-                    current = current.subNode(prefix.charAt(i));
-            }
-            return current.findbyprefix(prefix);
-        }
-
-        public void insert(String word){
-            Trienode current = this.root;
-            if (this.search(word)) return;
-            for (int i = 0; i < word.length(); i++){
-                Trienode temp = current.subNode(word.charAt(i));
-                if (temp == null){
-                    current.childlist.add(new Trienode(word.charAt(i)));
-                    current = current.subNode(word.charAt(i));
-                }else{
-                    current = temp;
-                }
-            }
-            current.isEnd = true;
         }
-
     }
-
 }
@@ -33,6 +33,8 @@ public class GraphDBLauncher {
         System.out.print("The vertex number closest to -122.258207, 37.875352 is " + v + ", which");
         System.out.println(" has longitude, latitude of: " + g.lon(v) + ", " + g.lat(v));
 
-        System.out.println("To get started, uncomment print statements in GraphBuildingHandler.");
+        if (g.ingestStats() != null) {
+            System.out.println("Parsed the OSM file: " + g.ingestStats() + ".");
+        }
     }
 }
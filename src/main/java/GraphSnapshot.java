@@ -0,0 +1,426 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Binary snapshot of a cleaned GraphDB, so a server start maps one file instead of
+ * SAX-parsing the whole OSM extract again. A snapshot can either be copied into heap arrays
+ * (read) or used in place as off-heap storage (map).
+ *
+ * Layout, little-endian, every section starting on an 8 byte boundary:
+ * <pre>
+ *   int MAGIC, int VERSION, long source length, long source lastModified
+ *   int n, int m
+ *   long[n] ids, double[n] lat, double[n] lon
+ *   int[n + 1] offsets, int[m] targets, float[m] weights, float[m] times, int[m] ways
+ *   int[n] k-d tree vertex order
+ *   int count, then per named node in file order: long id, double lat, double lon,
+ *       int length, UTF-8 name
+ *   int count, then per way name: int length, UTF-8 name
+ *   long bytes, then in that many bytes:
+ *       int count, long[count] ids, double[count] lat, double[count] lon of nodes off roads
+ *       int count, then per road: long id, double speed, int name, int length,
+ *           long[length] nodes
+ *   location name index, as written by RadixTrie.write
+ * </pre>
+ * The source length and timestamp are checked on load so an edited extract is re-parsed.
+ * Only apply needs the roads and the nodes off them, so loading skips over them and keeps
+ * their section mapped until the first change.
+ */
+final class GraphSnapshot {
+    private static final int MAGIC = 0x444d4150; // "DMAP"
+    static final int VERSION = 9;
+    private static final int HEADER_BYTES = 32;
+    /** Size of the staging buffer used while writing. */
+    private static final int WRITE_CHUNK = 1 << 20;
+
+    final GraphStore store;
+    final KdTree spatial;
+    final List<GraphDB.Node> locations;
+    final String[] wayNames;
+    /** The section of roads and nodes off them, still unparsed; see roads and offRoad. */
+    final ByteBuffer roads;
+    final RadixTrie trie;
+
+    private GraphSnapshot(GraphStore store, KdTree spatial, List<GraphDB.Node> locations,
+                          String[] wayNames, ByteBuffer roads, RadixTrie trie) {
+        this.store = store;
+        this.spatial = spatial;
+        this.locations = locations;
+        this.wayNames = wayNames;
+        this.roads = roads;
+        this.trie = trie;
+    }
+
+    /** Byte offsets of every section for a graph with n vertices and m edge slots. */
+    private static final class Layout {
+        final int n, m;
+        final long ids, lat, lon, offsets, targets, weights, times, ways, order, names;
+
+        Layout(int n, int m) {
+            this.n = n;
+            this.m = m;
+            ids = HEADER_BYTES;
+            lat = ids + 8L * n;
+            lon = lat + 8L * n;
+            offsets = lon + 8L * n;
+            targets = padded(offsets + 4L * (n + 1));
+            weights = padded(targets + 4L * m);
+            times = padded(weights + 4L * m);
+            ways = padded(times + 4L * m);
+            order = padded(ways + 4L * m);
+            names = padded(order + 4L * n);
+        }
+    }
+
+    /** Where the snapshot of the given OSM file lives. */
+    static File fileFor(String dbPath) {
+        return new File(dbPath + ".snapshot");
+    }
+
+    /** True if snapshot exists, has this version, and was taken from source as it is now. */
+    static boolean isFresh(File source, File snapshot) {
+        if (!source.isFile() || !snapshot.isFile() || snapshot.length() < HEADER_BYTES) {
+            return false;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(snapshot, "r")) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            in.getChannel().read(header, 0);
+            header.flip();
+            return header.getInt() == MAGIC && header.getInt() == VERSION
+                    && header.getLong() == source.length()
+                    && header.getLong() == source.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Map snapshot and copy its sections into heap arrays. */
+    static GraphSnapshot read(File snapshot) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(snapshot, "r");
+             FileChannel ch = in.getChannel()) {
+            Layout at = layout(ch, snapshot);
+            int n = at.n, m = at.m;
+            long[] ids = new long[n];
+            section(ch, at.ids, 8L * n).asLongBuffer().get(ids);
+            double[] lat = new double[n];
+            section(ch, at.lat, 8L * n).asDoubleBuffer().get(lat);
+            double[] lon = new double[n];
+            section(ch, at.lon, 8L * n).asDoubleBuffer().get(lon);
+            int[] offsets = new int[n + 1];
+            section(ch, at.offsets, 4L * (n + 1)).asIntBuffer().get(offsets);
+            int[] targets = new int[m];
+            section(ch, at.targets, 4L * m).asIntBuffer().get(targets);
+            float[] weights = new float[m];
+            section(ch, at.weights, 4L * m).asFloatBuffer().get(weights);
+            float[] times = new float[m];
+            section(ch, at.times, 4L * m).asFloatBuffer().get(times);
+            int[] ways = new int[m];
+            section(ch, at.ways, 4L * m).asIntBuffer().get(ways);
+            CsrGraph csr = new CsrGraph(ids, lat, lon, offsets, targets, weights, times, ways);
+            int[] order = new int[n];
+            section(ch, at.order, 4L * n).asIntBuffer().get(order);
+            return withNames(ch, at, csr, new KdTree(csr, order));
+        }
+    }
+
+    /**
+     * Use snapshot in place: the graph, k-d tree and roads stay in read-only mappings of the
+     * file, so the heap only holds the names and trie, and processes mapping the same snapshot
+     * share its pages through the OS page cache.
+     */
+    static GraphSnapshot map(File snapshot) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(snapshot, "r");
+             FileChannel ch = in.getChannel()) {
+            Layout at = layout(ch, snapshot);
+            int n = at.n, m = at.m;
+            MappedGraphStore store = new MappedGraphStore(
+                    section(ch, at.ids, 8L * n).asLongBuffer(),
+                    section(ch, at.lat, 8L * n).asDoubleBuffer(),
+                    section(ch, at.lon, 8L * n).asDoubleBuffer(),
+                    section(ch, at.offsets, 4L * (n + 1)).asIntBuffer(),
+                    section(ch, at.targets, 4L * m).asIntBuffer(),
+                    section(ch, at.weights, 4L * m).asFloatBuffer(),
+                    section(ch, at.times, 4L * m).asFloatBuffer(),
+                    section(ch, at.ways, 4L * m).asIntBuffer());
+            IntBuffer order = section(ch, at.order, 4L * n).asIntBuffer();
+            return withNames(ch, at, store, new KdTree(store, order));
+        }
+    }
+
+    /**
+     * Write a snapshot of the given graph taken from source. The file is written next to its
+     * final name and moved into place, so a concurrent reader never sees half a snapshot.
+     */
+    static void write(File source, File snapshot, GraphStore csr, KdTree spatial,
+                      Collection<GraphDB.Node> locations, String[] wayNames,
+                      NodePositions offRoad, Collection<GraphDB.Road> roads, RadixTrie trie)
+            throws IOException {
+        int n = csr.size(), m = csr.edges();
+        Layout at = new Layout(n, m);
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+             FileChannel ch = out.getChannel()) {
+            ch.truncate(0);
+            Writer w = new Writer(ch);
+            w.putInt(MAGIC);
+            w.putInt(VERSION);
+            w.putLong(source.length());
+            w.putLong(source.lastModified());
+            w.putInt(n);
+            w.putInt(m);
+            for (int v = 0; v < n; v++) {
+                w.putLong(csr.id(v));
+            }
+            for (int v = 0; v < n; v++) {
+                w.putDouble(csr.lat(v));
+            }
+            for (int v = 0; v < n; v++) {
+                w.putDouble(csr.lon(v));
+            }
+            for (int v = 0; v < n; v++) {
+                w.putInt(csr.begin(v));
+            }
+            w.putInt(m);
+            w.pad(at.targets);
+            for (int e = 0; e < m; e++) {
+                w.putInt(csr.target(e));
+            }
+            w.pad(at.weights);
+            for (int e = 0; e < m; e++) {
+                w.putFloat(csr.weight(e));
+            }
+            w.pad(at.times);
+            for (int e = 0; e < m; e++) {
+                w.putFloat(csr.time(e));
+            }
+            w.pad(at.ways);
+            for (int e = 0; e < m; e++) {
+                w.putInt(csr.way(e));
+            }
+            w.pad(at.order);
+            for (int slot = 0; slot < n; slot++) {
+                w.putInt(spatial.vertexAt(slot));
+            }
+            w.pad(at.names);
+            w.putInt(locations.size());
+            for (GraphDB.Node node : locations) {
+                byte[] name = node.name.getBytes(StandardCharsets.UTF_8);
+                w.putLong(node.id);
+                w.putDouble(node.latitude);
+                w.putDouble(node.longitude);
+                w.putInt(name.length);
+                w.put(name);
+            }
+            w.putInt(wayNames.length);
+            for (String wayName : wayNames) {
+                byte[] name = wayName.getBytes(StandardCharsets.UTF_8);
+                w.putInt(name.length);
+                w.put(name);
+            }
+            long roadBytes = 4 + 24L * offRoad.size() + 4;
+            for (GraphDB.Road road : roads) {
+                roadBytes += 24 + 8L * road.nodes.length;
+            }
+            w.putLong(roadBytes);
+            w.putInt(offRoad.size());
+            for (int i = 0; i < offRoad.size(); i++) {
+                w.putLong(offRoad.id(i));
+            }
+            for (int i = 0; i < offRoad.size(); i++) {
+                w.putDouble(offRoad.lat(i));
+            }
+            for (int i = 0; i < offRoad.size(); i++) {
+                w.putDouble(offRoad.lon(i));
+            }
+            w.putInt(roads.size());
+            for (GraphDB.Road road : roads) {
+                w.putLong(road.id);
+                w.putDouble(road.speed);
+                w.putInt(road.name);
+                w.putInt(road.nodes.length);
+                for (long node : road.nodes) {
+                    w.putLong(node);
+                }
+            }
+            w.pad(padded(w.position()));
+            trie.write(w);
+            w.flush();
+            ch.force(false);
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Check the header of an open snapshot and compute where its sections are. */
+    private static Layout layout(FileChannel ch, File snapshot) throws IOException {
+        ByteBuffer header = section(ch, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a version " + VERSION + " graph snapshot: " + snapshot);
+        }
+        return new Layout(header.getInt(24), header.getInt(28));
+    }
+
+    /** Read-only little-endian mapping of bytes [position, position + size) of the file. */
+    static MappedByteBuffer section(FileChannel ch, long position, long size)
+            throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot section of " + size + " bytes cannot be mapped");
+        }
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, position, size);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    /**
+     * Read the names, way names and trie that follow the graph sections, and keep a view of
+     * the roads and nodes off them in between.
+     */
+    private static GraphSnapshot withNames(FileChannel ch, Layout at, GraphStore csr,
+                                           KdTree spatial) throws IOException {
+        ByteBuffer buf = section(ch, at.names, ch.size() - at.names);
+        int count = buf.getInt();
+        List<GraphDB.Node> locations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = buf.getLong();
+            double la = buf.getDouble(), lo = buf.getDouble();
+            byte[] name = new byte[buf.getInt()];
+            buf.get(name);
+            GraphDB.Node node = new GraphDB.Node(id, la, lo);
+            node.name = new String(name, StandardCharsets.UTF_8);
+            locations.add(node);
+        }
+        String[] wayNames = new String[buf.getInt()];
+        for (int i = 0; i < wayNames.length; i++) {
+            byte[] name = new byte[buf.getInt()];
+            buf.get(name);
+            wayNames[i] = new String(name, StandardCharsets.UTF_8);
+        }
+        int roadBytes = (int) buf.getLong();
+        ByteBuffer roads = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        roads.limit(roadBytes);
+        buf.position((int) padded(buf.position() + roadBytes));
+        return new GraphSnapshot(csr, spatial, locations, wayNames, roads, RadixTrie.read(buf));
+    }
+
+    /** Parse the nodes off roads from the roads section of a snapshot. */
+    static NodePositions offRoad(ByteBuffer section) {
+        ByteBuffer buf = section.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buf.rewind();
+        int count = buf.getInt();
+        long[] ids = new long[count];
+        double[] lats = new double[count];
+        double[] lons = new double[count];
+        buf.asLongBuffer().get(ids);
+        buf.position(buf.position() + 8 * count);
+        buf.asDoubleBuffer().get(lats);
+        buf.position(buf.position() + 8 * count);
+        buf.asDoubleBuffer().get(lons);
+        return new NodePositions(ids, lats, lons);
+    }
+
+    /** Parse the roads from the roads section of a snapshot, in file order and by way id. */
+    static LinkedHashMap<Long, GraphDB.Road> roads(ByteBuffer section) {
+        ByteBuffer buf = section.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buf.rewind();
+        buf.position(4 + 24 * buf.getInt(0));
+        int count = buf.getInt();
+        LinkedHashMap<Long, GraphDB.Road> roads = new LinkedHashMap<>(2 * count);
+        for (int i = 0; i < count; i++) {
+            long id = buf.getLong();
+            double speed = buf.getDouble();
+            int name = buf.getInt();
+            long[] nodes = new long[buf.getInt()];
+            buf.asLongBuffer().get(nodes);
+            buf.position(buf.position() + 8 * nodes.length);
+            roads.put(id, new GraphDB.Road(id, nodes, speed, name));
+        }
+        return roads;
+    }
+
+    static long padded(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /** Sequential writer that stages values in a fixed buffer, so any graph size can be written. */
+    static final class Writer {
+        private final FileChannel ch;
+        private final ByteBuffer buf =
+                ByteBuffer.allocate(WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        private long flushed;
+
+        Writer(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        long position() {
+            return flushed + buf.position();
+        }
+
+        void putInt(int x) throws IOException {
+            room(4).putInt(x);
+        }
+
+        void putLong(long x) throws IOException {
+            room(8).putLong(x);
+        }
+
+        void putFloat(float x) throws IOException {
+            room(4).putFloat(x);
+        }
+
+        void putDouble(double x) throws IOException {
+            room(8).putDouble(x);
+        }
+
+        void putChar(char x) throws IOException {
+            room(2).putChar(x);
+        }
+
+        void put(byte x) throws IOException {
+            room(1).put(x);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            for (int i = 0; i < bytes.length; ) {
+                int k = Math.min(bytes.length - i, room(1).remaining());
+                buf.put(bytes, i, k);
+                i += k;
+            }
+        }
+
+        /** Zero-fill up to the given absolute position. */
+        void pad(long to) throws IOException {
+            while (position() < to) {
+                put((byte) 0);
+            }
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                flushed += ch.write(buf);
+            }
+            buf.clear();
+        }
+
+        private ByteBuffer room(int bytes) throws IOException {
+            if (buf.remaining() < bytes) {
+                flush();
+            }
+            return buf;
+        }
+    }
+}
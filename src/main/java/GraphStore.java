@@ -0,0 +1,48 @@
+/**
+ * Read-only storage of a frozen road graph. Vertices are numbered 0..size()-1 in ascending
+ * OSM id order, so an id maps back to its index with a binary search over ids. The edges of
+ * vertex v occupy slots begin(v) .. end(v) - 1; every road segment is stored once in each
+ * direction. Implementations keep everything in primitive form, either on the heap
+ * (CsrGraph) or in memory-mapped files (MappedGraphStore).
+ */
+interface GraphStore {
+    /** Number of vertices. */
+    int size();
+
+    /** Number of directed edge slots. */
+    int edges();
+
+    /** Dense index of vertex id, or -1 if it is not in the graph. */
+    int index(long id);
+
+    long id(int v);
+
+    double lat(int v);
+
+    double lon(int v);
+
+    /** First edge slot of vertex v. */
+    int begin(int v);
+
+    /** One past the last edge slot of vertex v. */
+    int end(int v);
+
+    /** Head vertex of edge slot e. */
+    int target(int e);
+
+    /** Length of edge slot e, in the same degree units as GraphDB.distance. */
+    float weight(int e);
+
+    /** Travel time along edge slot e at the road's speed, in seconds. */
+    float time(int e);
+
+    /** Index of the name of the way edge slot e belongs to in GraphDB.wayName, or -1. */
+    int way(int e);
+
+    /** Euclidean distance in degrees between vertices v and w. */
+    default double distance(int v, int w) {
+        double dlon = lon(v) - lon(w);
+        double dlat = lat(v) - lat(w);
+        return Math.sqrt(dlon * dlon + dlat * dlat);
+    }
+}
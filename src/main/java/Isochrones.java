@@ -0,0 +1,165 @@
+import java.util.Arrays;
+
+/**
+ * Catchment areas: everything reachable by road within a budget from a point. Users ask for
+ * the same few catchments over and over, so results are cached per snapped start vertex and
+ * budget bucket; budgets are rounded up to a whole number of buckets, which lets nearby
+ * budgets share one entry at the cost of a slightly larger area. Entries also carry the graph
+ * version they were computed on, and all of them go once a newer version is asked about.
+ */
+class Isochrones {
+    /** Distance budgets are rounded up to a multiple of this many degrees, roughly 50 meters. */
+    static final double BUCKET = 0.0005;
+    /** Time budgets are rounded up to a multiple of this many seconds. */
+    static final double TIME_BUCKET = 10;
+    /** Budgets beyond this many buckets are cut down to it, so cache keys stay distinct. */
+    private static final long MAX_BUCKETS = (1L << 30) - 1;
+
+    private final LruCache<Key, Isochrone> cache;
+    /** Newest graph version asked about so far. */
+    private long version;
+
+    /** @param capacity Upper bound on the total number of vertices of the cached results. */
+    Isochrones(long capacity) {
+        this.cache = new LruCache<>(capacity, iso -> iso.vertices.length + iso.hull.length);
+    }
+
+    /** Everything within budget degrees of road from the vertex closest to (lon, lat). */
+    Isochrone around(GraphDB g, double lon, double lat, double budget) {
+        return around(g, lon, lat, budget, Router.Metric.DISTANCE);
+    }
+
+    /**
+     * Everything within budget of the vertex closest to (lon, lat), in degrees of road or
+     * seconds of driving depending on the metric.
+     */
+    Isochrone around(GraphDB g, double lon, double lat, double budget,
+                     Router.Metric metric) {
+        seen(g.version());
+        int s = g.closestIndex(lon, lat);
+        double bucket = metric == Router.Metric.TIME ? TIME_BUCKET : BUCKET;
+        long buckets = Math.min(MAX_BUCKETS, (long) Math.ceil(Math.max(0, budget) / bucket));
+        if (s < 0) {
+            return new Isochrone(-1, buckets * bucket, new long[0], new double[0][]);
+        }
+        return cache.get(new Key(s, buckets, metric, g.version()),
+                k -> compute(g, s, buckets * bucket, metric));
+    }
+
+    /** Hit, miss and eviction counters of the cache. */
+    LruCache<Key, Isochrone> stats() {
+        return cache;
+    }
+
+    /** Drop every cached result the first time a newer graph version is asked about. */
+    private synchronized void seen(long v) {
+        if (v > version) {
+            version = v;
+            cache.clear();
+        }
+    }
+
+    private Isochrone compute(GraphDB g, int s, double budget, Router.Metric metric) {
+        int[] reached = Router.reachable(g, s, budget, metric);
+        long[] ids = new long[reached.length];
+        double[] lons = new double[reached.length];
+        double[] lats = new double[reached.length];
+        for (int i = 0; i < reached.length; i++) {
+            ids[i] = g.idAt(reached[i]);
+            lons[i] = g.lonAt(reached[i]);
+            lats[i] = g.latAt(reached[i]);
+        }
+        return new Isochrone(g.idAt(s), budget, ids, convexHull(lons, lats));
+    }
+
+    /**
+     * Convex hull of the points by Andrew's monotone chain, as {lon, lat} pairs in
+     * counter-clockwise order without repeating the first point.
+     */
+    static double[][] convexHull(double[] lons, double[] lats) {
+        int n = lons.length;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> lons[a] != lons[b] ? Double.compare(lons[a], lons[b])
+                : Double.compare(lats[a], lats[b]));
+        if (n < 3) {
+            double[][] hull = new double[n][];
+            for (int i = 0; i < n; i++) {
+                hull[i] = new double[]{lons[order[i]], lats[order[i]]};
+            }
+            return hull;
+        }
+        int[] hull = new int[2 * n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            while (k >= 2 && cross(lons, lats, hull[k - 2], hull[k - 1], order[i]) <= 0) {
+                k--;
+            }
+            hull[k++] = order[i];
+        }
+        for (int i = n - 2, lower = k + 1; i >= 0; i--) {
+            while (k >= lower && cross(lons, lats, hull[k - 2], hull[k - 1], order[i]) <= 0) {
+                k--;
+            }
+            hull[k++] = order[i];
+        }
+        double[][] result = new double[k - 1][];
+        for (int i = 0; i < k - 1; i++) {
+            result[i] = new double[]{lons[hull[i]], lats[hull[i]]};
+        }
+        return result;
+    }
+
+    /** Cross product of (b - a) and (c - a); positive if a, b, c turn counter-clockwise. */
+    private static double cross(double[] x, double[] y, int a, int b, int c) {
+        return (x[b] - x[a]) * (y[c] - y[a]) - (y[b] - y[a]) * (x[c] - x[a]);
+    }
+
+    /** Start vertex, bucket count and metric packed into a long, and the graph version. */
+    static final class Key {
+        final long packed, version;
+
+        /**
+         * The start vertex takes the high 32 bits and the buckets and metric the low 32, so
+         * buckets must be at most MAX_BUCKETS, or keys of different vertices could collide.
+         */
+        Key(int s, long buckets, Router.Metric metric, long version) {
+            if (buckets < 0 || buckets > MAX_BUCKETS) {
+                throw new IllegalArgumentException("bucket count out of range: " + buckets);
+            }
+            this.packed = ((long) s << 32) | (buckets << 1) | metric.ordinal();
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && packed == ((Key) o).packed && version == ((Key) o).version;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(packed) * 31 + Long.hashCode(version);
+        }
+    }
+
+    /** The vertices reachable from a start vertex within a budget, and their hull. */
+    static final class Isochrone {
+        /** Id of the start vertex, or -1 for an empty graph. */
+        final long center;
+        /** The budget actually searched, after rounding up to a bucket. */
+        final double budget;
+        /** Ids of the reachable vertices, in order of cost from the start. */
+        final long[] vertices;
+        /** Convex hull of the reachable vertices as {lon, lat} pairs, counter-clockwise. */
+        final double[][] hull;
+
+        Isochrone(long center, double budget, long[] vertices, double[][] hull) {
+            this.center = center;
+            this.budget = budget;
+            this.vertices = vertices;
+            this.hull = hull;
+        }
+    }
+}
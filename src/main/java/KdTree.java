@@ -0,0 +1,246 @@
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Static 2-d tree over the vertices of a GraphStore, used to answer nearest-vertex queries in
+ * O(log n) expected time instead of scanning every vertex.
+ *
+ * The tree is implicit: for a subrange [lo, hi) of the arrays the splitting vertex sits at
+ * mid = (lo + hi) / 2, everything on its near side is in [lo, mid) and everything on its far
+ * side in [mid + 1, hi). Even depths split on longitude, odd depths on latitude. Coordinates
+ * are copied into tree order so a query walks the arrays instead of jumping through the graph,
+ * except for trees over off-heap storage, which read coordinates through the graph instead
+ * so the heap footprint stays constant.
+ *
+ * A change to the graph patches the tree rather than rebuilding it; see patched.
+ */
+final class KdTree {
+    /**
+     * Largest share of a patched tree, counting both vertices gone from its slots and those
+     * in its extra tree, before patching it again rebuilds it instead.
+     */
+    private static final double MAX_PATCHED = 0.125;
+
+    /** Dense vertex index stored at each tree slot, or -1 where the vertex is gone. */
+    private final IntBuffer vertex;
+    /** Coordinates in tree order, or null to read them from g. */
+    private final double[] lon;
+    private final double[] lat;
+    private final GraphStore g;
+    /** Vertices added since the tree was built, searched alongside it; null if none. */
+    private final KdTree extra;
+
+    KdTree(GraphStore g) {
+        this(g, identity(g.size()), true);
+    }
+
+    /** Rebuild a tree from the vertex order of a previously built one, without reselecting. */
+    KdTree(GraphStore g, int[] order) {
+        this(g, order, false);
+    }
+
+    /** Tree whose vertex order and coordinates are both read in place, e.g. from a mapping. */
+    KdTree(GraphStore g, IntBuffer order) {
+        this.g = g;
+        this.vertex = order;
+        this.lon = null;
+        this.lat = null;
+        this.extra = null;
+    }
+
+    private KdTree(GraphStore g, int[] order, boolean build) {
+        int n = order.length;
+        this.g = g;
+        this.vertex = IntBuffer.wrap(order);
+        this.lon = new double[n];
+        this.lat = new double[n];
+        this.extra = null;
+        for (int i = 0; i < n; i++) {
+            lon[i] = g.lon(order[i]);
+            lat[i] = g.lat(order[i]);
+        }
+        if (build) {
+            build(order, 0, n, 0);
+        }
+    }
+
+    private KdTree(GraphStore g, int[] order, double[] lon, double[] lat, KdTree extra) {
+        this.g = g;
+        this.vertex = IntBuffer.wrap(order);
+        this.lon = lon;
+        this.lat = lat;
+        this.extra = extra;
+    }
+
+    /**
+     * This tree for next, a later version of its graph, patched where the graph changed:
+     * remap gives every vertex of the old graph its index in next, or -1 if it is gone or
+     * has moved, and added lists the vertices of next that are new or have moved. Slots of
+     * vertices that are gone stay in place as splitting planes but are never returned, and
+     * added vertices go into a small extra tree searched alongside this one. That costs one
+     * pass over the slots to renumber them and a build over the added vertices only. Once
+     * more than MAX_PATCHED of the tree is gone or extra, it is rebuilt over next instead.
+     * This tree is left as it was.
+     */
+    KdTree patched(GraphStore next, int[] remap, int[] added) {
+        int slots = vertex.limit();
+        int[] order = new int[slots];
+        double[] lons = new double[slots];
+        double[] lats = new double[slots];
+        int gone = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            int v = vertex.get(slot);
+            order[slot] = v < 0 ? -1 : remap[v];
+            if (order[slot] < 0) {
+                gone++;
+            }
+            lons[slot] = lonAt(slot);
+            lats[slot] = latAt(slot);
+        }
+        int extraSize = extra == null ? 0 : extra.size();
+        int[] more = new int[extraSize + added.length];
+        int k = 0;
+        for (int slot = 0; slot < extraSize; slot++) {
+            int v = remap[extra.vertexAt(slot)];
+            if (v >= 0) {
+                more[k++] = v;
+            }
+        }
+        System.arraycopy(added, 0, more, k, added.length);
+        k += added.length;
+        if (gone + k > MAX_PATCHED * Math.max(slots, 1)) {
+            return new KdTree(next);
+        }
+        KdTree moreTree = k == 0 ? null : new KdTree(next, Arrays.copyOf(more, k), true);
+        return new KdTree(next, order, lons, lats, moreTree);
+    }
+
+    private static int[] identity(int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    /** Number of slots in the tree, not counting those of its extra tree. */
+    int size() {
+        return vertex.limit();
+    }
+
+    /** Dense vertex index stored at tree slot i, or -1 if it is gone. */
+    int vertexAt(int slot) {
+        return vertex.get(slot);
+    }
+
+    private double lonAt(int slot) {
+        return lon != null ? lon[slot] : g.lon(vertex.get(slot));
+    }
+
+    private double latAt(int slot) {
+        return lat != null ? lat[slot] : g.lat(vertex.get(slot));
+    }
+
+    /**
+     * Dense index of the vertex nearest to (qlon, qlat) by Euclidean distance in degrees,
+     * or -1 if the tree is empty.
+     */
+    int nearest(double qlon, double qlat) {
+        Best best = new Best();
+        nearest(qlon, qlat, best);
+        return best.vertex;
+    }
+
+    /** Improve best with the vertices of this tree and its extra tree. */
+    private void nearest(double qlon, double qlat, Best best) {
+        nearest(0, size(), 0, qlon, qlat, best);
+        if (extra != null) {
+            extra.nearest(qlon, qlat, best);
+        }
+    }
+
+    /** Running answer of one query. */
+    private static final class Best {
+        int vertex = -1;
+        double dist2 = Double.POSITIVE_INFINITY;
+    }
+
+    private void nearest(int lo, int hi, int depth, double qlon, double qlat, Best best) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double mlon = lonAt(mid), mlat = latAt(mid);
+            double dlon = mlon - qlon, dlat = mlat - qlat;
+            double d2 = dlon * dlon + dlat * dlat;
+            if (d2 < best.dist2 && vertex.get(mid) >= 0) {
+                best.dist2 = d2;
+                best.vertex = vertex.get(mid);
+            }
+            double diff = (depth & 1) == 0 ? qlon - mlon : qlat - mlat;
+            depth++;
+            /* Search the side of the splitting plane the query is on first, then only cross
+             * the plane if it is closer than the best vertex found so far. */
+            if (diff < 0) {
+                nearest(lo, mid, depth, qlon, qlat, best);
+                if (diff * diff >= best.dist2) {
+                    return;
+                }
+                lo = mid + 1;
+            } else {
+                nearest(mid + 1, hi, depth, qlon, qlat, best);
+                if (diff * diff >= best.dist2) {
+                    return;
+                }
+                hi = mid;
+            }
+        }
+    }
+
+    /** Arrange [lo, hi) so its median on the depth's axis sits at the middle, recursively. */
+    private void build(int[] order, int lo, int hi, int depth) {
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            select(order, lo, hi - 1, mid, (depth & 1) == 0 ? lon : lat);
+            build(order, mid + 1, hi, depth + 1);
+            hi = mid;
+            depth++;
+        }
+    }
+
+    /** Quickselect on key so that slot k holds the value it would have if [lo, hi] were sorted. */
+    private void select(int[] order, int lo, int hi, int k, double[] key) {
+        while (hi > lo) {
+            double pivot = key[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (key[i] < pivot) {
+                    i++;
+                }
+                while (key[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(order, i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int[] order, int i, int j) {
+        int v = order[i];
+        order[i] = order[j];
+        order[j] = v;
+        double x = lon[i];
+        lon[i] = lon[j];
+        lon[j] = x;
+        double y = lat[i];
+        lat[i] = lat[j];
+        lat[j] = y;
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * ALT heuristic: A* with landmarks and the triangle inequality. For every landmark L the
+ * road distance to every vertex is precomputed, and since d(L, t) <= d(L, v) + d(v, t),
+ * |d(L, t) - d(L, v)| is a lower bound on d(v, t). Taking the best bound over a handful of
+ * landmarks spread around the edge of the map is far tighter than the straight-line
+ * distance wherever roads detour around hills, water or campus.
+ *
+ * Distances are kept in one float array, vertex-major, so the bounds of a vertex for all
+ * landmarks sit next to each other in memory.
+ */
+final class Landmarks implements Router.Heuristic {
+    /** Landmarks used when none are asked for explicitly. */
+    static final int DEFAULT_COUNT = 8;
+
+    private final int[] landmarks;
+    /** dist[v * k + i] is the road distance between landmark i and v, or +infinity. */
+    private final float[] dist;
+    private final int k;
+    /**
+     * Floats round distances both ways, so bounds are lowered by this much to stay below
+     * the true distance.
+     */
+    private final double slack;
+
+    private Landmarks(int[] landmarks, float[] dist, double slack) {
+        this.landmarks = landmarks;
+        this.dist = dist;
+        this.k = landmarks.length;
+        this.slack = slack;
+    }
+
+    /**
+     * Pick up to count landmarks on g and compute their distances in the given metric,
+     * running one Dijkstra per landmark in parallel on pool.
+     */
+    static Landmarks build(GraphStore g, int count, Router.Metric metric, ForkJoinPool pool) {
+        int[] chosen = select(g, count);
+        int n = g.size();
+        List<Callable<float[]>> tasks = new ArrayList<>(chosen.length);
+        for (int l : chosen) {
+            tasks.add(() -> distancesFrom(g, l, metric));
+        }
+        float[][] columns = new float[chosen.length][];
+        List<Future<float[]>> results = pool.invokeAll(tasks);
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = results.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        /* Each task filled its own column, so workers never write the same cache lines;
+         * interleave them afterwards. */
+        int k = chosen.length;
+        float[] dist = new float[n * k];
+        float max = 0;
+        for (int i = 0; i < k; i++) {
+            float[] col = columns[i];
+            for (int v = 0; v < n; v++) {
+                dist[v * k + i] = col[v];
+                if (col[v] != Float.POSITIVE_INFINITY) {
+                    max = Math.max(max, col[v]);
+                }
+            }
+        }
+        return new Landmarks(chosen, dist, 2 * Math.ulp(max));
+    }
+
+    /** Landmark vertices, in the order they were picked. */
+    int[] vertices() {
+        return landmarks.clone();
+    }
+
+    @Override
+    public double estimate(GraphDB g, int v, int target) {
+        int a = v * k, b = target * k;
+        double best = 0;
+        for (int i = 0; i < k; i++) {
+            float dv = dist[a + i], dt = dist[b + i];
+            if (dv != Float.POSITIVE_INFINITY && dt != Float.POSITIVE_INFINITY) {
+                best = Math.max(best, Math.abs(dt - dv));
+            }
+        }
+        return Math.max(0, best - slack);
+    }
+
+    /**
+     * Farthest-point selection on coordinates: start from the vertex farthest from the
+     * centre of the map, then repeatedly add the vertex farthest from every landmark so far.
+     * That puts the landmarks around the edge of the map, where they give the best bounds,
+     * without a graph search per pick. Only vertices of the largest connected component are
+     * considered, since a landmark on a stray footpath bounds nothing.
+     */
+    private static int[] select(GraphStore g, int count) {
+        int n = g.size();
+        boolean[] main = largestComponent(g);
+        int candidates = 0;
+        double clon = 0, clat = 0;
+        for (int v = 0; v < n; v++) {
+            if (main[v]) {
+                candidates++;
+                clon += g.lon(v);
+                clat += g.lat(v);
+            }
+        }
+        int[] chosen = new int[Math.min(count, candidates)];
+        if (chosen.length == 0) {
+            return chosen;
+        }
+        clon /= candidates;
+        clat /= candidates;
+        double[] nearest = new double[n];
+        int first = -1;
+        for (int v = 0; v < n; v++) {
+            if (main[v]) {
+                double dlon = g.lon(v) - clon, dlat = g.lat(v) - clat;
+                nearest[v] = dlon * dlon + dlat * dlat;
+                if (first < 0 || nearest[v] > nearest[first]) {
+                    first = v;
+                }
+            }
+        }
+        chosen[0] = first;
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        for (int i = 1; i < chosen.length; i++) {
+            int last = chosen[i - 1], next = -1;
+            for (int v = 0; v < n; v++) {
+                if (!main[v]) {
+                    continue;
+                }
+                double dlon = g.lon(v) - g.lon(last), dlat = g.lat(v) - g.lat(last);
+                nearest[v] = Math.min(nearest[v], dlon * dlon + dlat * dlat);
+                if (next < 0 || nearest[v] > nearest[next]) {
+                    next = v;
+                }
+            }
+            chosen[i] = next;
+        }
+        return chosen;
+    }
+
+    /** Marks the vertices of the largest connected component, found by union-find. */
+    private static boolean[] largestComponent(GraphStore g) {
+        int n = g.size();
+        int[] parent = new int[n];
+        for (int v = 0; v < n; v++) {
+            parent[v] = v;
+        }
+        for (int v = 0; v < n; v++) {
+            for (int e = g.begin(v), end = g.end(v); e < end; e++) {
+                int a = root(parent, v), b = root(parent, g.target(e));
+                if (a != b) {
+                    parent[a] = b;
+                }
+            }
+        }
+        int[] size = new int[n];
+        int largest = -1;
+        for (int v = 0; v < n; v++) {
+            int r = root(parent, v);
+            size[r]++;
+            if (largest < 0 || size[r] > size[largest]) {
+                largest = r;
+            }
+        }
+        boolean[] main = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            main[v] = root(parent, v) == largest;
+        }
+        return main;
+    }
+
+    private static int root(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    /** One-to-all Dijkstra from s; unreachable vertices get +infinity. */
+    private static float[] distancesFrom(GraphStore g, int s, Router.Metric metric) {
+        int n = g.size();
+        SearchState st = new SearchState(n);
+        st.reset();
+        st.relax(s, 0, -1, 0);
+        while (!st.isEmpty()) {
+            int v = st.pop();
+            double dv = st.dist[v];
+            for (int e = g.begin(v), end = g.end(v); e < end; e++) {
+                int w = g.target(e);
+                double dw = dv + metric.cost(g, e);
+                if (!st.reached(w) || (dw < st.dist[w] && !st.settled(w))) {
+                    st.relax(w, dw, v, 0);
+                }
+            }
+        }
+        float[] d = new float[n];
+        for (int v = 0; v < n; v++) {
+            d[v] = (float) st.distance(v);
+        }
+        return d;
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every named location of the map, in file order, kept as flat columns, with an inverted
+ * index from cleaned name to the rows of all the locations carrying it. Many places share a
+ * name (every Starbucks), so unlike a plain name to node map nothing is overwritten; a full
+ * search is one postings lookup and then reads its rows straight from the columns.
+ */
+final class LocationIndex {
+    static final LocationIndex EMPTY = of(new ArrayList<>());
+
+    private final long[] ids;
+    private final double[] lats;
+    private final double[] lons;
+    private final String[] names;
+    /** Rows in ascending id order, and their ids, for finding the row of an id. */
+    private final int[] rowsById;
+    private final long[] sortedIds;
+    /** Rows of the locations with each cleaned name, in file order. */
+    private final HashMap<String, int[]> postings;
+
+    private LocationIndex(long[] ids, double[] lats, double[] lons, String[] names,
+                          int[] rowsById, long[] sortedIds, HashMap<String, int[]> postings) {
+        this.ids = ids;
+        this.lats = lats;
+        this.lons = lons;
+        this.names = names;
+        this.rowsById = rowsById;
+        this.sortedIds = sortedIds;
+        this.postings = postings;
+    }
+
+    /** Index of the given named nodes, which are in file order and have distinct ids. */
+    static LocationIndex of(List<GraphDB.Node> locations) {
+        int n = locations.size();
+        long[] ids = new long[n];
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        String[] names = new String[n];
+        HashMap<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            GraphDB.Node node = locations.get(i);
+            ids[i] = node.id;
+            lats[i] = node.latitude;
+            lons[i] = node.longitude;
+            names[i] = node.name;
+            counts.merge(GraphDB.cleanString(node.name), 1, Integer::sum);
+        }
+        HashMap<String, int[]> postings = new HashMap<>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            postings.put(e.getKey(), new int[e.getValue()]);
+        }
+        HashMap<String, Integer> filled = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            String key = GraphDB.cleanString(names[i]);
+            postings.get(key)[filled.merge(key, 1, Integer::sum) - 1] = i;
+        }
+        long[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        int[] rowsById = new int[n];
+        for (int i = 0; i < n; i++) {
+            rowsById[Arrays.binarySearch(sortedIds, ids[i])] = i;
+        }
+        return new LocationIndex(ids, lats, lons, names, rowsById, sortedIds, postings);
+    }
+
+    /** Number of locations. */
+    int size() {
+        return ids.length;
+    }
+
+    /** Rows of the locations with the given cleaned name, in file order; do not modify. */
+    int[] rows(String cleaned) {
+        int[] p = postings.get(cleaned);
+        return p == null ? new int[0] : p;
+    }
+
+    /** Row of the location with the given id, or -1 if there is none. */
+    int row(long id) {
+        int i = Arrays.binarySearch(sortedIds, id);
+        return i < 0 ? -1 : rowsById[i];
+    }
+
+    long id(int row) {
+        return ids[row];
+    }
+
+    double lat(int row) {
+        return lats[row];
+    }
+
+    double lon(int row) {
+        return lons[row];
+    }
+
+    String name(int row) {
+        return names[row];
+    }
+
+    /** The name of the last location with the given cleaned name, as autocomplete shows it. */
+    String name(String cleaned) {
+        int[] p = postings.get(cleaned);
+        return p == null ? null : names[p[p.length - 1]];
+    }
+
+    /** The location at row as a node, for code that works on nodes. */
+    GraphDB.Node node(int row) {
+        GraphDB.Node n = new GraphDB.Node(ids[row], lats[row], lons[row]);
+        n.name = names[row];
+        return n;
+    }
+
+    /** How many locations carry each cleaned name. */
+    Map<String, Integer> weights() {
+        Map<String, Integer> weights = new HashMap<>();
+        for (Map.Entry<String, int[]> e : postings.entrySet()) {
+            weights.put(e.getKey(), e.getValue().length);
+        }
+        return weights;
+    }
+}
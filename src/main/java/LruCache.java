@@ -0,0 +1,152 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded least-recently-used cache that is safe to share between request threads.
+ * Entries are weighed (by bytes, by count, ...) and the least recently used ones are evicted
+ * once the total weight exceeds the capacity. Concurrent misses on the same key share a
+ * single load instead of each computing the value. Hits, misses and evictions are counted.
+ */
+class LruCache<K, V> {
+    private final long capacity;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+    private long weight;
+    private long hits, misses, evictions;
+
+    /** A cache holding at most capacity entries. */
+    LruCache(long capacity) {
+        this(capacity, v -> 1);
+    }
+
+    /** A cache holding entries whose weights add up to at most capacity. */
+    LruCache(long capacity, ToLongFunction<V> weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    /** The cached value for key, or null. Counts as a hit or a miss. */
+    synchronized V get(K key) {
+        V v = entries.get(key);
+        if (v != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return v;
+    }
+
+    /**
+     * The cached value for key, loading it on a miss. If another thread is already loading
+     * the same key, wait for its result instead of loading it again. Null results are
+     * returned but not cached.
+     */
+    V get(K key, Function<? super K, ? extends V> loader) {
+        V v = get(key);
+        if (v != null) {
+            return v;
+        }
+        FutureTask<V> task = new FutureTask<>(() -> loader.apply(key));
+        FutureTask<V> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                /* Someone may have finished loading between our miss and putIfAbsent. */
+                synchronized (this) {
+                    v = entries.get(key);
+                }
+                if (v != null) {
+                    return v;
+                }
+                task.run();
+                v = await(task);
+                if (v != null) {
+                    put(key, v);
+                }
+                return v;
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        return await(running);
+    }
+
+    /** Cache value under key, evicting least recently used entries as needed. */
+    synchronized void put(K key, V value) {
+        V old = entries.put(key, value);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+        weight += weigher.applyAsLong(value);
+        Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+        while (weight > capacity && entries.size() > 1 && it.hasNext()) {
+            Map.Entry<K, V> eldest = it.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            weight -= weigher.applyAsLong(eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /** Drop every entry, e.g. because what they were computed from has changed. */
+    synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** Total weight of the cached entries. */
+    synchronized long weight() {
+        return weight;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    /** Fraction of lookups that were hits, or 0 before the first lookup. */
+    synchronized double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, weight %d/%d, %d hits, %d misses, %d evictions",
+                entries.size(), weight, capacity, hits, misses, evictions);
+    }
+
+    private static <V> V await(FutureTask<V> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
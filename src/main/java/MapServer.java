@@ -1,22 +1,36 @@
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.BasicStroke;
-import java.awt.Color;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
 
 import static spark.Spark.*;
 
@@ -40,10 +54,13 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
-    /** Route stroke information: typically roads are not more than 5px wide. */
-    public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
-    /** Route stroke information: Cyan with half transparency. */
-    public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
+    /** HTTP response for requests of things that do not exist. */
+    private static final int NOT_FOUND_RESPONSE = 404;
+    /**
+     * Route overlays leave out points that would move the drawn line by less than this many
+     * pixels at the zoom level the client asks for.
+     */
+    private static final double ROUTE_TOLERANCE_PX = 0.5;
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "img/";
     /**
@@ -51,6 +68,50 @@ public class MapServer {
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "berkeley.osm";
+    /**
+     * Set this system property to true (-Dbearmaps.offheap=true) to serve the graph from a
+     * memory-mapped snapshot instead of heap arrays, for extracts larger than the heap.
+     */
+    private static final String OFF_HEAP_PROPERTY = "bearmaps.offheap";
+    /**
+     * Set this system property to true to answer /route from a Contraction Hierarchy, which
+     * is built (or loaded from next to the OSM file) during initialization.
+     */
+    private static final String CONTRACTION_HIERARCHY_PROPERTY = "bearmaps.ch";
+    /**
+     * Set this system property to true to guide A* on /route with landmark distances (ALT)
+     * instead of straight-line distance; the landmarks are computed during initialization.
+     */
+    private static final String LANDMARKS_PROPERTY = "bearmaps.alt";
+    /**
+     * Set this system property to a directory to keep the graph up to date with the osmChange
+     * files (*.osc, optionally .gz or .bz2) that appear in it; they are applied in name order.
+     */
+    private static final String CHANGES_PROPERTY = "bearmaps.changes";
+    /** How often the changes directory is checked for new files. */
+    private static final long CHANGES_POLL_SECONDS = 60;
+    /** Bytes of decoded tile pixels to keep around; a 256x256 tile takes 256 KiB. */
+    private static final long TILE_CACHE_BYTES = 128L << 20;
+    /** Set this system property to true to keep decoded tiles outside of the heap. */
+    private static final String TILE_CACHE_OFF_HEAP_PROPERTY = "bearmaps.tilecache.offheap";
+    /** Bytes of tile files to keep mapped for /tiles; mappings live outside of the heap. */
+    private static final long TILE_FILES_BYTES = 256L << 20;
+    /**
+     * Raster requests carrying this parameter also get the tiles stitched into one image,
+     * base64 encoded under "b64_encoded_image_data", for clients that cannot fetch tiles.
+     */
+    private static final String INLINE_IMAGE_PARAM = "inline_image";
+    /**
+     * Query parameter, or failing that cookie, naming the client whose route a request
+     * reads or writes. Clients without one get a cookie on their first /route.
+     */
+    private static final String ROUTE_TOKEN = "route_token";
+    /** Longest route token accepted; anything longer is ignored. */
+    private static final int MAX_ROUTE_TOKEN_LENGTH = 64;
+    /** Most routes kept for distinct clients at once. */
+    private static final int MAX_ROUTES = 10000;
+    /** Routes nobody has looked at for this long are forgotten. */
+    private static final long ROUTE_TTL_MILLIS = 30 * 60 * 1000L;
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -69,6 +130,51 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Route and matrix requests may also say what to minimise:<br>
+     * metric -> "distance" (the default) or "time".
+     **/
+    private static final String METRIC_PARAM = "metric";
+    /**
+     * Route requests may also ask for a choice of routes:<br>
+     * alternatives -> the most routes to return, the shortest first.
+     **/
+    private static final String ALTERNATIVES_PARAM = "alternatives";
+    /** Most alternatives a single route request may ask for. */
+    private static final int MAX_ALTERNATIVES = 5;
+    /**
+     * Each route overlay request has the size of a pixel of the raster it is drawn on:<br>
+     * lon_dpp -> longitude per pixel,<br> lat_dpp -> latitude per pixel.
+     **/
+    private static final String[] REQUIRED_ROUTE_OVERLAY_PARAMS = {"lon_dpp", "lat_dpp"};
+
+    /**
+     * Each matrix request has the points to measure between as "lon,lat" pairs separated by
+     * semicolons:<br> sources -> the rows of the matrix,<br> targets -> its columns.
+     **/
+    private static final String[] REQUIRED_MATRIX_REQUEST_PARAMS = {"sources", "targets"};
+    /** Most sources, and most targets, a single matrix request may ask for. */
+    private static final int MAX_MATRIX_POINTS = 250;
+    /**
+     * Each isochrone request has the point to start from and how far to go, either
+     * distance -> the budget in the same degree units as route lengths, or
+     * time -> the budget in seconds of driving:<br>
+     * lon -> start longitude,<br> lat -> start latitude.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lon", "lat"};
+    /**
+     * Search requests without "full" may also say how many names to suggest:<br>
+     * limit -> the most names to return, the best first; at most RadixTrie.TOP_K are.
+     **/
+    private static final String SEARCH_LIMIT_PARAM = "limit";
+    /** Names suggested when a search request gives no limit. */
+    private static final int DEFAULT_SEARCH_LIMIT = 10;
+    /** Most names a search request gets: as many as every trie node keeps ranked. */
+    private static final int MAX_SEARCH_LIMIT = RadixTrie.TOP_K;
+    /** Vertices of isochrone results to keep cached, summed over all cached results. */
+    private static final long ISOCHRONE_CACHE_VERTICES = 2_000_000;
+    /** Vertices of routes to keep cached, summed over all cached routes. */
+    private static final long ROUTE_CACHE_VERTICES = 4_000_000;
 
     /**
      * The result of rastering must be a map containing all of the
@@ -78,8 +184,21 @@ public class MapServer {
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
     private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static LinkedList<Long> route = new LinkedList<>();
+    /**
+     * The graph being served. Changes replace it as a whole, so each request reads it once and
+     * works on that one version throughout.
+     */
+    private static volatile GraphDB graph;
+    /** Routes between snapped endpoints, found with the mode and heuristics set up at start. */
+    private static RouteCache routeCache;
+    private static TileCache tiles;
+    /** Read-only mappings of tile files, keyed by path, for the /tiles endpoint. */
+    private static LruCache<String, ByteBuffer> tileFiles;
+    /** The current route of each client, keyed by route token. */
+    private static RouteStore routes;
+    private static Isochrones isochrones;
+    /** Names of the files in the changes directory applied so far. */
+    private static final Set<String> appliedChanges = new HashSet<>();
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -89,8 +208,69 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        graph = new GraphDB(OSM_DB_PATH, Boolean.getBoolean(OFF_HEAP_PROPERTY));
+        Router.Mode routeMode = Router.Mode.A_STAR;
+        if (Boolean.getBoolean(LANDMARKS_PROPERTY)) {
+            for (Router.Metric metric : Router.Metric.values()) {
+                graph.landmarks(metric);
+            }
+        }
+        if (Boolean.getBoolean(CONTRACTION_HIERARCHY_PROPERTY)) {
+            for (Router.Metric metric : Router.Metric.values()) {
+                graph.hierarchy(metric);
+            }
+            routeMode = Router.Mode.CONTRACTION_HIERARCHY;
+        }
         rasterer = new Rasterer(IMG_ROOT);
+        tiles = new TileCache(TILE_CACHE_BYTES, Boolean.getBoolean(TILE_CACHE_OFF_HEAP_PROPERTY));
+        tileFiles = new LruCache<>(TILE_FILES_BYTES, ByteBuffer::capacity);
+        routes = new RouteStore(MAX_ROUTES, ROUTE_TTL_MILLIS);
+        routeCache = new RouteCache(routeMode, Boolean.getBoolean(LANDMARKS_PROPERTY),
+                ROUTE_CACHE_VERTICES);
+        isochrones = new Isochrones(ISOCHRONE_CACHE_VERTICES);
+        String changes = System.getProperty(CHANGES_PROPERTY);
+        if (changes != null) {
+            ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "osm-changes");
+                t.setDaemon(true);
+                return t;
+            });
+            poller.scheduleWithFixedDelay(() -> applyChanges(new File(changes)), 0,
+                    CHANGES_POLL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Apply an osmChange file to the graph being served. The new version is built next to
+     * the current one and published with a single write, so requests already running finish
+     * on the version they started with.
+     */
+    public static synchronized void applyChange(File osmChange)
+            throws IOException, XMLStreamException {
+        graph = graph.apply(osmChange);
+    }
+
+    /** Apply the osmChange files in dir not applied yet, in name order. */
+    private static synchronized void applyChanges(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".osc")
+                || name.endsWith(".osc.gz") || name.endsWith(".osc.bz2"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (appliedChanges.contains(f.getName())) {
+                continue;
+            }
+            try {
+                applyChange(f);
+            } catch (IOException | XMLStreamException | RuntimeException e) {
+                /* Later changes build on this one, so wait for it to be fixed. */
+                e.printStackTrace();
+                return;
+            }
+            appliedChanges.add(f.getName());
+        }
     }
 
     public static void main(String[] args) {
@@ -109,17 +289,24 @@ public class MapServer {
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
             Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
             if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+                String[][] renderGrid = (String[][]) rasteredImgParams.get("render_grid");
+                rasteredImgParams.put("raster_width", renderGrid[0].length * TILE_SIZE);
+                rasteredImgParams.put("raster_height", renderGrid.length * TILE_SIZE);
+                /* Clients fetch the tiles from /tiles themselves; only stitch and inline one
+                 * big image for those that ask for it. */
+                if (req.queryParams().contains(INLINE_IMAGE_PARAM)) {
+                    /* The png image is written to the ByteArrayOutputStream */
+                    ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    writeImagesToOutputStream(rasteredImgParams, os);
+                    String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+                    rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+                }
             }
 
             /* Encode response to Json */
@@ -127,19 +314,145 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
-        /* Define the routing endpoint for HTTP GET requests. */
+        /* Define the tile endpoint: /tiles/{depth}/{x}/{y}.png streams one tile as stored. */
+        get("/tiles/:depth/:x/:y", (req, res) -> {
+            String y = req.params(":y");
+            if (y.endsWith(".png")) {
+                y = y.substring(0, y.length() - ".png".length());
+            }
+            String path;
+            try {
+                path = rasterer.tilePath(Integer.parseInt(req.params(":depth")),
+                        Integer.parseInt(req.params(":x")), Integer.parseInt(y));
+            } catch (NumberFormatException e) {
+                path = null;
+            }
+            ByteBuffer bytes = path == null ? null : tileFiles.get(path, MapServer::mapTile);
+            if (bytes == null) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            res.type("image/png");
+            /* A tile's contents never change, so browsers may keep it indefinitely. */
+            res.header("Cache-Control", "public, max-age=31536000, immutable");
+            sendTile(res.raw(), bytes.duplicate());
+            return "";
+        });
+
+        /* Define the routing endpoint for HTTP GET requests. With alternatives=k it answers
+         * with up to k routes as {nodes, length, overlap}, and the first becomes the current
+         * route; otherwise it answers whether a route was found. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            //route = findAndSetRoute(params);
-            return !route.isEmpty();
+            Router.Metric metric = metric(req);
+            String token = routeToken(req);
+            if (token == null) {
+                token = routes.newToken();
+                res.cookie(ROUTE_TOKEN, token);
+            }
+            GraphDB g = graph;
+            if (req.queryParams(ALTERNATIVES_PARAM) == null) {
+                long[] route = routeCache.route(g, params.get("start_lon"),
+                        params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                        metric);
+                routes.put(token, route);
+                return route.length > 0;
+            }
+            List<Router.Alternative> alternatives = Router.alternatives(g,
+                    params.get("start_lon"), params.get("start_lat"), params.get("end_lon"),
+                    params.get("end_lat"), metric, alternatives(req));
+            routes.put(token, alternatives.isEmpty() ? new long[0]
+                    : alternatives.get(0).vertices);
+            List<Map<String, Object>> result = new ArrayList<>();
+            for (Router.Alternative alternative : alternatives) {
+                Map<String, Object> route = new HashMap<>();
+                route.put("nodes", alternative.vertices);
+                route.put("length", alternative.length);
+                route.put("overlap", alternative.overlap);
+                result.add(route);
+            }
+            res.type("application/json");
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        });
+
+        /* Define the route overlay endpoint: the client's current route as a GeoJSON Feature,
+         * drawn by the client on top of the tiles so those stay the same for everyone. */
+        get("/route_overlay", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ROUTE_OVERLAY_PARAMS);
+            res.type("application/json");
+            res.header("Cache-Control", "no-store");
+            /* GeoJSON wants "geometry": null rather than no geometry when there is no route. */
+            Gson gson = new GsonBuilder().serializeNulls().create();
+            return gson.toJson(routeOverlay(graph, routes.get(routeToken(req)),
+                    params.get("lon_dpp"), params.get("lat_dpp")));
+        });
+
+        /* Define the distance matrix endpoint: road distances (or travel times) from every
+         * source to every target, row-major in one flat array, -1 where there is no path. */
+        get("/matrix", (req, res) -> {
+            for (String param : REQUIRED_MATRIX_REQUEST_PARAMS) {
+                if (req.queryParams(param) == null) {
+                    halt(HALT_RESPONSE, "Request failed - parameters missing.");
+                }
+            }
+            double[][] sources = parsePoints(req.queryParams("sources"));
+            double[][] targets = parsePoints(req.queryParams("targets"));
+            Map<String, Object> matrix = new HashMap<>();
+            matrix.put("sources", sources.length);
+            matrix.put("targets", targets.length);
+            matrix.put("distances", Router.distanceMatrix(graph, sources, targets, metric(req),
+                    ForkJoinPool.commonPool()));
+            res.type("application/json");
+            Gson gson = new Gson();
+            return gson.toJson(matrix);
+        });
+
+        /* Define the isochrone endpoint: every vertex within a road distance or driving time
+         * of a point, and their convex hull as a GeoJSON Polygon. */
+        get("/isochrone", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            Router.Metric metric = req.queryParams("time") != null
+                    ? Router.Metric.TIME : Router.Metric.DISTANCE;
+            String budget = metric == Router.Metric.TIME ? "time" : "distance";
+            params.putAll(getRequestParams(req, new String[]{budget}));
+            Isochrones.Isochrone iso = isochrones.around(graph, params.get("lon"),
+                    params.get("lat"), params.get(budget), metric);
+            Map<String, Object> result = new HashMap<>();
+            result.put("center", iso.center);
+            result.put(budget, iso.budget);
+            result.put("nodes", iso.vertices);
+            result.put("hull", polygon(iso.hull));
+            res.type("application/json");
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        });
+
+        /* Define the directions endpoint: turn-by-turn directions along the client's current
+         * route, as a list of {direction, way, distance, text}, empty if there is no route. */
+        get("/directions", (req, res) -> {
+            GraphDB g = graph;
+            List<Map<String, Object>> directions = new ArrayList<>();
+            for (Router.NavigationDirection d
+                    : Router.routeDirections(g, onGraph(g, routes.get(routeToken(req))))) {
+                Map<String, Object> direction = new HashMap<>();
+                direction.put("direction", Router.NavigationDirection.DIRECTIONS[d.direction]);
+                direction.put("way", d.way);
+                direction.put("distance", d.distance);
+                direction.put("text", d.toString());
+                directions.add(direction);
+            }
+            res.type("application/json");
+            res.header("Cache-Control", "no-store");
+            Gson gson = new Gson();
+            return gson.toJson(directions);
         });
 
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            clearRoute(routeToken(req));
             return true;
         });
 
@@ -153,12 +466,20 @@ public class MapServer {
                 List<Map<String, Object>> data = getLocations(term);
                 return gson.toJson(data);
             } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
+                /* Search for the best prefix matching strings. */
+                List<String> matches = getLocationsByPrefix(term, searchLimit(req));
                 return gson.toJson(matches);
             }
         });
 
+        /* Define the stats endpoint: hit, miss and eviction counters of every cache. */
+        get("/stats", (req, res) -> {
+            res.type("application/json");
+            res.header("Cache-Control", "no-store");
+            Gson gson = new Gson();
+            return gson.toJson(stats());
+        });
+
         /* Define map application redirect */
         get("/", (request, response) -> {
             response.redirect("/map.html", 301);
@@ -192,6 +513,79 @@ public class MapServer {
         return params;
     }
 
+    /** The metric a request asks to route in, halting the request if it names no metric. */
+    private static Router.Metric metric(spark.Request req) {
+        String metric = req.queryParams(METRIC_PARAM);
+        if (metric == null || metric.equals("distance")) {
+            return Router.Metric.DISTANCE;
+        } else if (metric.equals("time")) {
+            return Router.Metric.TIME;
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - metric is distance or time.");
+        return null;
+    }
+
+    /**
+     * How many names a search request asks for, at most MAX_SEARCH_LIMIT; halts it if the
+     * limit is not a positive number.
+     */
+    private static int searchLimit(spark.Request req) {
+        String limit = req.queryParams(SEARCH_LIMIT_PARAM);
+        if (limit == null) {
+            return DEFAULT_SEARCH_LIMIT;
+        }
+        int k = 0;
+        try {
+            k = Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+        }
+        if (k < 1) {
+            halt(HALT_RESPONSE, "Request failed - limit must be at least 1.");
+        }
+        return Math.min(k, MAX_SEARCH_LIMIT);
+    }
+
+    /** How many alternatives a route request asks for, halting it if out of range. */
+    private static int alternatives(spark.Request req) {
+        int k = 0;
+        try {
+            k = Integer.parseInt(req.queryParams(ALTERNATIVES_PARAM));
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+        }
+        if (k < 1 || k > MAX_ALTERNATIVES) {
+            halt(HALT_RESPONSE, "Request failed - between 1 and " + MAX_ALTERNATIVES
+                    + " alternatives.");
+        }
+        return k;
+    }
+
+    /**
+     * Parse "lon,lat;lon,lat;..." into {lon, lat} pairs, halting the request if it is
+     * malformed or lists more than MAX_MATRIX_POINTS points.
+     */
+    private static double[][] parsePoints(String points) {
+        String[] pairs = points.isEmpty() ? new String[0] : points.split(";");
+        if (pairs.length > MAX_MATRIX_POINTS) {
+            halt(HALT_RESPONSE, "Request failed - at most " + MAX_MATRIX_POINTS + " points.");
+        }
+        double[][] result = new double[pairs.length][];
+        for (int i = 0; i < pairs.length; i++) {
+            String[] lonLat = pairs[i].split(",");
+            try {
+                if (lonLat.length != 2) {
+                    throw new NumberFormatException(pairs[i]);
+                }
+                result[i] = new double[]{Double.parseDouble(lonLat[0]),
+                    Double.parseDouble(lonLat[1])};
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide lon,lat pairs.");
+            }
+        }
+        return result;
+    }
+
     /** Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
@@ -204,12 +598,11 @@ public class MapServer {
 
         BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
                 numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
         int x = 0, y = 0;
 
         for (int r = 0; r < numVertTiles; r += 1) {
             for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(renderGrid[r][c]), x, y, null);
+                tiles.draw(renderGrid[r][c], img, x, y);
                 x += MapServer.TILE_SIZE;
                 if (x >= img.getWidth()) {
                     x = 0;
@@ -218,28 +611,6 @@ public class MapServer {
             }
         }
 
-        /* If there is a route, draw it. */
-        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
-        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
-        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
-        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
-
-        final double wdpp = (lrlon - ullon) / img.getWidth();
-        final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
-        }
-
         rasteredImageParams.put("raster_width", img.getWidth());
         rasteredImageParams.put("raster_height", img.getHeight());
 
@@ -251,24 +622,144 @@ public class MapServer {
 
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
+    /**
+     * The route if every vertex of it is still in g, else no route: routes are kept across
+     * changes to the graph, which may remove vertices they went through.
+     */
+    private static long[] onGraph(GraphDB g, long[] route) {
+        for (long id : route) {
+            if (g.indexOf(id) < 0) {
+                return new long[0];
             }
         }
-        return tileImg;
+        return route;
     }
 
     /**
-     * Clear the current found route, if it exists.
+     * A GeoJSON Feature whose geometry is the route as a LineString of [lon, lat] positions,
+     * or null if there is no route. Points that would not visibly change the line on a raster
+     * with pixels of the given size are left out.
      */
-    public static void clearRoute() {
-        route = new LinkedList<Long>();
+    private static Map<String, Object> routeOverlay(GraphDB g, long[] stored, double lonDPP,
+                                                    double latDPP) {
+        long[] route = onGraph(g, stored);
+        Map<String, Object> feature = new HashMap<>();
+        feature.put("type", "Feature");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("nodes", route.length);
+        feature.put("properties", properties);
+        if (route.length < 2 || !(lonDPP > 0) || !(latDPP > 0)) {
+            feature.put("geometry", null);
+            return feature;
+        }
+        /* Simplify in pixel units, since a pixel spans different amounts of lon and lat. */
+        double[] x = new double[route.length];
+        double[] y = new double[route.length];
+        for (int i = 0; i < route.length; i++) {
+            x[i] = g.lon(route[i]) / lonDPP;
+            y[i] = g.lat(route[i]) / latDPP;
+        }
+        int[] kept = Polyline.simplify(x, y, ROUTE_TOLERANCE_PX);
+        List<double[]> coordinates = new ArrayList<>(kept.length);
+        for (int i : kept) {
+            coordinates.add(new double[]{g.lon(route[i]), g.lat(route[i])});
+        }
+        Map<String, Object> geometry = new HashMap<>();
+        geometry.put("type", "LineString");
+        geometry.put("coordinates", coordinates);
+        feature.put("geometry", geometry);
+        return feature;
+    }
+
+    /**
+     * A GeoJSON Polygon with the given ring of {lon, lat} pairs, closed by repeating its first
+     * point; rings of fewer than three points make a polygon without coordinates.
+     */
+    private static Map<String, Object> polygon(double[][] ring) {
+        Map<String, Object> geometry = new HashMap<>();
+        geometry.put("type", "Polygon");
+        if (ring.length < 3) {
+            geometry.put("coordinates", new double[0][][]);
+        } else {
+            double[][] closed = Arrays.copyOf(ring, ring.length + 1);
+            closed[ring.length] = ring[0];
+            geometry.put("coordinates", new double[][][]{closed});
+        }
+        return geometry;
+    }
+
+    /** Map the tile file at path read-only, or return null if it cannot be read. */
+    private static ByteBuffer mapTile(String path) {
+        try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write a tile's bytes as the whole response body. Jetty can hand a mapped buffer to
+     * the socket as is, so the bytes go from the page cache to the network without being
+     * copied onto the heap; other containers get them through a plain channel write.
+     */
+    private static void sendTile(HttpServletResponse raw, ByteBuffer bytes) throws IOException {
+        raw.setContentLength(bytes.remaining());
+        ServletOutputStream out = raw.getOutputStream();
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).sendContent(bytes);
+        } else {
+            Channels.newChannel(out).write(bytes);
+            out.flush();
+        }
+    }
+
+    /**
+     * The route token a request carries as a query parameter or cookie, or null if it has
+     * none (or an implausibly long one).
+     */
+    private static String routeToken(spark.Request req) {
+        String token = req.queryParams(ROUTE_TOKEN);
+        if (token == null || token.isEmpty()) {
+            token = req.cookie(ROUTE_TOKEN);
+        }
+        if (token == null || token.isEmpty() || token.length() > MAX_ROUTE_TOKEN_LENGTH) {
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * Counters of the server's caches, for the /stats endpoint: for each of "routes",
+     * "tiles", "tile_files" and "isochrones" its entries, weight, hits, misses, evictions and
+     * hit rate, plus the number of stored client routes and the graph version being served.
+     */
+    public static Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("graph_version", graph.version());
+        stats.put("stored_routes", routes.size());
+        stats.put("routes", cacheStats(routeCache.stats()));
+        stats.put("tiles", cacheStats(tiles.stats()));
+        stats.put("tile_files", cacheStats(tileFiles));
+        stats.put("isochrones", cacheStats(isochrones.stats()));
+        return stats;
+    }
+
+    private static Map<String, Object> cacheStats(LruCache<?, ?> cache) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", cache.size());
+        stats.put("weight", cache.weight());
+        stats.put("hits", cache.hits());
+        stats.put("misses", cache.misses());
+        stats.put("evictions", cache.evictions());
+        stats.put("hit_rate", cache.hitRate());
+        return stats;
+    }
+
+    /**
+     * Clear the current found route of the client with the given route token, if it exists.
+     */
+    public static void clearRoute(String token) {
+        routes.remove(token);
     }
 
     /**
@@ -280,6 +771,14 @@ public class MapServer {
      */
     public static List<String> getLocationsByPrefix(String prefix) { return graph.findlocationbyprefix(prefix); }
 
+    /**
+     * The full names of the best limit OSM locations that prefix-match the query string,
+     * best first: names shared by more locations, then shorter names.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        return graph.findlocationbyprefix(prefix, limit);
+    }
+
     /**
      * Collect all locations that match a cleaned <code>locationName</code>, and return
      * information about each node that matches.
@@ -293,7 +792,7 @@ public class MapServer {
      * "id" -> Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
-        return new LinkedList<>();
+        return graph.findlocations(locationName);
     }
 
     /** Validates that Rasterer has returned a result that can be rendered.
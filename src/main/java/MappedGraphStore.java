@@ -0,0 +1,106 @@
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * GraphStore whose arrays live in read-only memory-mapped sections of a graph snapshot
+ * rather than on the heap. Each section is its own mapping, so the heap cost is a handful of
+ * buffer objects regardless of how many vertices and edges the graph has, and the OS is free
+ * to page the data in and out and to share it between processes mapping the same file.
+ */
+final class MappedGraphStore implements GraphStore {
+    private final LongBuffer ids;
+    private final DoubleBuffer lat;
+    private final DoubleBuffer lon;
+    private final IntBuffer offsets;
+    private final IntBuffer targets;
+    private final FloatBuffer weights;
+    private final FloatBuffer times;
+    private final IntBuffer ways;
+
+    MappedGraphStore(LongBuffer ids, DoubleBuffer lat, DoubleBuffer lon, IntBuffer offsets,
+                     IntBuffer targets, FloatBuffer weights, FloatBuffer times,
+                     IntBuffer ways) {
+        this.ids = ids;
+        this.lat = lat;
+        this.lon = lon;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.times = times;
+        this.ways = ways;
+    }
+
+    @Override
+    public int size() {
+        return ids.limit();
+    }
+
+    @Override
+    public int edges() {
+        return targets.limit();
+    }
+
+    @Override
+    public int index(long id) {
+        int lo = 0, hi = ids.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long x = ids.get(mid);
+            if (x < id) {
+                lo = mid + 1;
+            } else if (x > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long id(int v) {
+        return ids.get(v);
+    }
+
+    @Override
+    public double lat(int v) {
+        return lat.get(v);
+    }
+
+    @Override
+    public double lon(int v) {
+        return lon.get(v);
+    }
+
+    @Override
+    public int begin(int v) {
+        return offsets.get(v);
+    }
+
+    @Override
+    public int end(int v) {
+        return offsets.get(v + 1);
+    }
+
+    @Override
+    public int target(int e) {
+        return targets.get(e);
+    }
+
+    @Override
+    public float weight(int e) {
+        return weights.get(e);
+    }
+
+    @Override
+    public float time(int e) {
+        return times.get(e);
+    }
+
+    @Override
+    public int way(int e) {
+        return ways.get(e);
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Where the nodes off the roads are: those of footways and other paths, and named places,
+ * kept as flat columns in ascending id order. A change that turns a path into a road only
+ * lists the way, not its nodes, so apply looks their positions up here.
+ */
+final class NodePositions {
+    static final NodePositions EMPTY = new NodePositions(new long[0], new double[0],
+            new double[0]);
+
+    private final long[] ids;
+    private final double[] lats;
+    private final double[] lons;
+
+    /** Positions of the nodes with the given ids, which must be ascending. */
+    NodePositions(long[] ids, double[] lats, double[] lons) {
+        this.ids = ids;
+        this.lats = lats;
+        this.lons = lons;
+    }
+
+    /** Positions of the given nodes. */
+    static NodePositions of(Collection<GraphDB.Node> nodes) {
+        GraphDB.Node[] sorted = nodes.toArray(new GraphDB.Node[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.id, b.id));
+        long[] ids = new long[sorted.length];
+        double[] lats = new double[sorted.length];
+        double[] lons = new double[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            ids[i] = sorted[i].id;
+            lats[i] = sorted[i].latitude;
+            lons[i] = sorted[i].longitude;
+        }
+        return new NodePositions(ids, lats, lons);
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /** Index of the node with the given id, or -1 if its position is not kept. */
+    int index(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? -1 : i;
+    }
+
+    long id(int i) {
+        return ids[i];
+    }
+
+    double lat(int i) {
+        return lats[i];
+    }
+
+    double lon(int i) {
+        return lons[i];
+    }
+
+    /**
+     * These positions with those of changed put in, replacing any kept for the same id, and
+     * the ids changed maps to null left out. Neither is modified.
+     */
+    NodePositions with(Map<Long, GraphDB.Node> changed) {
+        long[] keys = new long[changed.size()];
+        int k = 0;
+        for (long id : changed.keySet()) {
+            keys[k++] = id;
+        }
+        Arrays.sort(keys);
+        int n = ids.length + keys.length;
+        long[] mergedIds = new long[n];
+        double[] mergedLats = new double[n];
+        double[] mergedLons = new double[n];
+        int i = 0, j = 0, out = 0;
+        while (i < ids.length || j < keys.length) {
+            if (j == keys.length || (i < ids.length && ids[i] < keys[j])) {
+                mergedIds[out] = ids[i];
+                mergedLats[out] = lats[i];
+                mergedLons[out++] = lons[i++];
+                continue;
+            }
+            if (i < ids.length && ids[i] == keys[j]) {
+                i++;
+            }
+            GraphDB.Node node = changed.get(keys[j++]);
+            if (node != null) {
+                mergedIds[out] = node.id;
+                mergedLats[out] = node.latitude;
+                mergedLons[out++] = node.longitude;
+            }
+        }
+        return new NodePositions(Arrays.copyOf(mergedIds, out), Arrays.copyOf(mergedLats, out),
+                Arrays.copyOf(mergedLons, out));
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The nodes and ways of an osmChange file, as they are once the change is made. An element
+ * created or modified more than once keeps its last version, and one that is deleted, or a
+ * way that stops being a road, maps to null. Relations are ignored, as they are on load.
+ *
+ * See OSM documentation on
+ * <a href="http://wiki.openstreetmap.org/wiki/OsmChange">the osmChange format</a>.
+ */
+final class OsmChange {
+    /** Changed nodes by id; null for deleted ones. */
+    final Map<Long, GraphDB.Node> nodes = new LinkedHashMap<>();
+    /** Changed ways by id; null for deleted ones and ways that are not roads. */
+    final Map<Long, OsmIngest.Road> ways = new LinkedHashMap<>();
+
+    private OsmChange() {
+    }
+
+    /** Read an osmChange file, which may be gzip or bzip2 compressed. */
+    static OsmChange read(File file) throws IOException, XMLStreamException {
+        try (InputStream in = OsmIngest.decompressed(new FileInputStream(file))) {
+            return read(in);
+        }
+    }
+
+    static OsmChange read(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLStreamReader xml = factory.createXMLStreamReader(in);
+        OsmChange change = new OsmChange();
+        boolean delete = false;
+        GraphDB.Node node = null;
+        OsmIngest.RawWay way = null;
+        try {
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = xml.getLocalName();
+                    if (name.equals("create") || name.equals("modify")) {
+                        delete = false;
+                    } else if (name.equals("delete")) {
+                        delete = true;
+                    } else if (name.equals("node")) {
+                        long id = Long.parseLong(xml.getAttributeValue(null, "id"));
+                        if (delete) {
+                            change.nodes.put(id, null);
+                        } else {
+                            node = new GraphDB.Node(id,
+                                    Double.parseDouble(xml.getAttributeValue(null, "lat")),
+                                    Double.parseDouble(xml.getAttributeValue(null, "lon")));
+                        }
+                    } else if (name.equals("way")) {
+                        String id = xml.getAttributeValue(null, "id");
+                        if (delete) {
+                            change.ways.put(Long.parseLong(id), null);
+                        } else {
+                            way = new OsmIngest.RawWay(id);
+                        }
+                    } else if (name.equals("nd") && way != null) {
+                        way.refs.add(xml.getAttributeValue(null, "ref"));
+                    } else if (name.equals("tag")) {
+                        String k = xml.getAttributeValue(null, "k");
+                        String v = xml.getAttributeValue(null, "v");
+                        if (way != null) {
+                            if (k.equals("highway")) {
+                                way.highway = v;
+                            } else if (k.equals("maxspeed")) {
+                                way.maxspeed = v;
+                            } else if (k.equals("name")) {
+                                way.name = v;
+                            }
+                        } else if (node != null && k.equals("name")) {
+                            node.name = v;
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = xml.getLocalName();
+                    if (name.equals("node") && node != null) {
+                        change.nodes.put(node.id, node);
+                        node = null;
+                    } else if (name.equals("way") && way != null) {
+                        change.ways.put(Long.parseLong(way.id), way.road());
+                        way = null;
+                    }
+                }
+            }
+        } finally {
+            xml.close();
+        }
+        return change;
+    }
+}
@@ -0,0 +1,454 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Pipelined reader of OSM XML files into a GraphDB. One thread tokenises the file with StAX
+ * and cuts the elements it cares about into batches of raw strings; worker threads parse the
+ * numbers, build the nodes and work out which ways are roads and how fast they are; and the
+ * calling thread merges the finished batches into the graph in file order, so the result is
+ * exactly what a single pass over the file would give.
+ *
+ * The file is streamed twice. The first pass only looks at ways and collects the ids of the
+ * nodes on highways: roads, and the footways and other paths a later change may turn into
+ * roads. The second builds just those nodes and the named ones, plus the roads. Most nodes of
+ * an extract outline buildings and coastlines, so this keeps the peak heap during a load
+ * close to the size of the graph it produces. Files may be gzip or bzip2 compressed.
+ *
+ * See OSM documentation on
+ * <a href="http://wiki.openstreetmap.org/wiki/Key:highway">the highway tag</a>,
+ * <a href="http://wiki.openstreetmap.org/wiki/Way">the way XML element</a> and
+ * <a href="http://wiki.openstreetmap.org/wiki/Node">the node XML element</a>.
+ */
+final class OsmIngest {
+    /**
+     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
+     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
+     * roads, but in practice we walk all over them with such impunity that we forget cars can
+     * actually drive on them.
+     */
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList(
+            "motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
+            "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
+            "secondary_link", "tertiary_link"));
+    /** Elements per batch handed to a worker. */
+    private static final int BATCH_ROWS = 4096;
+    /** Batches in flight per worker before the tokeniser waits for the merge to catch up. */
+    private static final int BATCHES_PER_WORKER = 4;
+    /** Marks the end of the file in the queue of batches. */
+    private static final Future<List<Object>> END = new FutureTask<>(() -> null);
+
+    private OsmIngest() {
+    }
+
+    /** Opens the OSM XML for one pass over it; called once per pass. */
+    interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /** Size and speed of one ingest. */
+    static final class Stats {
+        /** Nodes and ways in the file. */
+        final long rows;
+        final long nanos;
+        final int threads;
+
+        Stats(long rows, long nanos, int threads) {
+            this.rows = rows;
+            this.nanos = nanos;
+            this.threads = threads;
+        }
+
+        double rowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows in %.2f s on %d workers, %.0f rows/s", rows,
+                    nanos / 1e9, threads, rowsPerSecond());
+        }
+    }
+
+    /**
+     * Read the OSM file, plain or compressed, into g with the given number of worker
+     * threads.
+     */
+    static Stats read(File osm, GraphDB g, int threads) throws IOException, XMLStreamException {
+        return read(() -> decompressed(new FileInputStream(osm)), g, threads);
+    }
+
+    /** Same as above, opening the OSM XML for each pass from source. */
+    static Stats read(Source source, GraphDB g, int threads)
+            throws IOException, XMLStreamException {
+        long start = System.nanoTime();
+        int workers = Math.max(1, threads);
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "osm-ingest");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            LongList onHighways = new LongList();
+            try (InputStream in = source.open()) {
+                pass(in, pool, workers, null, row -> onHighways.addAll(
+                        row instanceof Road ? ((Road) row).nodes : (long[]) row));
+            }
+            long[] keep = onHighways.sortedDistinct();
+            long rows;
+            try (InputStream in = source.open()) {
+                rows = pass(in, pool, workers, keep, row -> merge(g, row));
+            }
+            return new Stats(rows, System.nanoTime() - start, workers);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * One pass over the XML in in, handing every parsed row to merge in file order. On the
+     * first pass keep is null and only roads are produced, plus the nodes of every other
+     * highway as a long[]; on the second, nodes are produced too if their id is in the
+     * sorted array keep or they have a name.
+     * @return the number of nodes and ways in the file.
+     */
+    private static long pass(InputStream in, ExecutorService pool, int workers, long[] keep,
+                             Consumer<Object> merge) throws IOException, XMLStreamException {
+        BlockingQueue<Future<List<Object>>> batches =
+                new ArrayBlockingQueue<>(BATCHES_PER_WORKER * workers);
+        Tokenizer tokenizer = new Tokenizer(in, pool, batches, keep);
+        Thread reader = new Thread(tokenizer, "osm-tokenizer");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            for (Future<List<Object>> batch = batches.take(); batch != END;
+                 batch = batches.take()) {
+                for (Object row : get(batch)) {
+                    merge.accept(row);
+                }
+            }
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            reader.interrupt();
+        }
+        if (tokenizer.failure instanceof XMLStreamException) {
+            throw (XMLStreamException) tokenizer.failure;
+        } else if (tokenizer.failure instanceof Error) {
+            throw (Error) tokenizer.failure;
+        } else if (tokenizer.failure != null) {
+            throw new IOException(tokenizer.failure);
+        }
+        return tokenizer.rows;
+    }
+
+    /** in, decompressed if it starts like a gzip or bzip2 stream. */
+    static InputStream decompressed(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+        buffered.mark(3);
+        int b0 = buffered.read(), b1 = buffered.read(), b2 = buffered.read();
+        buffered.reset();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return new BufferedInputStream(new GZIPInputStream(buffered, 1 << 16), 1 << 16);
+        } else if (b0 == 'B' && b1 == 'Z' && b2 == 'h') {
+            /* Parallel compressors write several bzip2 streams back to back; read them all. */
+            return new BufferedInputStream(new BZip2CompressorInputStream(buffered, true),
+                    1 << 16);
+        }
+        return buffered;
+    }
+
+    /** Add one parsed node or road to the graph. */
+    private static void merge(GraphDB g, Object row) {
+        if (row instanceof GraphDB.Node) {
+            GraphDB.Node n = (GraphDB.Node) row;
+            g.addnode(n);
+            g.node_number++;
+            if (n.name != null) {
+                g.addtn(n.name);
+                g.addname2node(n.name, n);
+            }
+        } else {
+            Road road = (Road) row;
+            g.addroad(road.id, road.nodes, road.speed, g.addwayname(road.name));
+        }
+    }
+
+    private static List<Object> get(Future<List<Object>> batch) throws IOException {
+        try {
+            return batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /** A node as found in the file, before any number is parsed. */
+    private static final class RawNode {
+        final String id, lat, lon;
+        String name;
+
+        RawNode(String id, String lat, String lon) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    /** A way as found in the file, before any number is parsed. */
+    static final class RawWay {
+        final String id;
+        final List<String> refs = new ArrayList<>();
+        String highway, maxspeed, name;
+
+        RawWay(String id) {
+            this.id = id;
+        }
+
+        /** The way as a Road, or null if it is not one. */
+        Road road() {
+            if (highway == null || !ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+                return null;
+            }
+            return new Road(Long.parseLong(id), nodes(),
+                    SpeedLimits.metersPerSecond(maxspeed, highway), name);
+        }
+
+        /** Ids of the nodes of the way, in order. */
+        long[] nodes() {
+            long[] nodes = new long[refs.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = Long.parseLong(refs.get(i));
+            }
+            return nodes;
+        }
+    }
+
+    /** A way that is a road, ready to become edges. */
+    static final class Road {
+        final long id;
+        final long[] nodes;
+        /** Speed along it, in meters per second. */
+        final double speed;
+        final String name;
+
+        Road(long id, long[] nodes, double speed, String name) {
+            this.id = id;
+            this.nodes = nodes;
+            this.speed = speed;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Parse one batch: nodes to keep or with a name become GraphDB.Nodes, ways that are
+     * roads become Roads, on the first pass other highways become the ids of their nodes,
+     * and everything else is dropped. Runs on a worker thread.
+     */
+    private static List<Object> parse(List<Object> raw, long[] keep) {
+        List<Object> parsed = new ArrayList<>(raw.size());
+        for (Object row : raw) {
+            if (row instanceof RawNode) {
+                RawNode r = (RawNode) row;
+                long id = Long.parseLong(r.id);
+                if (r.name == null && Arrays.binarySearch(keep, id) < 0) {
+                    continue;
+                }
+                GraphDB.Node n = new GraphDB.Node(id, Double.parseDouble(r.lat),
+                        Double.parseDouble(r.lon));
+                n.name = r.name;
+                parsed.add(n);
+            } else {
+                RawWay way = (RawWay) row;
+                Road road = way.road();
+                if (road != null) {
+                    parsed.add(road);
+                } else if (keep == null && way.highway != null) {
+                    parsed.add(way.nodes());
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Walks the XML with StAX, handing a batch to the workers every BATCH_ROWS nodes and
+     * ways, and queues the pending results in file order for the merge. Without nodes to
+     * keep, nodes are counted but never batched.
+     */
+    private static final class Tokenizer implements Runnable {
+        private final InputStream in;
+        private final ExecutorService pool;
+        private final BlockingQueue<Future<List<Object>>> batches;
+        private final long[] keep;
+        private List<Object> batch = new ArrayList<>(BATCH_ROWS);
+        /** Nodes and ways seen so far; read by the merge once this thread has finished. */
+        long rows;
+        /** Whatever stopped the tokenizer early, even an Error; null if it read to the end. */
+        volatile Throwable failure;
+
+        Tokenizer(InputStream in, ExecutorService pool,
+                  BlockingQueue<Future<List<Object>>> batches, long[] keep) {
+            this.in = in;
+            this.pool = pool;
+            this.batches = batches;
+            this.keep = keep;
+        }
+
+        /**
+         * Tokenize the whole input, then queue END. END is queued however the tokenizer
+         * stops, even on an OutOfMemoryError, since the merge blocks until it sees it; only
+         * an interrupt skips it, as the merge only interrupts this thread once it is done.
+         */
+        @Override
+        public void run() {
+            boolean interrupted = false;
+            try {
+                tokenize();
+                flush();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                if (!interrupted) {
+                    try {
+                        batches.put(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private void tokenize() throws XMLStreamException, InterruptedException {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            XMLStreamReader xml = factory.createXMLStreamReader(in);
+            RawNode node = null;
+            RawWay way = null;
+            try {
+                while (xml.hasNext()) {
+                    int event = xml.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = xml.getLocalName();
+                        if (name.equals("node")) {
+                            way = null;
+                            if (keep == null) {
+                                rows++;
+                                continue;
+                            }
+                            node = new RawNode(xml.getAttributeValue(null, "id"),
+                                    xml.getAttributeValue(null, "lat"),
+                                    xml.getAttributeValue(null, "lon"));
+                        } else if (name.equals("way")) {
+                            way = new RawWay(xml.getAttributeValue(null, "id"));
+                            node = null;
+                        } else if (name.equals("nd") && way != null) {
+                            way.refs.add(xml.getAttributeValue(null, "ref"));
+                        } else if (name.equals("tag")) {
+                            String k = xml.getAttributeValue(null, "k");
+                            String v = xml.getAttributeValue(null, "v");
+                            if (way != null) {
+                                if (k.equals("highway")) {
+                                    way.highway = v;
+                                } else if (k.equals("maxspeed")) {
+                                    way.maxspeed = v;
+                                } else if (k.equals("name")) {
+                                    way.name = v;
+                                }
+                            } else if (node != null && k.equals("name")) {
+                                node.name = v;
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        /* Only complete elements are batched; a worker may start on a batch
+                         * the moment it is handed over. */
+                        String name = xml.getLocalName();
+                        if (name.equals("node") && node != null) {
+                            add(node);
+                            node = null;
+                        } else if (name.equals("way") && way != null) {
+                            add(way);
+                            way = null;
+                        }
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        }
+
+        private void add(Object row) throws InterruptedException {
+            rows++;
+            batch.add(row);
+            if (batch.size() == BATCH_ROWS) {
+                flush();
+            }
+        }
+
+        private void flush() throws InterruptedException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<Object> raw = batch;
+            batch = new ArrayList<>(BATCH_ROWS);
+            batches.put(pool.submit(() -> parse(raw, keep)));
+        }
+    }
+
+    /** Growable list of longs, so the ids of road nodes are never boxed. */
+    private static final class LongList {
+        private long[] items = new long[1024];
+        private int size;
+
+        void addAll(long[] xs) {
+            if (size + xs.length > items.length) {
+                items = Arrays.copyOf(items, Math.max(2 * items.length, size + xs.length));
+            }
+            System.arraycopy(xs, 0, items, size, xs.length);
+            size += xs.length;
+        }
+
+        /** The items in ascending order without repeats. */
+        long[] sortedDistinct() {
+            long[] sorted = Arrays.copyOf(items, size);
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (n == 0 || sorted[i] != sorted[n - 1]) {
+                    sorted[n++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, n);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Douglas-Peucker simplification of polylines, used to send routes at no more detail than
+ * the zoom level they are drawn at can show.
+ */
+class Polyline {
+    private Polyline() {
+    }
+
+    /**
+     * Indices of the points of the polyline (x[i], y[i]) to keep so that no dropped point lies
+     * further than tolerance from the simplified line. The first and last points are always
+     * kept, and the indices are returned in increasing order.
+     */
+    static int[] simplify(double[] x, double[] y, double tolerance) {
+        int n = x.length;
+        if (n <= 2) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        /* Explicit stack of [from, to] ranges; routes can be long enough to overflow recursion. */
+        int[] stack = new int[2 * n];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        double tol2 = tolerance * tolerance;
+        int kept = 2;
+        while (top > 0) {
+            int to = stack[--top];
+            int from = stack[--top];
+            int farthest = -1;
+            double max = tol2;
+            for (int i = from + 1; i < to; i++) {
+                double d = segmentDistance2(x[i], y[i], x[from], y[from], x[to], y[to]);
+                if (d > max) {
+                    max = d;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                kept++;
+                stack[top++] = from;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = to;
+            }
+        }
+        int[] result = new int[kept];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                result[j++] = i;
+            }
+        }
+        return result;
+    }
+
+    /** Squared distance from (px, py) to the segment from (ax, ay) to (bx, by). */
+    private static double segmentDistance2(double px, double py, double ax, double ay,
+                                           double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / len2;
+        t = Math.max(0, Math.min(1, t));
+        double ex = ax + t * dx - px, ey = ay + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * In-memory quadtree of the map tiles under the root tile. Tile (depth, x, y) is column x and
+ * row y (counted from the upper left) of the 2^depth by 2^depth grid of tiles at that depth;
+ * its file is named by the path of quadrant digits from the root, 1 = upper left,
+ * 2 = upper right, 3 = lower left, 4 = lower right, e.g. img/2143411.png. Depth 0 is the
+ * root tile itself, img/root.png.
+ *
+ * Because the tree is complete, it is stored implicitly: tile edges and file names are
+ * computed arithmetically once per depth and cached in arrays, so looking up the tiles of a
+ * query never touches the filesystem or walks nodes.
+ */
+class QuadTree {
+    /** Deepest level of tiles available. */
+    static final int MAX_DEPTH = 7;
+
+    private final double ullon, ullat, lrlon, lrlat;
+    private final int tileSize;
+    /** lonEdges[d][x] is the west edge of column x at depth d, for x in 0..2^d. */
+    private final double[][] lonEdges;
+    /** latEdges[d][y] is the north edge of row y at depth d, for y in 0..2^d. */
+    private final double[][] latEdges;
+    /** names[d][y * 2^d + x] is the file of tile (d, x, y). */
+    private final String[][] names;
+
+    QuadTree(String imgRoot, double ullon, double ullat, double lrlon, double lrlat,
+             int tileSize) {
+        this.ullon = ullon;
+        this.ullat = ullat;
+        this.lrlon = lrlon;
+        this.lrlat = lrlat;
+        this.tileSize = tileSize;
+        lonEdges = new double[MAX_DEPTH + 1][];
+        latEdges = new double[MAX_DEPTH + 1][];
+        names = new String[MAX_DEPTH + 1][];
+        char[] digits = new char[MAX_DEPTH];
+        for (int d = 0; d <= MAX_DEPTH; d++) {
+            int k = 1 << d;
+            lonEdges[d] = new double[k + 1];
+            latEdges[d] = new double[k + 1];
+            for (int i = 0; i <= k; i++) {
+                lonEdges[d][i] = ullon + (lrlon - ullon) * i / k;
+                latEdges[d][i] = ullat - (ullat - lrlat) * i / k;
+            }
+            names[d] = new String[k * k];
+            for (int y = 0; y < k; y++) {
+                for (int x = 0; x < k; x++) {
+                    for (int i = 0; i < d; i++) {
+                        int bit = d - 1 - i;
+                        digits[i] = (char) ('1' + ((x >> bit) & 1) + 2 * ((y >> bit) & 1));
+                    }
+                    names[d][y * k + x] = imgRoot + (d == 0 ? "root" : new String(digits, 0, d))
+                            + ".png";
+                }
+            }
+        }
+    }
+
+    /** Longitudinal distance per pixel of the tiles at depth d. */
+    double lonDPP(int depth) {
+        return (lrlon - ullon) / ((double) tileSize * (1 << depth));
+    }
+
+    /**
+     * Shallowest depth whose tiles have at most the given longitudinal distance per pixel,
+     * or MAX_DEPTH if even the deepest tiles are coarser than that.
+     */
+    int depthFor(double lonDPP) {
+        for (int d = 0; d < MAX_DEPTH; d++) {
+            if (lonDPP(d) <= lonDPP) {
+                return d;
+            }
+        }
+        return MAX_DEPTH;
+    }
+
+    /** Number of tiles along each side of the grid at depth d. */
+    int width(int depth) {
+        return 1 << depth;
+    }
+
+    /** Column at depth d containing longitude lon, clamped to the grid. */
+    int column(int depth, double lon) {
+        return clamp((int) Math.floor((lon - ullon) / (lrlon - ullon) * width(depth)), depth);
+    }
+
+    /** Row at depth d containing latitude lat, clamped to the grid. */
+    int row(int depth, double lat) {
+        return clamp((int) Math.floor((ullat - lat) / (ullat - lrlat) * width(depth)), depth);
+    }
+
+    /** West edge of column x at depth d; x = width(d) gives the east edge of the last one. */
+    double lon(int depth, int x) {
+        return lonEdges[depth][x];
+    }
+
+    /** North edge of row y at depth d; y = width(d) gives the south edge of the last one. */
+    double lat(int depth, int y) {
+        return latEdges[depth][y];
+    }
+
+    /** File name of tile (depth, x, y). */
+    String name(int depth, int x, int y) {
+        return names[depth][y * width(depth) + x];
+    }
+
+    /** True if the box intersects the root tile. */
+    boolean intersects(double qullon, double qullat, double qlrlon, double qlrlat) {
+        return qullon < lrlon && qlrlon > ullon && qullat > lrlat && qlrlat < ullat;
+    }
+
+    private int clamp(int i, int depth) {
+        return Math.max(0, Math.min(width(depth) - 1, i));
+    }
+}
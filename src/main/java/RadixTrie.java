@@ -0,0 +1,309 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prefix index of the cleaned location names: a path-compressed radix tree packed into flat
+ * arrays. The words are kept sorted, so the words below any node are one contiguous range of
+ * them, and every node stores that range. A prefix query walks down one node per edge,
+ * finding children by binary search on their first character and comparing edge labels in
+ * place, and answers with a slice of the sorted words without building any strings.
+ *
+ * Nodes are numbered breadth-first, so the children of a node are consecutive; the edge into
+ * a node spells words[lo] from its parent's depth up to its own.
+ *
+ * Words also have a static rank for autocomplete: words carried by more locations first,
+ * then shorter words, then alphabetical. Every node keeps its best TOP_K words, so a ranked
+ * query for up to TOP_K suggestions costs the walk down plus the suggestions themselves, no
+ * matter how many words match.
+ */
+final class RadixTrie {
+    /** Best words kept per node. */
+    static final int TOP_K = 10;
+    static final RadixTrie EMPTY = of(Collections.emptyList());
+
+    /** Distinct non-empty words in ascending order. */
+    private final String[] words;
+    /** How many locations carry each word. */
+    private final int[] weight;
+    /** Position of each word in ranked order, 0 for the best. */
+    private final int[] rank;
+    /** The words below node v are words[lo[v]] .. words[hi[v] - 1]. */
+    private final int[] lo, hi;
+    /** Length of the prefix node v stands for. */
+    private final int[] depth;
+    /** The children of node v are nodes child[v] .. child[v + 1] - 1, by first character. */
+    private final int[] child;
+    /** First character of the edge into node v. */
+    private final char[] first;
+    /** The best words below node v, best first: top[topStart[v]] .. top[topStart[v + 1] - 1]. */
+    private final int[] topStart, top;
+
+    private RadixTrie(String[] words, int[] weight, int[] rank, int[] lo, int[] hi, int[] depth,
+                      int[] child, char[] first, int[] topStart, int[] top) {
+        this.words = words;
+        this.weight = weight;
+        this.rank = rank;
+        this.lo = lo;
+        this.hi = hi;
+        this.depth = depth;
+        this.child = child;
+        this.first = first;
+        this.topStart = topStart;
+        this.top = top;
+    }
+
+    /**
+     * Index of the given words, each weighted by how often it is given; empty words are left
+     * out, since no prefix finds them.
+     */
+    static RadixTrie of(Collection<String> words) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String w : words) {
+            weights.merge(w, 1, Integer::sum);
+        }
+        return of(weights);
+    }
+
+    /** Index of the given words with the given weights; empty words are left out. */
+    static RadixTrie of(Map<String, Integer> weights) {
+        String[] sorted = weights.keySet().stream().filter(w -> !w.isEmpty()).sorted()
+                .toArray(String[]::new);
+        int n = sorted.length;
+        int[] weight = new int[n];
+        for (int i = 0; i < n; i++) {
+            weight[i] = weights.get(sorted[i]);
+        }
+        /* Every node but the root has a word of its own or at least two children. */
+        int cap = 2 * n + 1;
+        int[] lo = new int[cap], hi = new int[cap], depth = new int[cap], child = new int[cap + 1];
+        char[] first = new char[cap];
+        hi[0] = n;
+        int count = 1;
+        for (int v = 0; v < count; v++) {
+            child[v] = count;
+            int d = depth[v];
+            int i = lo[v];
+            if (i < hi[v] && sorted[i].length() == d) {
+                i++;
+            }
+            while (i < hi[v]) {
+                char c = sorted[i].charAt(d);
+                int j = i + 1;
+                while (j < hi[v] && sorted[j].charAt(d) == c) {
+                    j++;
+                }
+                lo[count] = i;
+                hi[count] = j;
+                depth[count] = commonPrefix(sorted[i], sorted[j - 1]);
+                first[count] = c;
+                count++;
+                i = j;
+            }
+        }
+        child[count] = count;
+        int[] rank = ranks(sorted, weight);
+        int[][] best = new int[count][];
+        int total = 0;
+        /* Children come after their parent, so going backwards every child is done first. */
+        for (int v = count - 1; v >= 0; v--) {
+            List<Integer> candidates = new ArrayList<>();
+            if (lo[v] < hi[v] && sorted[lo[v]].length() == depth[v]) {
+                candidates.add(lo[v]);
+            }
+            for (int c = child[v]; c < child[v + 1]; c++) {
+                for (int w : best[c]) {
+                    candidates.add(w);
+                }
+            }
+            candidates.sort(Comparator.comparingInt(w -> rank[w]));
+            best[v] = new int[Math.min(TOP_K, candidates.size())];
+            for (int i = 0; i < best[v].length; i++) {
+                best[v][i] = candidates.get(i);
+            }
+            total += best[v].length;
+        }
+        int[] topStart = new int[count + 1];
+        int[] top = new int[total];
+        for (int v = 0; v < count; v++) {
+            System.arraycopy(best[v], 0, top, topStart[v], best[v].length);
+            topStart[v + 1] = topStart[v] + best[v].length;
+        }
+        return new RadixTrie(sorted, weight, rank, Arrays.copyOf(lo, count),
+                Arrays.copyOf(hi, count), Arrays.copyOf(depth, count),
+                Arrays.copyOf(child, count + 1), Arrays.copyOf(first, count), topStart, top);
+    }
+
+    /** Rank of every word: heaviest first, then shortest, then alphabetical. */
+    private static int[] ranks(String[] words, int[] weight) {
+        Integer[] order = new Integer[words.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> weight[a] != weight[b]
+                ? Integer.compare(weight[b], weight[a])
+                : words[a].length() != words[b].length()
+                ? Integer.compare(words[a].length(), words[b].length()) : Integer.compare(a, b));
+        int[] rank = new int[words.length];
+        for (int i = 0; i < order.length; i++) {
+            rank[order[i]] = i;
+        }
+        return rank;
+    }
+
+    /** Number of words. */
+    int size() {
+        return words.length;
+    }
+
+    /** How many locations carry word, or 0 if it is not indexed. */
+    int weight(String word) {
+        int v = find(word);
+        return v >= 0 && words[lo[v]].equals(word) ? weight[lo[v]] : 0;
+    }
+
+    /** The words starting with prefix, in ascending order; a read-only view. */
+    List<String> withPrefix(String prefix) {
+        int v = find(prefix);
+        if (v < 0) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(words).subList(lo[v], hi[v]));
+    }
+
+    /**
+     * The best limit words starting with prefix, best first. Up to TOP_K of them come
+     * straight from the node the prefix leads to; more are ranked from its whole range, which
+     * costs a sort of it, so servers cap limit at TOP_K.
+     */
+    List<String> withPrefix(String prefix, int limit) {
+        int v = find(prefix);
+        if (v < 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>(Math.min(limit, hi[v] - lo[v]));
+        int stored = topStart[v + 1] - topStart[v];
+        if (limit <= stored || stored == hi[v] - lo[v]) {
+            for (int i = topStart[v]; i < topStart[v + 1] && result.size() < limit; i++) {
+                result.add(words[top[i]]);
+            }
+            return result;
+        }
+        /* Rank in the high half, word in the low half: sorting the keys sorts the words. */
+        long[] range = new long[hi[v] - lo[v]];
+        for (int i = 0; i < range.length; i++) {
+            int w = lo[v] + i;
+            range[i] = (long) rank[w] << 32 | w;
+        }
+        Arrays.sort(range);
+        for (int i = 0; i < range.length && i < limit; i++) {
+            result.add(words[(int) range[i]]);
+        }
+        return result;
+    }
+
+    /** The highest node whose words all start with prefix, or -1 if no word does. */
+    private int find(String prefix) {
+        int v = 0;
+        for (int d = 0; d < prefix.length(); ) {
+            v = childAt(v, prefix.charAt(d));
+            if (v < 0) {
+                return -1;
+            }
+            String label = words[lo[v]];
+            int end = Math.min(depth[v], prefix.length());
+            for (int k = d + 1; k < end; k++) {
+                if (label.charAt(k) != prefix.charAt(k)) {
+                    return -1;
+                }
+            }
+            d = end;
+        }
+        return v;
+    }
+
+    /** The child of v whose edge starts with c, or -1. */
+    private int childAt(int v, char c) {
+        int a = child[v], b = child[v + 1] - 1;
+        while (a <= b) {
+            int mid = (a + b) >>> 1;
+            if (first[mid] < c) {
+                a = mid + 1;
+            } else if (first[mid] > c) {
+                b = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length()), i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Append the index as: int count, then per word int length and UTF-8; int nodes; then
+     * int[count] weight and rank, int[nodes] lo, hi and depth, int[nodes + 1] child and
+     * topStart, char[nodes] first; int length, then int[length] top.
+     */
+    void write(GraphSnapshot.Writer w) throws IOException {
+        w.putInt(words.length);
+        for (String word : words) {
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            w.putInt(bytes.length);
+            w.put(bytes);
+        }
+        w.putInt(lo.length);
+        for (int[] column : new int[][]{weight, rank, lo, hi, depth, child, topStart}) {
+            for (int x : column) {
+                w.putInt(x);
+            }
+        }
+        for (char c : first) {
+            w.putChar(c);
+        }
+        w.putInt(top.length);
+        for (int x : top) {
+            w.putInt(x);
+        }
+    }
+
+    /** Read an index written by write, from the current position of buf. */
+    static RadixTrie read(ByteBuffer buf) {
+        String[] words = new String[buf.getInt()];
+        for (int i = 0; i < words.length; i++) {
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            words[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        int nodes = buf.getInt();
+        int[] weight = ints(buf, words.length), rank = ints(buf, words.length);
+        int[] lo = ints(buf, nodes), hi = ints(buf, nodes), depth = ints(buf, nodes);
+        int[] child = ints(buf, nodes + 1), topStart = ints(buf, nodes + 1);
+        char[] first = new char[nodes];
+        buf.asCharBuffer().get(first);
+        buf.position(buf.position() + 2 * nodes);
+        int[] top = ints(buf, buf.getInt());
+        return new RadixTrie(words, weight, rank, lo, hi, depth, child, first, topStart, top);
+    }
+
+    private static int[] ints(ByteBuffer buf, int n) {
+        int[] xs = new int[n];
+        buf.asIntBuffer().get(xs);
+        buf.position(buf.position() + 4 * n);
+        return xs;
+    }
+}
@@ -8,13 +8,14 @@ import java.util.Map;
  * not draw the output correctly.
  */
 public class Rasterer {
-    // Recommended: QuadTree instance variable. You'll need to make
-    //              your own QuadTree since there is no built-in quadtree in Java.
+    /** All tiles under the root tile, with their bounds and file names precomputed. */
+    private final QuadTree tiles;
 
     /** imgRoot is the name of the directory containing the images.
      *  You may not actually need this for your class. */
     public Rasterer(String imgRoot) {
-        // YOUR CODE HERE
+        tiles = new QuadTree(imgRoot, MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT, MapServer.TILE_SIZE);
     }
 
     /**
@@ -44,16 +45,63 @@ public class Rasterer {
      * "depth"         -> Number, the 1-indexed quadtree depth of the nodes of the rastered image.
      *                    Can also be interpreted as the length of the numbers in the image
      *                    string. <br>
+     * "tile_ul_x"     -> Number, the column of the upper left tile in its depth's grid. <br>
+     * "tile_ul_y"     -> Number, the row of the upper left tile in its depth's grid. <br>
      * "query_success" -> Boolean, whether the query was able to successfully complete. Don't
      *                    forget to set this to true! <br>
      * @see #REQUIRED_RASTER_REQUEST_PARAMS
      */
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
-        // System.out.println(params);
+        double ullon = params.get("ullon"), ullat = params.get("ullat");
+        double lrlon = params.get("lrlon"), lrlat = params.get("lrlat");
+        double w = params.get("w");
         Map<String, Object> results = new HashMap<>();
-        System.out.println("Since you haven't implemented getMapRaster, nothing is displayed in "
-                           + "your browser.");
+        if (ullon >= lrlon || ullat <= lrlat || w <= 0
+                || !tiles.intersects(ullon, ullat, lrlon, lrlat)) {
+            results.put("render_grid", new String[0][0]);
+            results.put("raster_ul_lon", ullon);
+            results.put("raster_ul_lat", ullat);
+            results.put("raster_lr_lon", lrlon);
+            results.put("raster_lr_lat", lrlat);
+            results.put("depth", 0);
+            results.put("query_success", false);
+            return results;
+        }
+
+        int depth = tiles.depthFor((lrlon - ullon) / w);
+        int x0 = tiles.column(depth, ullon), x1 = tiles.column(depth, lrlon);
+        int y0 = tiles.row(depth, ullat), y1 = tiles.row(depth, lrlat);
+        String[][] grid = new String[y1 - y0 + 1][x1 - x0 + 1];
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                grid[y - y0][x - x0] = tiles.name(depth, x, y);
+            }
+        }
+        results.put("render_grid", grid);
+        results.put("raster_ul_lon", tiles.lon(depth, x0));
+        results.put("raster_ul_lat", tiles.lat(depth, y0));
+        results.put("raster_lr_lon", tiles.lon(depth, x1 + 1));
+        results.put("raster_lr_lat", tiles.lat(depth, y1 + 1));
+        results.put("depth", depth);
+        results.put("tile_ul_x", x0);
+        results.put("tile_ul_y", y0);
+        results.put("query_success", true);
         return results;
     }
 
+    /**
+     * File of the tile in column x and row y of the grid at the given depth, counted from the
+     * upper left of the root tile, or null if there is no such tile.
+     */
+    public String tilePath(int depth, int x, int y) {
+        if (depth < 0 || depth > QuadTree.MAX_DEPTH) {
+            return null;
+        }
+        int k = tiles.width(depth);
+        if (x < 0 || x >= k || y < 0 || y >= k) {
+            return null;
+        }
+        return tiles.name(depth, x, y);
+    }
+
 }
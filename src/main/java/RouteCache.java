@@ -0,0 +1,105 @@
+/**
+ * Cache of routes between snapped endpoints. Route traffic is very repetitive, the same
+ * buildings and stations over and over, so after both points are snapped to their closest
+ * vertices the search result for that (start, end, metric) is looked up before searching.
+ * Routes are kept as arrays of vertex ids and the cache is bounded by their total length.
+ *
+ * Entries are only valid for the version of the graph they were found in: keys carry it, and
+ * once a newer version is asked about, every cached route is dropped.
+ */
+class RouteCache {
+    private static final long[] NO_ROUTE = new long[0];
+
+    private final Router.Mode mode;
+    private final boolean landmarks;
+    private final LruCache<Key, long[]> cache;
+    /** Newest graph version asked about so far. */
+    private long version;
+
+    /**
+     * @param mode How to search on a miss.
+     * @param landmarks Whether A* searches are guided by the graph's landmarks rather than
+     *                  the metric's straight-line bound.
+     * @param capacity Upper bound on the total number of vertices of the cached routes.
+     */
+    RouteCache(Router.Mode mode, boolean landmarks, long capacity) {
+        this.mode = mode;
+        this.landmarks = landmarks;
+        this.cache = new LruCache<>(capacity, route -> route.length + 1);
+    }
+
+    /**
+     * Ids of the vertices of the shortest route in metric between the vertices closest to
+     * the two points, or an empty array if there is none. The result is shared and must
+     * not be modified.
+     */
+    long[] route(GraphDB g, double stlon, double stlat, double destlon, double destlat,
+                 Router.Metric metric) {
+        seen(g.version());
+        int s = g.closestIndex(stlon, stlat);
+        int t = g.closestIndex(destlon, destlat);
+        if (s < 0 || t < 0) {
+            return NO_ROUTE;
+        }
+        return cache.get(new Key(s, t, metric, g.version()), k -> search(g, s, t, metric));
+    }
+
+    /** Hit, miss and eviction counters of the cache. */
+    LruCache<Key, long[]> stats() {
+        return cache;
+    }
+
+    /**
+     * Drop every cached route the first time a newer graph version is asked about. Requests
+     * still running on an older version finish under keys nobody asks for any more.
+     */
+    private synchronized void seen(long v) {
+        if (v > version) {
+            version = v;
+            cache.clear();
+        }
+    }
+
+    private long[] search(GraphDB g, int s, int t, Router.Metric metric) {
+        /* Landmarks still being computed after a change leave the plain heuristic. */
+        Router.Heuristic h = landmarks ? g.readyLandmarks(metric) : null;
+        if (h == null) {
+            h = metric.heuristic();
+        }
+        int[] path = Router.path(g, s, t, metric, mode, h, null);
+        long[] ids = new long[path.length];
+        for (int i = 0; i < path.length; i++) {
+            ids[i] = g.idAt(path[i]);
+        }
+        return ids;
+    }
+
+    /** Snapped endpoints and metric of a route, and the graph version it was found in. */
+    static final class Key {
+        final int start, end;
+        final Router.Metric metric;
+        final long version;
+
+        Key(int start, int end, Router.Metric metric, long version) {
+            this.start = start;
+            this.end = end;
+            this.metric = metric;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return start == k.start && end == k.end && metric == k.metric
+                    && version == k.version;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((start * 31 + end) * 31 + metric.ordinal()) * 31 + Long.hashCode(version);
+        }
+    }
+}
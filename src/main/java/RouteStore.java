@@ -0,0 +1,144 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * The current route of every client, keyed by an opaque route token the client presents with
+ * each request. Routes are stored as immutable arrays of node ids, so a request rendering one
+ * never sees it change underneath it. The store is bounded: routes not used for a while
+ * expire, and once it holds too many routes the least recently used ones are dropped.
+ */
+class RouteStore {
+    private static final long[] NO_ROUTE = new long[0];
+    private static final char[] TOKEN_CHARS =
+            "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final int TOKEN_LENGTH = 22;
+    /** Share of capacity a sweep brings the store down to, so sweeps are rare. */
+    private static final double SWEEP_TO = 0.9;
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, Entry> routes = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    /** Set while a thread sweeps, so others go on rather than sweep too. */
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * @param capacity Most routes kept at once.
+     * @param ttlMillis Routes not read or written for this long are dropped.
+     */
+    RouteStore(int capacity, long ttlMillis) {
+        this(capacity, ttlMillis, System::currentTimeMillis);
+    }
+
+    /** Same as above, with the time in milliseconds read from clock. */
+    RouteStore(int capacity, long ttlMillis, LongSupplier clock) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+    }
+
+    /** A fresh, unguessable route token. */
+    String newToken() {
+        char[] token = new char[TOKEN_LENGTH];
+        for (int i = 0; i < token.length; i++) {
+            token[i] = TOKEN_CHARS[random.nextInt(TOKEN_CHARS.length)];
+        }
+        return new String(token);
+    }
+
+    /** The route stored under token, or an empty array if there is none or it expired. */
+    long[] get(String token) {
+        if (token == null) {
+            return NO_ROUTE;
+        }
+        Entry e = routes.get(token);
+        long now = clock.getAsLong();
+        if (e == null) {
+            return NO_ROUTE;
+        }
+        if (now - e.touched > ttlMillis) {
+            routes.remove(token, e);
+            return NO_ROUTE;
+        }
+        e.touched = now;
+        return e.route;
+    }
+
+    /** Store route as the current route of token, replacing any previous one. */
+    void put(String token, List<Long> route) {
+        long[] ids = new long[route.size()];
+        int i = 0;
+        for (long id : route) {
+            ids[i++] = id;
+        }
+        put(token, ids);
+    }
+
+    /** Same as above for a route already in array form, which is kept, not copied. */
+    void put(String token, long[] route) {
+        routes.put(token, new Entry(route, clock.getAsLong()));
+        if (routes.size() > capacity && sweeping.compareAndSet(false, true)) {
+            try {
+                sweep();
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+
+    /** Forget the route of token. */
+    void remove(String token) {
+        if (token != null) {
+            routes.remove(token);
+        }
+    }
+
+    int size() {
+        return routes.size();
+    }
+
+    /**
+     * Drop every expired route, then the least recently used ones until the store is down to
+     * SWEEP_TO of its capacity. One pass collects the last use of every route and the cutoff
+     * is read off them sorted, so a sweep costs O(n log n), but it leaves room for a tenth of
+     * the capacity of puts before the next one.
+     */
+    private void sweep() {
+        long now = clock.getAsLong();
+        routes.values().removeIf(e -> now - e.touched > ttlMillis);
+        int excess = routes.size() - (int) (capacity * SWEEP_TO);
+        if (excess <= 0) {
+            return;
+        }
+        /* Other threads may add routes meanwhile; those are new and stay anyway. */
+        long[] touched = new long[routes.size()];
+        int n = 0;
+        for (Entry e : routes.values()) {
+            if (n == touched.length) {
+                break;
+            }
+            touched[n++] = e.touched;
+        }
+        if (n == 0) {
+            return;
+        }
+        Arrays.sort(touched, 0, n);
+        long cutoff = touched[Math.min(excess, n) - 1];
+        routes.values().removeIf(e -> e.touched <= cutoff);
+    }
+
+    private static final class Entry {
+        final long[] route;
+        volatile long touched;
+
+        Entry(long[] route, long touched) {
+            this.route = route;
+            this.touched = touched;
+        }
+    }
+}
@@ -1,4 +1,11 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * This class provides a shortestPath method for finding routes between two points
@@ -10,10 +17,893 @@ import java.util.LinkedList;
  */
 public class Router {
     /**
-     * Return a LinkedList of <code>Long</code>s representing the shortest path from st to dest, 
+     * Lower bound on the remaining cost from vertex v to vertex target, both given as dense
+     * indices into g. A* only returns shortest paths if this never overestimates.
+     */
+    public interface Heuristic {
+        double estimate(GraphDB g, int v, int target);
+    }
+
+    /** No estimate at all, which turns A* back into Dijkstra's. */
+    public static final Heuristic DIJKSTRA = (g, v, t) -> 0;
+
+    /** Straight-line distance in degrees, exactly the metric GraphDB weights its edges with. */
+    public static final Heuristic EUCLIDEAN = (g, v, t) -> {
+        double dlon = g.lonAt(v) - g.lonAt(t);
+        double dlat = g.latAt(v) - g.latAt(t);
+        return Math.sqrt(dlon * dlon + dlat * dlat);
+    };
+
+    /**
+     * Great-circle distance expressed in degrees of arc. A degree of longitude is shorter
+     * than a degree of latitude away from the equator, so this never exceeds the Euclidean
+     * degree distance and stays admissible for GraphDB's weights, just less tight.
+     */
+    public static final Heuristic HAVERSINE = (g, v, t) -> {
+        double phi1 = Math.toRadians(g.latAt(v));
+        double phi2 = Math.toRadians(g.latAt(t));
+        double sinDphi = Math.sin((phi2 - phi1) / 2);
+        double sinDlambda = Math.sin(Math.toRadians(g.lonAt(t) - g.lonAt(v)) / 2);
+        double a = sinDphi * sinDphi + Math.cos(phi1) * Math.cos(phi2) * sinDlambda * sinDlambda;
+        return Math.toDegrees(2 * Math.asin(Math.min(1, Math.sqrt(a))));
+    };
+
+    /**
+     * Straight-line travel time in seconds at the fastest speed of any road in g: no road
+     * gets anywhere faster, so this bounds the TIME metric the way EUCLIDEAN bounds DISTANCE.
+     */
+    public static final Heuristic TRAVEL_TIME = (g, v, t) ->
+            SpeedLimits.meters(g.lonAt(v), g.latAt(v), g.lonAt(t), g.latAt(t)) / g.fastest();
+
+    /** What a shortest path is shortest in. */
+    public enum Metric {
+        /** Length along the roads, in the degree units of GraphDB.distance. */
+        DISTANCE,
+        /** Travel time at each road's speed limit, in seconds. */
+        TIME;
+
+        /** Cost of edge slot e of c in this metric. */
+        double cost(GraphStore c, int e) {
+            return this == TIME ? c.time(e) : c.weight(e);
+        }
+
+        /** The straight-line bound that suits this metric. */
+        public Heuristic heuristic() {
+            return this == TIME ? TRAVEL_TIME : EUCLIDEAN;
+        }
+    }
+
+    /** How shortestPath finds its path. */
+    public enum Mode {
+        /** A* over the road graph itself; needs no preprocessing. */
+        A_STAR,
+        /**
+         * A* from both ends at once, meeting in the middle. Each half explores roughly a
+         * circle of half the radius, so long routes settle about half as many vertices.
+         */
+        BIDIRECTIONAL,
+        /**
+         * Bidirectional upward search in the graph's Contraction Hierarchy, which is built
+         * or loaded on first use. Queries settle a few hundred vertices at most.
+         */
+        CONTRACTION_HIERARCHY
+    }
+
+    /** How much work a query did, for tuning and monitoring. */
+    public static final class SearchStats {
+        /** Vertices settled by the search from the start, or by the only search. */
+        public int forwardSettled;
+        /** Vertices settled by the search from the destination, if there was one. */
+        public int backwardSettled;
+    }
+
+    /**
+     * One instruction of turn-by-turn directions: how to turn onto a way, and how far to
+     * follow it before the next instruction.
+     */
+    public static final class NavigationDirection {
+        public static final int START = 0;
+        public static final int STRAIGHT = 1;
+        public static final int SLIGHT_LEFT = 2;
+        public static final int SLIGHT_RIGHT = 3;
+        public static final int LEFT = 4;
+        public static final int RIGHT = 5;
+        public static final int SHARP_LEFT = 6;
+        public static final int SHARP_RIGHT = 7;
+        public static final int ARRIVE = 8;
+        /** What to tell the user for each direction constant. */
+        public static final String[] DIRECTIONS = {"Start", "Continue straight", "Slight left",
+            "Slight right", "Turn left", "Turn right", "Sharp left", "Sharp right", "Arrive"};
+        /** Name given to ways without one. */
+        public static final String UNKNOWN_ROAD = "unknown road";
+
+        /** One of the direction constants above. */
+        public final int direction;
+        /** Name of the way to follow. */
+        public final String way;
+        /** How far to follow it, in miles; 0 for ARRIVE. */
+        public final double distance;
+
+        NavigationDirection(int direction, String way, double distance) {
+            this.direction = direction;
+            this.way = way;
+            this.distance = distance;
+        }
+
+        @Override
+        public String toString() {
+            if (direction == ARRIVE) {
+                return String.format("%s on %s.", DIRECTIONS[direction], way);
+            }
+            return String.format("%s on %s and continue for %.3f miles.",
+                    DIRECTIONS[direction], way, distance);
+        }
+    }
+
+    /** One of several routes between the same two points, as returned by alternatives. */
+    public static final class Alternative {
+        /** Ids of the vertices of the route, from start to destination. */
+        public final long[] vertices;
+        /** Total cost of the route in the metric it was found in. */
+        public final double length;
+        /** Fraction of length shared with the routes listed before this one; 0 for the first. */
+        public final double overlap;
+
+        Alternative(long[] vertices, double length, double overlap) {
+            this.vertices = vertices;
+            this.length = length;
+            this.overlap = overlap;
+        }
+    }
+
+    /** Longest an alternative route may be, as a multiple of the shortest route. */
+    static final double MAX_STRETCH = 1.25;
+    /** Most of an alternative route that may be shared with the routes listed before it. */
+    static final double MAX_OVERLAP = 0.7;
+    /**
+     * Shortest plateau, as a fraction of the shortest route, for which a detour is offered;
+     * shorter ones only differ from a better route by a block or two.
+     */
+    static final double MIN_PLATEAU = 0.1;
+
+    /** Meters in a mile, for the lengths of directions. */
+    private static final double METERS_PER_MILE = 1609.344;
+
+    /** Search arrays are sized to the graph and reused by every query on the same thread. */
+    private static final ThreadLocal<SearchState> STATE = new ThreadLocal<>();
+    /** Second set of search arrays for the backward half of bidirectional searches. */
+    private static final ThreadLocal<SearchState> BACKWARD = new ThreadLocal<>();
+
+    /**
+     * Return a LinkedList of <code>Long</code>s representing the shortest path from st to dest,
      * where the longs are node IDs.
      */
     public static LinkedList<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon, double destlat) {
-        return new LinkedList<Long>();
+        return shortestPath(g, stlon, stlat, destlon, destlat, Metric.DISTANCE, Mode.A_STAR,
+                EUCLIDEAN, null);
+    }
+
+    /** Same as above, guiding the A* search with the given heuristic. */
+    public static LinkedList<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                                double destlon, double destlat, Heuristic h) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, Metric.DISTANCE, Mode.A_STAR,
+                h, null);
+    }
+
+    /** Same as above, finding the path the given way. */
+    public static LinkedList<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                                double destlon, double destlat, Mode mode) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, Metric.DISTANCE, mode,
+                EUCLIDEAN, null);
+    }
+
+    /** Same as above, finding the path that is shortest in the given metric. */
+    public static LinkedList<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                                double destlon, double destlat, Metric metric) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, metric, Mode.A_STAR,
+                metric.heuristic(), null);
+    }
+
+    /**
+     * Same as above, finding the path that is shortest in metric the given way, and guiding
+     * A* searches with h, which must bound metric and be consistent for bidirectional
+     * searches. If stats is not null, it receives the number of vertices each direction
+     * settled.
+     */
+    public static LinkedList<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                                double destlon, double destlat, Metric metric,
+                                                Mode mode, Heuristic h, SearchStats stats) {
+        LinkedList<Long> result = new LinkedList<>();
+        if (g.size() == 0) {
+            return result;
+        }
+        int s = g.closestIndex(stlon, stlat);
+        int t = g.closestIndex(destlon, destlat);
+        for (int v : path(g, s, t, metric, mode, h, stats)) {
+            result.add(g.idAt(v));
+        }
+        return result;
+    }
+
+    /**
+     * Dense indices of the vertices of the shortest path in metric from vertex s to vertex t,
+     * found the given way; empty if there is none. See shortestPath for h and stats.
+     */
+    static int[] path(GraphDB g, int s, int t, Metric metric, Mode mode, Heuristic h,
+                      SearchStats stats) {
+        int[] path;
+        switch (mode) {
+            case BIDIRECTIONAL:
+                path = searchBidirectional(g, s, t, h, metric);
+                break;
+            case CONTRACTION_HIERARCHY:
+                if (g.readyHierarchy(metric) != null) {
+                    path = searchHierarchy(g, s, t, metric);
+                    break;
+                }
+                /* Still being rebuilt after a change; A* finds the same route meanwhile. */
+                mode = Mode.A_STAR;
+                path = search(g, s, t, h, metric);
+                break;
+            default:
+                path = search(g, s, t, h, metric);
+                break;
+        }
+        if (stats != null) {
+            stats.forwardSettled = state(g).settledCount();
+            stats.backwardSettled = mode == Mode.A_STAR ? 0 : state(g, BACKWARD).settledCount();
+        }
+        return path;
+    }
+
+    /**
+     * Up to k meaningfully different routes between the vertices closest to the two points,
+     * shortest in metric first, by the plateau method. One Dijkstra tree grows from the start
+     * and one from the destination, both out to MAX_STRETCH times the shortest route. Chains
+     * of edges that are on both trees are plateaus: following the start's tree to a plateau,
+     * along it, and the destination's tree from there is a locally optimal route. Routes
+     * over plateaus of at least MIN_PLATEAU are tried cheapest first, keeping those that
+     * share at most MAX_OVERLAP of their length with routes already chosen. Both trees are
+     * shared by all candidates, so k alternatives cost two searches rather than k.
+     */
+    public static List<Alternative> alternatives(GraphDB g, double stlon, double stlat,
+                                                 double destlon, double destlat, Metric metric,
+                                                 int k) {
+        List<Alternative> result = new ArrayList<>();
+        if (g.size() == 0 || k <= 0) {
+            return result;
+        }
+        GraphStore c = g.store();
+        int s = g.closestIndex(stlon, stlat);
+        int t = g.closestIndex(destlon, destlat);
+        SearchState fw = state(g), bw = state(g, BACKWARD);
+        IntList tree = new IntList(64);
+        if (!grow(c, fw, s, t, metric, tree)) {
+            return result;
+        }
+        grow(c, bw, t, s, metric, null);
+        double best = fw.dist[t];
+
+        /* Collect plateaus by their first vertex: a, where a -> bw.parent[a] is on both trees
+         * but the forward tree edge into a is not. */
+        IntList starts = new IntList(16), ends = new IntList(16);
+        for (int i = 0; i < tree.size(); i++) {
+            int a = tree.get(i);
+            int u = fw.parent[a];
+            if (!onPlateau(fw, bw, a)
+                    || (u != -1 && bw.settled(u) && bw.parent[u] == a)) {
+                continue;
+            }
+            int end = a;
+            while (onPlateau(fw, bw, end)) {
+                end = bw.parent[end];
+            }
+            double cost = fw.dist[end] + bw.dist[end];
+            if (cost <= MAX_STRETCH * best && fw.dist[end] - fw.dist[a] >= MIN_PLATEAU * best) {
+                starts.add(a);
+                ends.add(end);
+            }
+        }
+        int[] order = new int[ends.size()];
+        double[] length = new double[order.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            length[i] = fw.dist[ends.get(i)] + bw.dist[ends.get(i)];
+        }
+        sortBy(order, length);
+
+        /* Edge slots of the routes chosen so far, in both directions, are marked in fw. */
+        fw.clearMarks(c.edges());
+        int[] shortest = fw.path(t);
+        result.add(new Alternative(ids(g, shortest), best, 0));
+        markEdges(c, shortest, fw);
+        for (int i = 0; i < order.length && result.size() < k; i++) {
+            int[] route = viaRoute(fw, bw, ends.get(order[i]), c.size());
+            if (route == null) {
+                continue;
+            }
+            double total = 0, shared = 0;
+            for (int j = 0; j + 1 < route.length; j++) {
+                int e = cheapest(c, route[j], route[j + 1], metric);
+                double cost = metric.cost(c, e);
+                total += cost;
+                if (fw.marked(e)) {
+                    shared += cost;
+                }
+            }
+            double overlap = total == 0 ? 1 : shared / total;
+            if (overlap <= MAX_OVERLAP) {
+                result.add(new Alternative(ids(g, route), total, overlap));
+                markEdges(c, route, fw);
+            }
+        }
+        return result;
+    }
+
+    /** Sort order ascending by key[order[i]], keeping ties in order, without boxing. */
+    private static void sortBy(int[] order, double[] key) {
+        int n = order.length;
+        int[] from = order, to = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid;
+                for (int out = lo; out < hi; out++) {
+                    boolean left = j == hi || (i < mid && key[from[i]] <= key[from[j]]);
+                    to[out] = left ? from[i++] : from[j++];
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != order) {
+            System.arraycopy(from, 0, order, 0, n);
+        }
+    }
+
+    /**
+     * Dijkstra from s in st until t is settled and then on out to MAX_STRETCH times its
+     * distance, recording settled vertices in order if settled is not null. False if t
+     * cannot be reached.
+     */
+    private static boolean grow(GraphStore c, SearchState st, int s, int t, Metric metric,
+                                IntList settled) {
+        st.reset();
+        st.relax(s, 0, -1, 0);
+        double bound = Double.POSITIVE_INFINITY;
+        while (!st.isEmpty() && st.peekKey() <= bound) {
+            int v = st.pop();
+            if (settled != null) {
+                settled.add(v);
+            }
+            double dv = st.dist[v];
+            if (v == t) {
+                bound = MAX_STRETCH * dv;
+            }
+            for (int e = c.begin(v), end = c.end(v); e < end; e++) {
+                int w = c.target(e);
+                double dw = dv + metric.cost(c, e);
+                if (!st.reached(w) || (dw < st.dist[w] && !st.settled(w))) {
+                    st.relax(w, dw, v, 0);
+                }
+            }
+        }
+        return st.settled(t);
+    }
+
+    /** True if the backward tree edge out of a is also an edge of the forward tree. */
+    private static boolean onPlateau(SearchState fw, SearchState bw, int a) {
+        if (!bw.settled(a) || bw.parent[a] == -1) {
+            return false;
+        }
+        int w = bw.parent[a];
+        return fw.settled(w) && fw.parent[w] == a;
+    }
+
+    /**
+     * The route along the forward tree to via and the backward tree from there on, or null
+     * if the two halves cross and the route would visit a vertex twice. Vertices of the
+     * route are marked in bw, which has room for n.
+     */
+    private static int[] viaRoute(SearchState fw, SearchState bw, int via, int n) {
+        int[] head = fw.path(via);
+        bw.clearMarks(n);
+        IntList route = new IntList(2 * head.length);
+        for (int v : head) {
+            bw.mark(v);
+            route.add(v);
+        }
+        for (int v = bw.parent[via]; v != -1; v = bw.parent[v]) {
+            if (!bw.mark(v)) {
+                return null;
+            }
+            route.add(v);
+        }
+        return route.toArray();
+    }
+
+    /** The edge slot from v to w that costs least in metric; they must be adjacent. */
+    private static int cheapest(GraphStore c, int v, int w, Metric metric) {
+        int best = -1;
+        for (int e = c.begin(v), end = c.end(v); e < end; e++) {
+            if (c.target(e) == w && (best < 0 || metric.cost(c, e) < metric.cost(c, best))) {
+                best = e;
+            }
+        }
+        return best;
+    }
+
+    /** Mark in marks every edge slot between consecutive vertices of route, both ways. */
+    private static void markEdges(GraphStore c, int[] route, SearchState marks) {
+        for (int i = 0; i + 1 < route.length; i++) {
+            markEdges(c, route[i], route[i + 1], marks);
+            markEdges(c, route[i + 1], route[i], marks);
+        }
+    }
+
+    private static void markEdges(GraphStore c, int v, int w, SearchState marks) {
+        for (int e = c.begin(v), end = c.end(v); e < end; e++) {
+            if (c.target(e) == w) {
+                marks.mark(e);
+            }
+        }
+    }
+
+    private static long[] ids(GraphDB g, int[] path) {
+        long[] ids = new long[path.length];
+        for (int i = 0; i < path.length; i++) {
+            ids[i] = g.idAt(path[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * Turn-by-turn directions along a route as returned by shortestPath: a START, a new
+     * instruction wherever the name of the way changes, and an ARRIVE. Empty if the route
+     * has fewer than two vertices.
+     */
+    public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
+        int[] path = new int[route.size()];
+        int i = 0;
+        for (long id : route) {
+            path[i++] = g.indexOf(id);
+        }
+        return directions(g, path);
+    }
+
+    /** Same as above, for a route kept as an array of vertex ids. */
+    static List<NavigationDirection> routeDirections(GraphDB g, long[] route) {
+        int[] path = new int[route.length];
+        for (int i = 0; i < route.length; i++) {
+            path[i] = g.indexOf(route[i]);
+        }
+        return directions(g, path);
+    }
+
+    /**
+     * Directions along a path of dense vertex indices, in one pass: the way of each step is
+     * read from the edge slot that leads to the next vertex, and the turn at a change of way
+     * from the bearings of the steps either side of it.
+     */
+    static List<NavigationDirection> directions(GraphDB g, int[] path) {
+        List<NavigationDirection> result = new ArrayList<>();
+        if (path.length < 2) {
+            return result;
+        }
+        GraphStore c = g.store();
+        int direction = NavigationDirection.START;
+        int way = -1;
+        double meters = 0, bearing = 0;
+        for (int i = 0; i + 1 < path.length; i++) {
+            int v = path[i], w = path[i + 1];
+            int e = edge(c, v, w);
+            int stepWay = e < 0 ? -1 : c.way(e);
+            double stepBearing = bearing(c, v, w);
+            if (i > 0 && stepWay != way) {
+                result.add(new NavigationDirection(direction, wayName(g, way),
+                        meters / METERS_PER_MILE));
+                direction = turn(stepBearing - bearing);
+                meters = 0;
+            }
+            way = stepWay;
+            bearing = stepBearing;
+            meters += SpeedLimits.meters(c.lon(v), c.lat(v), c.lon(w), c.lat(w));
+        }
+        result.add(new NavigationDirection(direction, wayName(g, way),
+                meters / METERS_PER_MILE));
+        result.add(new NavigationDirection(NavigationDirection.ARRIVE, wayName(g, way), 0));
+        return result;
+    }
+
+    /** The shortest edge slot from v to w, or -1 if they are not adjacent. */
+    private static int edge(GraphStore c, int v, int w) {
+        int best = -1;
+        for (int e = c.begin(v), end = c.end(v); e < end; e++) {
+            if (c.target(e) == w && (best < 0 || c.weight(e) < c.weight(best))) {
+                best = e;
+            }
+        }
+        return best;
+    }
+
+    private static String wayName(GraphDB g, int way) {
+        String name = g.wayName(way);
+        return name == null ? NavigationDirection.UNKNOWN_ROAD : name;
+    }
+
+    /**
+     * Compass bearing of the step from v to w in degrees clockwise from north, with
+     * longitudes shrunk by the cosine of the latitude so angles match the ground.
+     */
+    private static double bearing(GraphStore c, int v, int w) {
+        double dlon = (c.lon(w) - c.lon(v)) * Math.cos(Math.toRadians(c.lat(v)));
+        double dlat = c.lat(w) - c.lat(v);
+        return Math.toDegrees(Math.atan2(dlon, dlat));
+    }
+
+    /** The direction constant for a change of bearing of the given degrees. */
+    static int turn(double change) {
+        change = ((change % 360) + 540) % 360 - 180;
+        double angle = Math.abs(change);
+        boolean right = change > 0;
+        if (angle <= 15) {
+            return NavigationDirection.STRAIGHT;
+        } else if (angle <= 30) {
+            return right ? NavigationDirection.SLIGHT_RIGHT : NavigationDirection.SLIGHT_LEFT;
+        } else if (angle <= 100) {
+            return right ? NavigationDirection.RIGHT : NavigationDirection.LEFT;
+        }
+        return right ? NavigationDirection.SHARP_RIGHT : NavigationDirection.SHARP_LEFT;
+    }
+
+    /**
+     * Road distances between every source and every target point, each given as a
+     * {lon, lat} pair and snapped to its closest vertex. One one-to-many Dijkstra runs per
+     * source on the common fork-join pool.
+     * @return the distances row-major, entry i * targets.length + j being the distance
+     * from source i to target j in degrees, or -1 if target j cannot be reached.
+     */
+    public static double[] distanceMatrix(GraphDB g, double[][] sources, double[][] targets) {
+        return distanceMatrix(g, sources, targets, Metric.DISTANCE, ForkJoinPool.commonPool());
+    }
+
+    /** Same as above, measuring in the given metric and running the searches on pool. */
+    public static double[] distanceMatrix(GraphDB g, double[][] sources, double[][] targets,
+                                          Metric metric, ForkJoinPool pool) {
+        int n = sources.length, m = targets.length;
+        double[] result = new double[n * m];
+        if (m == 0) {
+            /* No target would ever stop a search, so each one would settle the whole graph. */
+            return result;
+        }
+        if (g.size() == 0) {
+            Arrays.fill(result, -1);
+            return result;
+        }
+        int[] from = g.closestIndex(column(sources, 0), column(sources, 1));
+        int[] to = g.closestIndex(column(targets, 0), column(targets, 1));
+        boolean[] wanted = new boolean[g.size()];
+        int distinct = 0;
+        for (int t : to) {
+            if (!wanted[t]) {
+                wanted[t] = true;
+                distinct++;
+            }
+        }
+        int targetCount = distinct;
+        List<Callable<Void>> rows = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int row = i;
+            rows.add(() -> {
+                SearchState st = oneToMany(g, from[row], wanted, targetCount, metric);
+                for (int j = 0; j < m; j++) {
+                    double d = st.settled(to[j]) ? st.dist[to[j]] : -1;
+                    result[row * m + j] = d;
+                }
+                return null;
+            });
+        }
+        for (Future<Void> f : pool.invokeAll(rows)) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Dijkstra from s in this thread's search state, stopping once all target vertices, those
+     * with wanted set, have been settled.
+     */
+    private static SearchState oneToMany(GraphDB g, int s, boolean[] wanted, int targets,
+                                         Metric metric) {
+        GraphStore c = g.store();
+        SearchState st = state(g);
+        st.reset();
+        st.relax(s, 0, -1, 0);
+        while (!st.isEmpty()) {
+            int v = st.pop();
+            if (wanted[v] && --targets == 0) {
+                break;
+            }
+            double dv = st.dist[v];
+            for (int e = c.begin(v), end = c.end(v); e < end; e++) {
+                int w = c.target(e);
+                double dw = dv + metric.cost(c, e);
+                if (!st.reached(w) || (dw < st.dist[w] && !st.settled(w))) {
+                    st.relax(w, dw, v, 0);
+                }
+            }
+        }
+        return st;
+    }
+
+    /**
+     * Dijkstra from dense index s that stops at the budget, measured in metric.
+     * @return the dense indices of every vertex within budget of s, in order of distance.
+     */
+    static int[] reachable(GraphDB g, int s, double budget, Metric metric) {
+        GraphStore c = g.store();
+        SearchState st = state(g);
+        st.reset();
+        st.relax(s, 0, -1, 0);
+        IntList reached = new IntList(64);
+        while (!st.isEmpty() && st.peekKey() <= budget) {
+            int v = st.pop();
+            reached.add(v);
+            double dv = st.dist[v];
+            for (int e = c.begin(v), end = c.end(v); e < end; e++) {
+                int w = c.target(e);
+                double dw = dv + metric.cost(c, e);
+                if (dw <= budget && (!st.reached(w) || (dw < st.dist[w] && !st.settled(w)))) {
+                    st.relax(w, dw, v, 0);
+                }
+            }
+        }
+        return reached.toArray();
+    }
+
+    private static double[] column(double[][] points, int k) {
+        double[] result = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            result[i] = points[i][k];
+        }
+        return result;
+    }
+
+    /**
+     * A* from dense index s to dense index t.
+     * @return the dense indices along the shortest path, or an empty array if t is unreachable.
+     */
+    static int[] search(GraphDB g, int s, int t, Heuristic h) {
+        return search(g, s, t, h, Metric.DISTANCE);
+    }
+
+    /** Same as above, for the path that is shortest in the given metric. */
+    static int[] search(GraphDB g, int s, int t, Heuristic h, Metric metric) {
+        GraphStore c = g.store();
+        SearchState st = state(g);
+        st.reset();
+        st.relax(s, 0, -1, h.estimate(g, s, t));
+        while (!st.isEmpty()) {
+            int v = st.pop();
+            if (v == t) {
+                return st.path(t);
+            }
+            double dv = st.dist[v];
+            for (int e = c.begin(v), end = c.end(v); e < end; e++) {
+                int w = c.target(e);
+                double dw = dv + metric.cost(c, e);
+                if (!st.reached(w)) {
+                    st.relax(w, dw, v, h.estimate(g, w, t));
+                } else if (dw < st.dist[w] && !st.settled(w)) {
+                    st.relax(w, dw, v, h.estimate(g, w, t));
+                }
+            }
+        }
+        return new int[0];
+    }
+
+    /**
+     * Bidirectional A* from dense index s to dense index t. Both searches use the average of
+     * the forward and backward estimates as potential, p(v) = (h(v, t) - h(v, s)) / 2 going
+     * forwards and -p(v) going backwards, which keeps both consistent on the same reduced
+     * edge costs. Then every path through v costs exactly keyF(v) + keyB(v), and once the
+     * smallest keys on both sides add up to the best path found so far, nothing shorter is
+     * left to find.
+     * @return the dense indices along the shortest path, or an empty array if t is unreachable.
+     */
+    static int[] searchBidirectional(GraphDB g, int s, int t, Heuristic h, Metric metric) {
+        GraphStore c = g.store();
+        SearchState fwd = state(g);
+        SearchState bwd = state(g, BACKWARD);
+        fwd.reset();
+        bwd.reset();
+        fwd.relax(s, 0, -1, potential(g, h, s, s, t));
+        bwd.relax(t, 0, -1, -potential(g, h, t, s, t));
+        double best = s == t ? 0 : Double.POSITIVE_INFINITY;
+        int meet = s == t ? s : -1;
+        while (!fwd.isEmpty() && !bwd.isEmpty() && fwd.peekKey() + bwd.peekKey() < best) {
+            boolean forward = fwd.peekKey() <= bwd.peekKey();
+            SearchState st = forward ? fwd : bwd;
+            SearchState other = forward ? bwd : fwd;
+            int v = st.pop();
+            double dv = st.dist[v];
+            for (int e = c.begin(v), end = c.end(v); e < end; e++) {
+                int w = c.target(e);
+                double dw = dv + metric.cost(c, e);
+                if (!st.reached(w) || (dw < st.dist[w] && !st.settled(w))) {
+                    double p = potential(g, h, w, s, t);
+                    st.relax(w, dw, v, forward ? p : -p);
+                }
+                double through = st.dist[w] + other.distance(w);
+                if (through < best) {
+                    best = through;
+                    meet = w;
+                }
+            }
+        }
+        if (meet < 0) {
+            return new int[0];
+        }
+        int[] head = fwd.path(meet);
+        int[] tail = bwd.path(meet);
+        int[] path = Arrays.copyOf(head, head.length + tail.length - 1);
+        for (int i = 1; i < tail.length; i++) {
+            path[head.length + i - 1] = tail[tail.length - 1 - i];
+        }
+        return path;
+    }
+
+    /** Forward potential of v for a bidirectional search from s to t. */
+    private static double potential(GraphDB g, Heuristic h, int v, int s, int t) {
+        return (h.estimate(g, v, t) - h.estimate(g, v, s)) / 2;
+    }
+
+    /**
+     * Shortest path from dense index s to dense index t through g's Contraction Hierarchy.
+     * Both searches only follow edges to higher ranked vertices and meet at the highest
+     * ranked vertex of the path. A vertex is stalled, its edges not relaxed, when a higher
+     * ranked neighbour already reaches it more cheaply, since no shortest path can then go
+     * through it upwards. Shortcuts on the found path are unpacked back into road segments.
+     * @return the dense indices along the shortest path, or an empty array if t is unreachable.
+     */
+    static int[] searchHierarchy(GraphDB g, int s, int t, Metric metric) {
+        ContractionHierarchy ch = g.hierarchy(metric);
+        SearchState fwd = state(g);
+        SearchState bwd = state(g, BACKWARD);
+        fwd.reset();
+        bwd.reset();
+        fwd.relax(s, 0, -1, 0);
+        bwd.relax(t, 0, -1, 0);
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        while (true) {
+            boolean fwdLive = !fwd.isEmpty() && fwd.peekKey() < best;
+            boolean bwdLive = !bwd.isEmpty() && bwd.peekKey() < best;
+            if (!fwdLive && !bwdLive) {
+                break;
+            }
+            SearchState st, other;
+            if (fwdLive && (!bwdLive || fwd.peekKey() <= bwd.peekKey())) {
+                st = fwd;
+                other = bwd;
+            } else {
+                st = bwd;
+                other = fwd;
+            }
+            int v = st.pop();
+            double dv = st.dist[v];
+            double through = dv + other.distance(v);
+            if (through < best) {
+                best = through;
+                meet = v;
+            }
+            if (stalled(ch, st, v, dv)) {
+                continue;
+            }
+            for (int e = ch.upBegin[v], end = ch.upBegin[v + 1]; e < end; e++) {
+                int w = ch.upTarget[e];
+                double dw = dv + ch.upWeight[e];
+                if (!st.reached(w) || (dw < st.dist[w] && !st.settled(w))) {
+                    st.relax(w, dw, v, 0);
+                }
+            }
+        }
+        if (meet < 0) {
+            return new int[0];
+        }
+        int[] up = fwd.path(meet);
+        int[] down = bwd.path(meet);
+        IntList path = new IntList(up.length + down.length);
+        path.add(s);
+        for (int i = 1; i < up.length; i++) {
+            unpack(ch, up[i - 1], up[i], path);
+        }
+        for (int i = down.length - 1; i > 0; i--) {
+            unpack(ch, down[i], down[i - 1], path);
+        }
+        return path.toArray();
+    }
+
+    /** True if a higher ranked neighbour of v reaches it more cheaply than dv. */
+    private static boolean stalled(ContractionHierarchy ch, SearchState st, int v, double dv) {
+        for (int e = ch.upBegin[v], end = ch.upBegin[v + 1]; e < end; e++) {
+            if (st.distance(ch.upTarget[e]) + ch.upWeight[e] < dv) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Append the road vertices after a on the hierarchy edge a - b, b included, to path. */
+    private static void unpack(ContractionHierarchy ch, int a, int b, IntList path) {
+        IntList stack = new IntList(8);
+        stack.add(b);
+        int from = a;
+        while (stack.size() > 0) {
+            int to = stack.get(stack.size() - 1);
+            int m = ch.upMiddle[ch.edge(from, to)];
+            if (m < 0) {
+                path.add(to);
+                stack.removeLast();
+                from = to;
+            } else {
+                stack.add(m);
+            }
+        }
+    }
+
+    /** This thread's search state, grown if g has more vertices than it can hold. */
+    static SearchState state(GraphDB g) {
+        return state(g, STATE);
+    }
+
+    private static SearchState state(GraphDB g, ThreadLocal<SearchState> local) {
+        SearchState st = local.get();
+        if (st == null || st.capacity() < g.size()) {
+            st = new SearchState(g.size());
+            local.set(st);
+        }
+        return st;
+    }
+
+    /** Growable list of ints, so unpacking a path does not box every vertex. */
+    private static final class IntList {
+        private int[] items;
+        private int size;
+
+        IntList(int capacity) {
+            items = new int[Math.max(capacity, 1)];
+        }
+
+        void add(int x) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, 2 * size);
+            }
+            items[size++] = x;
+        }
+
+        int get(int i) {
+            return items[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void removeLast() {
+            size--;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(items, size);
+        }
     }
 }
@@ -0,0 +1,202 @@
+import java.util.Arrays;
+
+/**
+ * Per-thread scratch space for shortest path searches over the dense vertex indices of a
+ * GraphDB. Distances, parents and the open set live in primitive arrays that are allocated
+ * once and reused: instead of clearing them between queries, every entry is stamped with the
+ * epoch of the query that last wrote it, and anything with an older stamp reads as unvisited.
+ * The open set is an indexed binary min-heap, so decrease-key is done in place and expanding
+ * a vertex allocates nothing.
+ */
+final class SearchState {
+    /** Heap position of a vertex that has already been settled. */
+    private static final int SETTLED = -1;
+
+    final double[] dist;
+    final int[] parent;
+    private final int[] stamp;
+    private final int[] pos;
+    private final int[] heap;
+    private final double[] key;
+    private int size;
+    private int epoch;
+    private int settledCount;
+    /** Set of ints for callers to mark with, stamped like the search; allocated on first use. */
+    private int[] marks;
+    private int markEpoch;
+
+    SearchState(int n) {
+        dist = new double[n];
+        parent = new int[n];
+        stamp = new int[n];
+        pos = new int[n];
+        heap = new int[n];
+        key = new double[n];
+    }
+
+    /** Number of vertices this state can hold. */
+    int capacity() {
+        return stamp.length;
+    }
+
+    /** Forget the previous query in O(1). */
+    void reset() {
+        size = 0;
+        settledCount = 0;
+        epoch++;
+        if (epoch == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            epoch = 1;
+        }
+    }
+
+    /**
+     * Unmark everything in O(1), making room for marks on 0 .. n - 1. The marks are separate
+     * from the search, so a finished search can be walked while marking.
+     */
+    void clearMarks(int n) {
+        if (marks == null || marks.length < n) {
+            marks = new int[Math.max(n, 1)];
+            markEpoch = 0;
+        }
+        markEpoch++;
+        if (markEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(marks, 0);
+            markEpoch = 1;
+        }
+    }
+
+    /** Mark i; false if it was already marked since clearMarks. */
+    boolean mark(int i) {
+        if (marks[i] == markEpoch) {
+            return false;
+        }
+        marks[i] = markEpoch;
+        return true;
+    }
+
+    boolean marked(int i) {
+        return marks[i] == markEpoch;
+    }
+
+    /** True if v has been reached (queued or settled) during the current query. */
+    boolean reached(int v) {
+        return stamp[v] == epoch;
+    }
+
+    /** True if v has been popped from the open set during the current query. */
+    boolean settled(int v) {
+        return stamp[v] == epoch && pos[v] == SETTLED;
+    }
+
+    /** Number of vertices settled during the current query. */
+    int settledCount() {
+        return settledCount;
+    }
+
+    /** Tentative distance of v, or +infinity if v has not been reached. */
+    double distance(int v) {
+        return stamp[v] == epoch ? dist[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Record that v can be reached with cost d through parent p, and queue it with priority
+     * d + h. Callers must only do this for unsettled vertices whose cost improves.
+     */
+    void relax(int v, double d, int p, double h) {
+        dist[v] = d;
+        parent[v] = p;
+        double k = d + h;
+        if (stamp[v] != epoch) {
+            stamp[v] = epoch;
+            pos[v] = size;
+            heap[size] = v;
+            key[size] = k;
+            size++;
+            up(size - 1);
+        } else {
+            int i = pos[v];
+            key[i] = k;
+            up(i);
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Priority of the vertex at the top of the open set. */
+    double peekKey() {
+        return key[0];
+    }
+
+    /** Remove and return the vertex with the smallest priority, marking it settled. */
+    int pop() {
+        int v = heap[0];
+        pos[v] = SETTLED;
+        settledCount++;
+        size--;
+        if (size > 0) {
+            heap[0] = heap[size];
+            key[0] = key[size];
+            pos[heap[0]] = 0;
+            down(0);
+        }
+        return v;
+    }
+
+    /** Vertices from the query source to v, following parent links. */
+    int[] path(int v) {
+        int n = 1;
+        for (int u = v; parent[u] != -1; u = parent[u]) {
+            n++;
+        }
+        int[] result = new int[n];
+        for (int u = v; n > 0; u = parent[u]) {
+            result[--n] = u;
+        }
+        return result;
+    }
+
+    private void up(int i) {
+        int v = heap[i];
+        double k = key[i];
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (key[p] <= k) {
+                break;
+            }
+            move(p, i);
+            i = p;
+        }
+        heap[i] = v;
+        key[i] = k;
+        pos[v] = i;
+    }
+
+    private void down(int i) {
+        int v = heap[i];
+        double k = key[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int c = 2 * i + 1;
+            if (c + 1 < size && key[c + 1] < key[c]) {
+                c++;
+            }
+            if (k <= key[c]) {
+                break;
+            }
+            move(c, i);
+            i = c;
+        }
+        heap[i] = v;
+        key[i] = k;
+        pos[v] = i;
+    }
+
+    private void move(int from, int to) {
+        heap[to] = heap[from];
+        key[to] = key[from];
+        pos[heap[to]] = to;
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the maxspeed and highway tags of a way into a speed, once per way while the graph is
+ * built, so searches only ever see precomputed per-edge travel times. Also the great-circle
+ * distance in meters that those times are computed from.
+ *
+ * See OSM documentation on
+ * <a href="http://wiki.openstreetmap.org/wiki/Key:maxspeed">the maxspeed tag</a>.
+ */
+final class SpeedLimits {
+    /** Mean radius of the earth, in meters. */
+    static final double EARTH_RADIUS = 6_371_000;
+    private static final double MPH = 0.44704;
+    private static final double KMH = 1 / 3.6;
+    private static final double KNOTS = 0.514444;
+    /** Speed assumed on ways of a type missing from DEFAULTS, in meters per second. */
+    private static final double FALLBACK = 25 * MPH;
+    /** Tagged speeds outside of this range are taken to be typos and ignored. */
+    private static final double MIN_SPEED = 1 * MPH, MAX_SPEED = 100 * MPH;
+
+    /** Typical speeds by highway type in Berkeley, where nothing else is tagged. */
+    private static final Map<String, Double> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("motorway", 65 * MPH);
+        DEFAULTS.put("motorway_link", 35 * MPH);
+        DEFAULTS.put("trunk", 50 * MPH);
+        DEFAULTS.put("trunk_link", 30 * MPH);
+        DEFAULTS.put("primary", 35 * MPH);
+        DEFAULTS.put("primary_link", 25 * MPH);
+        DEFAULTS.put("secondary", 30 * MPH);
+        DEFAULTS.put("secondary_link", 25 * MPH);
+        DEFAULTS.put("tertiary", 25 * MPH);
+        DEFAULTS.put("tertiary_link", 25 * MPH);
+        DEFAULTS.put("unclassified", 25 * MPH);
+        DEFAULTS.put("residential", 25 * MPH);
+        DEFAULTS.put("living_street", 10 * MPH);
+    }
+
+    private SpeedLimits() {
+    }
+
+    /**
+     * Speed on a way in meters per second: its maxspeed tag if that can be read, such as
+     * "25 mph", "40 km/h", "50" (km/h) or "30;40" (the first), else the default for its
+     * highway type.
+     */
+    static double metersPerSecond(String maxspeed, String highway) {
+        double tagged = parse(maxspeed);
+        if (tagged >= MIN_SPEED && tagged <= MAX_SPEED) {
+            return tagged;
+        }
+        Double typical = highway == null ? null : DEFAULTS.get(highway);
+        return typical == null ? FALLBACK : typical;
+    }
+
+    /** The speed a maxspeed value gives, in meters per second, or NaN if it gives none. */
+    static double parse(String maxspeed) {
+        if (maxspeed == null) {
+            return Double.NaN;
+        }
+        String s = maxspeed.trim().toLowerCase();
+        int semicolon = s.indexOf(';');
+        if (semicolon >= 0) {
+            s = s.substring(0, semicolon).trim();
+        }
+        int end = 0;
+        while (end < s.length() && (Character.isDigit(s.charAt(end)) || s.charAt(end) == '.')) {
+            end++;
+        }
+        if (end == 0) {
+            return Double.NaN;
+        }
+        double value;
+        try {
+            value = Double.parseDouble(s.substring(0, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+        String unit = s.substring(end).trim();
+        if (unit.isEmpty() || unit.equals("km/h") || unit.equals("kmh") || unit.equals("kph")) {
+            return value * KMH;
+        } else if (unit.equals("mph")) {
+            return value * MPH;
+        } else if (unit.equals("knots")) {
+            return value * KNOTS;
+        }
+        return Double.NaN;
+    }
+
+    /** Great-circle distance in meters between two points, by the haversine formula. */
+    static double meters(double lon1, double lat1, double lon2, double lat2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDphi = Math.sin((phi2 - phi1) / 2);
+        double sinDlambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinDphi * sinDphi + Math.cos(phi1) * Math.cos(phi2) * sinDlambda * sinDlambda;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
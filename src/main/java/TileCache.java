@@ -0,0 +1,104 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import javax.imageio.ImageIO;
+
+/**
+ * Cache of decoded map tiles, bounded by the bytes their pixels take. PNG decoding is by far
+ * the most expensive part of rastering, and neighbouring requests ask for mostly the same
+ * tiles, so each tile is decoded once into plain RGB pixels and then copied row by row into
+ * every composite that needs it. Pixels can be kept on the heap or in direct buffers outside
+ * of it, which keeps a large cache out of the garbage collector's way.
+ */
+class TileCache {
+    private final LruCache<String, Tile> tiles;
+    private final boolean offHeap;
+
+    /**
+     * @param capacityBytes Upper bound on the bytes of decoded pixels kept.
+     * @param offHeap Whether to keep the pixels in direct buffers instead of heap arrays.
+     */
+    TileCache(long capacityBytes, boolean offHeap) {
+        this.tiles = new LruCache<>(capacityBytes, Tile::bytes);
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Draw the tile stored at imgPath into dst with its upper left corner at (x, y), decoding
+     * it if it is not cached yet. dst must be a TYPE_INT_RGB image. Missing or unreadable
+     * tiles are skipped, leaving that part of dst black.
+     */
+    void draw(String imgPath, BufferedImage dst, int x, int y) {
+        Tile tile = tiles.get(imgPath, this::decode);
+        if (tile != null) {
+            tile.drawInto(dst, x, y);
+        }
+    }
+
+    /** Hit, miss and eviction counters of the underlying cache. */
+    LruCache<String, Tile> stats() {
+        return tiles;
+    }
+
+    private Tile decode(String imgPath) {
+        BufferedImage img;
+        try {
+            img = ImageIO.read(new File(imgPath));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (img == null) {
+            return null;
+        }
+        int w = img.getWidth(), h = img.getHeight();
+        int[] rgb = img.getRGB(0, 0, w, h, null, 0, w);
+        /* getRGB gives ARGB; drop the alpha byte, which TYPE_INT_RGB leaves unused. */
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] &= 0xFFFFFF;
+        }
+        if (!offHeap) {
+            return new Tile(w, h, IntBuffer.wrap(rgb));
+        }
+        IntBuffer pixels = ByteBuffer.allocateDirect(rgb.length * 4)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        pixels.put(rgb);
+        return new Tile(w, h, pixels);
+    }
+
+    /** Decoded pixels of one tile, row-major, one RGB int per pixel. */
+    static final class Tile {
+        private final int width, height;
+        private final IntBuffer pixels;
+
+        Tile(int width, int height, IntBuffer pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        long bytes() {
+            return 4L * width * height;
+        }
+
+        /** Copy the pixels into dst at (x, y), clipped to dst's bounds. */
+        void drawInto(BufferedImage dst, int x, int y) {
+            int[] out = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+            int dstW = dst.getWidth();
+            int cols = Math.min(width, dstW - x);
+            int rows = Math.min(height, dst.getHeight() - y);
+            if (cols <= 0 || rows <= 0) {
+                return;
+            }
+            IntBuffer src = pixels.duplicate();
+            for (int r = 0; r < rows; r++) {
+                src.position(r * width);
+                src.get(out, (y + r) * dstW + x, cols);
+            }
+        }
+    }
+}
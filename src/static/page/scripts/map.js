@@ -13,6 +13,7 @@ $(function() {
     const $routeStatus = $('#status-route');
     const $loadingStatus = $('#status-loading');
     const $errorStatus = $('#status-error');
+    const $directionsStatus = $('#status-directions');
     const themeableElements = ['body', '.actions', '.card', '.search', '.ui-autocomplete',
                                 '.status', '.settings', '.clear', '.action-icon'];
     var params = {
@@ -28,6 +29,9 @@ $(function() {
     // psueod-lock
     var getInProgress = false;
     var route_params = {};
+    var route_active = false;
+    /* Names this page's route on the server, so concurrent users each get their own. */
+    const route_token = newRouteToken();
     var map;
     var dest;
     var tx = 0, ty = 0;
@@ -54,11 +58,24 @@ $(function() {
         host = 'http://localhost:4567';
     }
     const raster_server = host + '/raster';
+    const tile_server = host + '/tiles';
+    const TILE_SIZE = 256;
     const route_server = host + '/route';
     const clear_route = host + '/clear_route';
+    const route_overlay = host + '/route_overlay';
+    const directions_server = host + '/directions';
+    const SVG_NS = 'http://www.w3.org/2000/svg';
     const search = host + '/search';
 
     /* ════════════════════════════ ೋღ HELPERS ღೋ ══════════════════════════ */
+    function newRouteToken() {
+        const bytes = new Uint8Array(16);
+        window.crypto.getRandomValues(bytes);
+        return Array.prototype.map.call(bytes, function(b) {
+            return ('0' + b.toString(16)).slice(-2);
+        }).join('');
+    }
+
     /* Compute lat and lon by window size */
     function real_lrlat() { return params.ullat - hdpp * params.h; }
 
@@ -100,6 +117,75 @@ $(function() {
         }
     }
 
+    /* Lay out the grid of tiles as individual images, so the browser fetches them in parallel
+       and serves repeated tiles from its cache. Falls back to one inlined image if the server
+       sent a stitched raster. The route is drawn on its own layer on top, see drawRoute. */
+    function renderRaster(data) {
+        const frag = document.createDocumentFragment();
+        if (data.b64_encoded_image_data) {
+            const img = new Image();
+            img.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
+            img.className = 'raster';
+            img.draggable = false;
+            frag.appendChild(img);
+        } else {
+            const grid = data.render_grid;
+            for (var r = 0; r < grid.length; r++) {
+                for (var c = 0; c < grid[r].length; c++) {
+                    const tile = new Image(TILE_SIZE, TILE_SIZE);
+                    tile.src = tile_server + '/' + data.depth + '/' + (data.tile_ul_x + c) + '/' +
+                               (data.tile_ul_y + r) + '.png';
+                    tile.className = 'tile';
+                    tile.style.left = (c * TILE_SIZE) + 'px';
+                    tile.style.top = (r * TILE_SIZE) + 'px';
+                    tile.draggable = false;
+                    frag.appendChild(tile);
+                }
+            }
+        }
+        while (map.firstChild) {
+            map.removeChild(map.firstChild);
+        }
+        map.appendChild(frag);
+    }
+
+    /* Draw a GeoJSON LineString route over the raster in a transparent SVG layer, so the tiles
+       underneath never depend on the route. */
+    function drawRoute(feature) {
+        $(map).children('.route').remove();
+        if (!feature || !feature.geometry) {
+            return;
+        }
+        const coords = feature.geometry.coordinates;
+        const points = [];
+        for (var i = 0; i < coords.length; i++) {
+            points.push(((coords[i][0] - ullon_bound) / wdpp).toFixed(1) + ',' +
+                        ((ullat_bound - coords[i][1]) / hdpp).toFixed(1));
+        }
+        const svg = document.createElementNS(SVG_NS, 'svg');
+        svg.setAttribute('class', 'route');
+        svg.setAttribute('width', img_w);
+        svg.setAttribute('height', img_h);
+        const line = document.createElementNS(SVG_NS, 'polyline');
+        line.setAttribute('points', points.join(' '));
+        svg.appendChild(line);
+        map.appendChild(svg);
+    }
+
+    function updateRouteOverlay() {
+        if (!route_active) {
+            drawRoute(null);
+            return;
+        }
+        $.get({
+            async: true,
+            url: route_overlay,
+            data: {route_token: route_token, lon_dpp: wdpp, lat_dpp: hdpp},
+            success: drawRoute,
+            dataType: 'json'
+        });
+    }
+
     function updateImg(successCallback) {
         /* Synchronous ajax call for image update.
            Could be async for better experience but then user spam locks up the server.
@@ -114,9 +200,7 @@ $(function() {
             success: function(data) {
                 if (data.query_success) {
                     $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' + 
-                                data.b64_encoded_image_data.length);
+                    renderRaster(data);
                     ullon_bound = data.raster_ul_lon;
                     ullat_bound = data.raster_ul_lat;
                     lrlon_bound = data.raster_lr_lon;
@@ -132,6 +216,7 @@ $(function() {
                     rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
                     rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
                     updateMarkers();
+                    updateRouteOverlay();
                     getInProgress = false;
                     if (successCallback) {
                         successCallback();
@@ -168,9 +253,31 @@ $(function() {
         $.get({
             async: true,
             url: route_server,
-            data: route_params,
-            success: function() {
+            data: $.extend({route_token: route_token}, route_params),
+            success: function(found) {
+                route_active = found === true || found === 'true';
                 updateImg();
+                updateDirections();
+            },
+        });
+    }
+
+    /* List the turn-by-turn directions of the current route, or hide the list if none. */
+    function updateDirections() {
+        const $list = $directionsStatus.find('.directions').empty();
+        if (!route_active) {
+            $directionsStatus.hide();
+            return;
+        }
+        $.get({
+            async: true,
+            url: directions_server,
+            data: {route_token: route_token},
+            success: function(directions) {
+                for (var i = 0; i < directions.length; i++) {
+                    $('<li>').text(directions[i].text).appendTo($list);
+                }
+                $directionsStatus.toggle(directions.length > 0);
             },
         });
     }
@@ -399,7 +506,11 @@ $(function() {
         $.get({
             async: true,
             url: clear_route,
+            data: {route_token: route_token},
             success: function() {
+                route_active = false;
+                drawRoute(null);
+                updateDirections();
                 dest.style.visibility = 'hidden';
                 update();
             },
@@ -0,0 +1,88 @@
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BidirectionalSearchTest {
+    @ClassRule
+    public static final TemporaryFolder DIR = new TemporaryFolder();
+    private static final int SIZE = 15;
+    private static final int QUERIES = 300;
+    /** First id of a short road off on its own, unreachable from the grid. */
+    private static final long STRAY = 600_000;
+
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        StringBuilder stray = new StringBuilder();
+        TestMaps.node(stray, STRAY, 37.95, -122.20, null);
+        TestMaps.node(stray, STRAY + 1, 37.951, -122.20, null);
+        TestMaps.way(stray, STRAY, new long[]{STRAY, STRAY + 1}, "residential", null, "Stray");
+        String xml = TestMaps.grid(SIZE, 13).replace("</osm>", stray + "</osm>");
+        graph = TestMaps.load(DIR.getRoot(), "grid.osm", xml);
+    }
+
+    /**
+     * Bidirectional routes cost what Dijkstra's says the shortest path costs, with no
+     * heuristic, the straight-line one and landmarks, in both metrics.
+     */
+    @Test
+    public void testCostMatchesDijkstra() {
+        GraphStore g = graph.store();
+        for (Router.Metric metric : Router.Metric.values()) {
+            Router.Heuristic[] heuristics = {Router.DIJKSTRA, metric.heuristic(),
+                graph.landmarks(metric)};
+            Random random = new Random(metric.ordinal());
+            for (int i = 0; i < QUERIES; i++) {
+                int s = random.nextInt(g.size()), t = random.nextInt(g.size());
+                double expected = TestMaps.distances(g, s, metric)[t];
+                for (Router.Heuristic h : heuristics) {
+                    int[] path = Router.path(graph, s, t, metric, Router.Mode.BIDIRECTIONAL, h,
+                            null);
+                    if (expected == Double.POSITIVE_INFINITY) {
+                        assertEquals(0, path.length);
+                        continue;
+                    }
+                    assertEquals(s, path[0]);
+                    assertEquals(t, path[path.length - 1]);
+                    assertEquals("Cost from " + s + " to " + t + " in " + metric, expected,
+                            cost(g, path, metric), 1e-9 * Math.max(1, expected));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSameVertexAndUnreachable() {
+        GraphStore g = graph.store();
+        int s = g.index(TestMaps.corner(SIZE, 3, 4));
+        for (Router.Metric metric : Router.Metric.values()) {
+            assertArrayEquals(new int[]{s}, Router.path(graph, s, s, metric,
+                    Router.Mode.BIDIRECTIONAL, metric.heuristic(), null));
+            assertEquals(0, Router.path(graph, s, g.index(STRAY), metric,
+                    Router.Mode.BIDIRECTIONAL, metric.heuristic(), null).length);
+        }
+    }
+
+    /** Cost of the path in metric, checking that every step is an edge of g. */
+    private static double cost(GraphStore g, int[] path, Router.Metric metric) {
+        double total = 0;
+        for (int i = 0; i + 1 < path.length; i++) {
+            double step = Double.POSITIVE_INFINITY;
+            for (int e = g.begin(path[i]); e < g.end(path[i]); e++) {
+                if (g.target(e) == path[i + 1]) {
+                    step = Math.min(step, metric.cost(g, e));
+                }
+            }
+            assertTrue("No edge from " + path[i] + " to " + path[i + 1],
+                    step < Double.POSITIVE_INFINITY);
+            total += step;
+        }
+        return total;
+    }
+}
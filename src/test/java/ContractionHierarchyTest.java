@@ -0,0 +1,96 @@
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ContractionHierarchyTest {
+    @ClassRule
+    public static final TemporaryFolder DIR = new TemporaryFolder();
+    private static final int SIZE = 14;
+    private static final int QUERIES = 300;
+
+    private static File osm;
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        osm = TestMaps.write(DIR.getRoot(), "grid.osm", TestMaps.grid(SIZE, 11));
+        graph = new GraphDB(osm.getPath());
+    }
+
+    /**
+     * Compare hierarchy routes with plain A* routes between random vertices, node by node,
+     * in both metrics; the corners are jittered, so shortest paths are unique.
+     */
+    @Test
+    public void testRoutesMatchAStar() {
+        for (Router.Metric metric : Router.Metric.values()) {
+            Random random = new Random(metric.ordinal());
+            for (int i = 0; i < QUERIES; i++) {
+                int s = random.nextInt(graph.size()), t = random.nextInt(graph.size());
+                int[] expected = Router.path(graph, s, t, metric, Router.Mode.A_STAR,
+                        metric.heuristic(), null);
+                int[] actual = Router.path(graph, s, t, metric,
+                        Router.Mode.CONTRACTION_HIERARCHY, null, null);
+                assertEquals("Cost differs from " + s + " to " + t + " in " + metric,
+                        cost(expected, metric), cost(actual, metric), 1e-9);
+                assertArrayEquals("Route differs from " + s + " to " + t + " in " + metric,
+                        expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testRouteToItself() {
+        int v = graph.size() / 2;
+        assertArrayEquals(new int[]{v}, Router.path(graph, v, v, Router.Metric.DISTANCE,
+                Router.Mode.CONTRACTION_HIERARCHY, null, null));
+    }
+
+    /** A written hierarchy reads back array for array, and only while its source is fresh. */
+    @Test
+    public void testWriteReadRoundTrip() throws Exception {
+        for (Router.Metric metric : Router.Metric.values()) {
+            ContractionHierarchy built = ContractionHierarchy.build(graph.store(), metric);
+            File file = new File(DIR.getRoot(), "round-trip-" + metric + ".ch");
+            built.write(osm, file);
+            assertTrue(ContractionHierarchy.isFresh(osm, file));
+            ContractionHierarchy read = ContractionHierarchy.read(file);
+            assertEquals(built.size(), read.size());
+            assertEquals(built.edges(), read.edges());
+            assertArrayEquals(built.rank, read.rank);
+            assertArrayEquals(built.upBegin, read.upBegin);
+            assertArrayEquals(built.upTarget, read.upTarget);
+            assertArrayEquals(built.upWeight, read.upWeight, 0);
+            assertArrayEquals(built.upMiddle, read.upMiddle);
+        }
+        File file = ContractionHierarchy.fileFor(osm.getPath(), Router.Metric.DISTANCE);
+        graph.hierarchy(Router.Metric.DISTANCE);
+        assertTrue(ContractionHierarchy.isFresh(osm, file));
+        assertTrue(osm.setLastModified(osm.lastModified() + 2000));
+        assertFalse(ContractionHierarchy.isFresh(osm, file));
+    }
+
+    /** Cost of the path in metric, checking that every step is an edge of the graph. */
+    private static double cost(int[] path, Router.Metric metric) {
+        GraphStore c = graph.store();
+        double total = 0;
+        for (int i = 0; i + 1 < path.length; i++) {
+            double step = Double.POSITIVE_INFINITY;
+            for (int e = c.begin(path[i]); e < c.end(path[i]); e++) {
+                if (c.target(e) == path[i + 1]) {
+                    step = Math.min(step, metric.cost(c, e));
+                }
+            }
+            assertTrue("No edge from " + path[i] + " to " + path[i + 1],
+                    step < Double.POSITIVE_INFINITY);
+            total += step;
+        }
+        return total;
+    }
+}
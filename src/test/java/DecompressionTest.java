@@ -0,0 +1,103 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class DecompressionTest {
+    private static final int SIZE = 8;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bzip2(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream bz = new BZip2CompressorOutputStream(out)) {
+            bz.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decompressed(byte[] data) throws IOException {
+        try (InputStream in = OsmIngest.decompressed(new ByteArrayInputStream(data))) {
+            return readAll(in);
+        }
+    }
+
+    @Test
+    public void testDetection() throws Exception {
+        byte[] xml = TestMaps.grid(SIZE, 21).getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(xml, decompressed(xml));
+        assertArrayEquals(xml, decompressed(gzip(xml)));
+        assertArrayEquals(xml, decompressed(bzip2(xml)));
+        /* Files shorter than a magic number, or starting like one, are read as they are. */
+        byte[] bz = "BZ".getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(bz, decompressed(bz));
+        byte[] bzx = "BZx and more".getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(bzx, decompressed(bzx));
+        assertArrayEquals(new byte[0], decompressed(new byte[0]));
+    }
+
+    /** bzip2 files written by parallel compressors are several streams back to back. */
+    @Test
+    public void testConcatenatedBzip2Streams() throws Exception {
+        byte[] xml = TestMaps.grid(SIZE, 21).getBytes(StandardCharsets.UTF_8);
+        int half = xml.length / 2;
+        byte[] first = bzip2(Arrays.copyOfRange(xml, 0, half));
+        byte[] second = bzip2(Arrays.copyOfRange(xml, half, xml.length));
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        assertArrayEquals(xml, decompressed(both));
+    }
+
+    /** A compressed extract loads into the same graph as the plain one. */
+    @Test
+    public void testCompressedFilesLoad() throws Exception {
+        String xml = TestMaps.grid(SIZE, 21);
+        GraphDB plain = TestMaps.load(dir.newFolder(), "grid.osm", xml);
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        File gz = new File(dir.newFolder(), "grid.osm.gz");
+        Files.write(gz.toPath(), gzip(bytes));
+        File bz2 = new File(dir.newFolder(), "grid.osm.bz2");
+        Files.write(bz2.toPath(), bzip2(bytes));
+        for (File file : new File[]{gz, bz2}) {
+            GraphDB g = new GraphDB(file.getPath());
+            assertEquals(plain.size(), g.size());
+            assertEquals(plain.store().edges(), g.store().edges());
+            for (int v = 0; v < g.size(); v++) {
+                assertEquals(plain.idAt(v), g.idAt(v));
+            }
+            assertEquals(plain.findlocations("top dog"), g.findlocations("top dog"));
+        }
+    }
+}
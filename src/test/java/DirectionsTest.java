@@ -0,0 +1,128 @@
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DirectionsTest {
+    @ClassRule
+    public static final TemporaryFolder DIR = new TemporaryFolder();
+    private static final double LAT = 37.87, LON = -122.27;
+    /** Meters from the junction to the end of every way. */
+    private static final double LEG = 100;
+    private static final double METERS_PER_MILE = 1609.344;
+    /** Bearings of the spokes leaving the junction, clockwise from north. */
+    private static final int[] SPOKES = {10, 25, -25, 90, -90, 150, -150};
+
+    private static final long JUNCTION = 1, SOUTH = 2, NORTH = 3, UNNAMED = 4, FIRST_SPOKE = 10;
+
+    private static GraphDB graph;
+
+    /**
+     * Main Street comes up from the south to a junction and goes on north; spokes named after
+     * their bearing leave the junction, and so does a way with no name, due east-north-east.
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        StringBuilder xml = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<osm version=\"0.6\">\n");
+        TestMaps.node(xml, JUNCTION, LAT, LON, null);
+        node(xml, SOUTH, 180);
+        node(xml, NORTH, 0);
+        node(xml, UNNAMED, 60);
+        for (int i = 0; i < SPOKES.length; i++) {
+            node(xml, FIRST_SPOKE + i, SPOKES[i]);
+        }
+        TestMaps.way(xml, 1, new long[]{SOUTH, JUNCTION}, "residential", null, "Main Street");
+        TestMaps.way(xml, 2, new long[]{JUNCTION, NORTH}, "residential", null, "Main Street");
+        TestMaps.way(xml, 3, new long[]{JUNCTION, UNNAMED}, "residential", null, null);
+        for (int i = 0; i < SPOKES.length; i++) {
+            TestMaps.way(xml, 10 + i, new long[]{JUNCTION, FIRST_SPOKE + i}, "residential",
+                    null, "Spoke " + SPOKES[i]);
+        }
+        xml.append("</osm>\n");
+        graph = TestMaps.load(DIR.getRoot(), "junction.osm", xml.toString());
+    }
+
+    /** A node LEG meters from the junction at the given bearing. */
+    private static void node(StringBuilder xml, long id, double bearing) {
+        double dlat = Math.cos(Math.toRadians(bearing)) * LEG / 111_195;
+        double dlon = Math.sin(Math.toRadians(bearing)) * LEG / 111_195
+                / Math.cos(Math.toRadians(LAT));
+        TestMaps.node(xml, id, LAT + dlat, LON + dlon, null);
+    }
+
+    @Test
+    public void testTurnClasses() {
+        assertEquals(Router.NavigationDirection.STRAIGHT, Router.turn(0));
+        assertEquals(Router.NavigationDirection.STRAIGHT, Router.turn(15));
+        assertEquals(Router.NavigationDirection.STRAIGHT, Router.turn(-15));
+        assertEquals(Router.NavigationDirection.STRAIGHT, Router.turn(350));
+        assertEquals(Router.NavigationDirection.SLIGHT_RIGHT, Router.turn(16));
+        assertEquals(Router.NavigationDirection.SLIGHT_RIGHT, Router.turn(30));
+        assertEquals(Router.NavigationDirection.SLIGHT_LEFT, Router.turn(-30));
+        assertEquals(Router.NavigationDirection.SLIGHT_LEFT, Router.turn(335));
+        assertEquals(Router.NavigationDirection.RIGHT, Router.turn(31));
+        assertEquals(Router.NavigationDirection.RIGHT, Router.turn(100));
+        assertEquals(Router.NavigationDirection.RIGHT, Router.turn(-270));
+        assertEquals(Router.NavigationDirection.LEFT, Router.turn(-100));
+        assertEquals(Router.NavigationDirection.LEFT, Router.turn(270));
+        assertEquals(Router.NavigationDirection.SHARP_RIGHT, Router.turn(101));
+        assertEquals(Router.NavigationDirection.SHARP_RIGHT, Router.turn(-190));
+        assertEquals(Router.NavigationDirection.SHARP_LEFT, Router.turn(-101));
+        assertEquals(Router.NavigationDirection.SHARP_LEFT, Router.turn(190));
+    }
+
+    /** Coming up Main Street, every spoke gets the turn its bearing calls for. */
+    @Test
+    public void testTurnsOntoSpokes() {
+        int[] expected = {Router.NavigationDirection.STRAIGHT,
+            Router.NavigationDirection.SLIGHT_RIGHT, Router.NavigationDirection.SLIGHT_LEFT,
+            Router.NavigationDirection.RIGHT, Router.NavigationDirection.LEFT,
+            Router.NavigationDirection.SHARP_RIGHT, Router.NavigationDirection.SHARP_LEFT};
+        for (int i = 0; i < SPOKES.length; i++) {
+            List<Router.NavigationDirection> directions = Router.routeDirections(graph,
+                    Arrays.asList(SOUTH, JUNCTION, FIRST_SPOKE + i));
+            assertEquals(3, directions.size());
+            assertDirection(Router.NavigationDirection.START, "Main Street", LEG,
+                    directions.get(0));
+            assertDirection(expected[i], "Spoke " + SPOKES[i], LEG, directions.get(1));
+            assertDirection(Router.NavigationDirection.ARRIVE, "Spoke " + SPOKES[i], 0,
+                    directions.get(2));
+        }
+    }
+
+    /** Two ways of the same name read as one, and a way without a name gets a stand-in. */
+    @Test
+    public void testWayNames() {
+        List<Router.NavigationDirection> directions = Router.routeDirections(graph,
+                new long[]{SOUTH, JUNCTION, NORTH});
+        assertEquals(2, directions.size());
+        assertDirection(Router.NavigationDirection.START, "Main Street", 2 * LEG,
+                directions.get(0));
+        assertEquals("Start on Main Street and continue for 0.124 miles.",
+                directions.get(0).toString());
+        assertEquals("Arrive on Main Street.", directions.get(1).toString());
+
+        directions = Router.routeDirections(graph, new long[]{FIRST_SPOKE, JUNCTION, UNNAMED});
+        assertEquals(3, directions.size());
+        assertDirection(Router.NavigationDirection.START, "Spoke 10", LEG, directions.get(0));
+        assertDirection(Router.NavigationDirection.SHARP_LEFT,
+                Router.NavigationDirection.UNKNOWN_ROAD, LEG, directions.get(1));
+
+        assertTrue(Router.routeDirections(graph, new long[]{SOUTH}).isEmpty());
+        assertTrue(Router.routeDirections(graph, new long[0]).isEmpty());
+    }
+
+    private static void assertDirection(int direction, String way, double meters,
+                                        Router.NavigationDirection actual) {
+        assertEquals(Router.NavigationDirection.DIRECTIONS[direction],
+                Router.NavigationDirection.DIRECTIONS[actual.direction]);
+        assertEquals(way, actual.way);
+        assertEquals(meters / METERS_PER_MILE, actual.distance, 0.5 / METERS_PER_MILE);
+    }
+}
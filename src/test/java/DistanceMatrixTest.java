@@ -0,0 +1,105 @@
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class DistanceMatrixTest {
+    @ClassRule
+    public static final TemporaryFolder DIR = new TemporaryFolder();
+    private static final int SIZE = 12;
+    /** First id of a short road off on its own, unreachable from the grid. */
+    private static final long STRAY = 600_000;
+
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        StringBuilder stray = new StringBuilder();
+        TestMaps.node(stray, STRAY, 37.95, -122.20, null);
+        TestMaps.node(stray, STRAY + 1, 37.951, -122.20, null);
+        TestMaps.way(stray, STRAY, new long[]{STRAY, STRAY + 1}, "residential", null, "Stray");
+        String xml = TestMaps.grid(SIZE, 14).replace("</osm>", stray + "</osm>");
+        graph = TestMaps.load(DIR.getRoot(), "grid.osm", xml);
+    }
+
+    /**
+     * Every entry is the cost of the route a single search finds between the snapped
+     * points, or -1 where there is none, including repeated targets and stray sources.
+     */
+    @Test
+    public void testMatchesSearches() {
+        GraphStore g = graph.store();
+        Random random = new Random(14);
+        int[] from = new int[9];
+        int[] to = new int[13];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = random.nextInt(g.size());
+        }
+        for (int j = 0; j < to.length; j++) {
+            to[j] = random.nextInt(g.size());
+        }
+        from[1] = g.index(STRAY);
+        to[2] = g.index(STRAY + 1);
+        to[5] = to[4];
+        to[6] = from[0];
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (Router.Metric metric : Router.Metric.values()) {
+                double[] matrix = Router.distanceMatrix(graph, points(g, from), points(g, to),
+                        metric, pool);
+                assertEquals(from.length * to.length, matrix.length);
+                for (int i = 0; i < from.length; i++) {
+                    double[] dist = TestMaps.distances(g, from[i], metric);
+                    for (int j = 0; j < to.length; j++) {
+                        double actual = matrix[i * to.length + j];
+                        int[] path = Router.path(graph, from[i], to[j], metric,
+                                Router.Mode.A_STAR, metric.heuristic(), null);
+                        if (path.length == 0) {
+                            assertEquals(-1, actual, 0);
+                            assertEquals(Double.POSITIVE_INFINITY, dist[to[j]], 0);
+                        } else {
+                            assertEquals(dist[to[j]], actual, 1e-9 * Math.max(1, actual));
+                        }
+                    }
+                }
+                assertEquals(0, matrix[6], 0);
+                assertEquals(-1, matrix[2], 0);
+                assertEquals(-1, matrix[to.length], 0);
+                assertTrue(matrix[to.length + 2] > 0);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDefaultsToDistance() {
+        GraphStore g = graph.store();
+        int[] from = {0, 5};
+        int[] to = {7, 11, 20};
+        assertArrayEquals(Router.distanceMatrix(graph, points(g, from), points(g, to),
+                Router.Metric.DISTANCE, ForkJoinPool.commonPool()),
+                Router.distanceMatrix(graph, points(g, from), points(g, to)), 0);
+    }
+
+    @Test
+    public void testNoTargets() {
+        double[][] sources = points(graph.store(), new int[]{0, 1});
+        assertEquals(0, Router.distanceMatrix(graph, sources, new double[0][]).length);
+        assertEquals(0, Router.distanceMatrix(graph, new double[0][], sources).length);
+    }
+
+    /** The {lon, lat} points of the given vertices. */
+    private static double[][] points(GraphStore g, int[] vertices) {
+        double[][] points = new double[vertices.length][];
+        for (int i = 0; i < vertices.length; i++) {
+            points[i] = new double[]{g.lon(vertices[i]), g.lat(vertices[i])};
+        }
+        return points;
+    }
+}
@@ -0,0 +1,397 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import static org.junit.Assert.*;
+
+/**
+ * Applies osmChange files to a graph and compares the result with a fresh load of the OSM
+ * file edited the same way, which is what apply promises.
+ */
+public class GraphDBApplyTest {
+    @Rule
+    public final TemporaryFolder dir = new TemporaryFolder();
+    private static final int SIZE = 6;
+
+    /** The footway of TestMaps, turned into a road; its own nodes are on no road. */
+    private static final String FOOTWAY_TO_ROAD = "<osmChange version=\"0.6\">\n"
+            + " <modify>\n"
+            + "  <way id=\"700000\">\n"
+            + "   <nd ref=\"1000\"/><nd ref=\"800000\"/><nd ref=\"800001\"/>\n"
+            + "   <nd ref=\"800002\"/><nd ref=\"1012\"/>\n"
+            + "   <tag k=\"highway\" v=\"residential\"/>\n"
+            + "   <tag k=\"name\" v=\"Shortcut\"/>\n"
+            + "  </way>\n"
+            + " </modify>\n"
+            + "</osmChange>\n";
+
+    /** Renames a row and slows it down, without touching any vertex. */
+    private static final String RENAME_ROW = "<osmChange version=\"0.6\">\n"
+            + " <modify>\n"
+            + "  <way id=\"3\">\n"
+            + "   <nd ref=\"1012\"/><nd ref=\"1013\"/><nd ref=\"1014\"/>\n"
+            + "   <nd ref=\"1015\"/><nd ref=\"1016\"/><nd ref=\"1017\"/>\n"
+            + "   <tag k=\"highway\" v=\"residential\"/>\n"
+            + "   <tag k=\"maxspeed\" v=\"15 mph\"/>\n"
+            + "   <tag k=\"name\" v=\"Row 2 Extension\"/>\n"
+            + "  </way>\n"
+            + " </modify>\n"
+            + "</osmChange>\n";
+
+    /**
+     * A bit of everything: a row shortened, renamed and slowed down; a column deleted; a
+     * corner deleted, with the two roads through it now skipping it; a corner moved; a new
+     * road over new nodes, one of them named; and places renamed, deleted, moved and added.
+     */
+    private static final String MIXED = "<osmChange version=\"0.6\">\n"
+            + " <create>\n"
+            + "  <node id=\"990000\" lat=\"37.8752\" lon=\"-122.2695\"/>\n"
+            + "  <node id=\"990001\" lat=\"37.8753\" lon=\"-122.2685\">\n"
+            + "   <tag k=\"name\" v=\"Brand New Plaza\"/>\n"
+            + "  </node>\n"
+            + "  <node id=\"990010\" lat=\"37.8760\" lon=\"-122.2660\">\n"
+            + "   <tag k=\"name\" v=\"Top Dog\"/>\n"
+            + "  </node>\n"
+            + "  <way id=\"990002\">\n"
+            + "   <nd ref=\"1030\"/><nd ref=\"990000\"/><nd ref=\"990001\"/><nd ref=\"1032\"/>\n"
+            + "   <tag k=\"highway\" v=\"residential\"/>\n"
+            + "   <tag k=\"name\" v=\"Fresh Street\"/>\n"
+            + "  </way>\n"
+            + " </create>\n"
+            + " <modify>\n"
+            + "  <way id=\"2\">\n"
+            + "   <nd ref=\"1006\"/><nd ref=\"1007\"/><nd ref=\"1008\"/>\n"
+            + "   <nd ref=\"1009\"/><nd ref=\"1010\"/>\n"
+            + "   <tag k=\"highway\" v=\"residential\"/>\n"
+            + "   <tag k=\"maxspeed\" v=\"15 mph\"/>\n"
+            + "   <tag k=\"name\" v=\"Row 1 Extension\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"4\">\n"
+            + "   <nd ref=\"1018\"/><nd ref=\"1019\"/><nd ref=\"1020\"/>\n"
+            + "   <nd ref=\"1022\"/><nd ref=\"1023\"/>\n"
+            + "   <tag k=\"highway\" v=\"residential\"/>\n"
+            + "   <tag k=\"maxspeed\" v=\"35 mph\"/>\n"
+            + "   <tag k=\"name\" v=\"Row 3\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"10\">\n"
+            + "   <nd ref=\"1003\"/><nd ref=\"1009\"/><nd ref=\"1015\"/>\n"
+            + "   <nd ref=\"1027\"/><nd ref=\"1033\"/>\n"
+            + "   <tag k=\"highway\" v=\"residential\"/>\n"
+            + "   <tag k=\"name\" v=\"Column 3\"/>\n"
+            + "  </way>\n"
+            + "  <node id=\"1028\" lat=\"37.8743\" lon=\"-122.2658\"/>\n"
+            + "  <node id=\"900001\" lat=\"37.8708\" lon=\"-122.2693\">\n"
+            + "   <tag k=\"name\" v=\"Top Dog\"/>\n"
+            + "  </node>\n"
+            + "  <node id=\"900005\" lat=\"37.8725\" lon=\"-122.2685\">\n"
+            + "   <tag k=\"name\" v=\"Cafe Strada\"/>\n"
+            + "  </node>\n"
+            + " </modify>\n"
+            + " <delete>\n"
+            + "  <way id=\"9\"/>\n"
+            + "  <node id=\"1021\"/>\n"
+            + "  <node id=\"900002\"/>\n"
+            + " </delete>\n"
+            + "</osmChange>\n";
+
+    private String grid;
+    private GraphDB graph;
+
+    @Before
+    public void setUp() throws Exception {
+        grid = TestMaps.grid(SIZE, 22);
+        graph = TestMaps.load(dir.getRoot(), "grid.osm", grid);
+    }
+
+    /**
+     * A footway that becomes a road runs over nodes that are not vertices, and the change
+     * does not list them, so apply places them where the file's footway had them.
+     */
+    @Test
+    public void testFootwayBecomesRoad() throws Exception {
+        GraphDB next = graph.apply(change(FOOTWAY_TO_ROAD));
+        assertSameGraph(fresh(grid, FOOTWAY_TO_ROAD), next);
+        assertTrue(next.indexOf(TestMaps.FIRST_FOOTWAY_NODE + 1) >= 0);
+        assertEquals(graph.version() + 1, next.version());
+    }
+
+    @Test
+    public void testFootwayAfterOtherChanges() throws Exception {
+        GraphDB next = graph.apply(change(RENAME_ROW)).apply(change(FOOTWAY_TO_ROAD));
+        assertSameGraph(fresh(edited(grid, RENAME_ROW), FOOTWAY_TO_ROAD), next);
+        assertEquals(2, next.version());
+    }
+
+    /**
+     * Copied adjacency ranges are renumbered around the deleted, new and moved vertices, the
+     * neighbours of the deleted corner lose their edges to it, and the names, locations and
+     * ranking follow the changed places.
+     */
+    @Test
+    public void testMixedChange() throws Exception {
+        GraphDB next = graph.apply(change(MIXED));
+        assertSameGraph(fresh(grid, MIXED), next);
+        assertEquals(-1, next.indexOf(1021));
+        assertTrue(next.indexOf(990001) >= 0);
+        List<Map<String, Object>> topDogs = next.findlocations("top dog");
+        assertEquals(4, topDogs.size());
+        assertEquals(900001L, topDogs.get(1).get("id"));
+        assertEquals(990010L, topDogs.get(3).get("id"));
+        assertEquals(1, next.findlocations("peets coffee").size());
+    }
+
+    /** A change that moves no vertex shares the k-d tree; nearest vertices must still hold. */
+    @Test
+    public void testRenameKeepsVertices() throws Exception {
+        GraphDB next = graph.apply(change(RENAME_ROW));
+        assertSameGraph(fresh(grid, RENAME_ROW), next);
+        assertEquals(graph.size(), next.size());
+    }
+
+    @Test
+    public void testChangesInARow() throws Exception {
+        GraphDB next = graph.apply(change(MIXED)).apply(change(RENAME_ROW));
+        assertSameGraph(fresh(edited(grid, MIXED), RENAME_ROW), next);
+        assertEquals(2, next.version());
+    }
+
+    /**
+     * Nodes a change takes off the roads keep their place, and a change that moves one of
+     * them while it is off the roads is followed, so a road can come back over them.
+     */
+    @Test
+    public void testRoadBecomesPathAndBack() throws Exception {
+        String toPath = FOOTWAY_TO_ROAD.replace("residential", "footway");
+        String move = "<osmChange version=\"0.6\"><modify>"
+                + "<node id=\"800001\" lat=\"37.8716\" lon=\"-122.2701\"/>"
+                + "</modify></osmChange>";
+        GraphDB next = graph.apply(change(FOOTWAY_TO_ROAD)).apply(change(toPath))
+                .apply(change(move)).apply(change(FOOTWAY_TO_ROAD));
+        String expected = edited(edited(edited(grid, FOOTWAY_TO_ROAD), toPath), move);
+        assertSameGraph(fresh(expected, FOOTWAY_TO_ROAD), next);
+        assertEquals(37.8716, next.lat(TestMaps.FIRST_FOOTWAY_NODE + 1), 0);
+    }
+
+    /** A road over a node that is on no path and not in the change cannot be placed. */
+    @Test
+    public void testUnknownNodeRefused() throws Exception {
+        String osc = RENAME_ROW.replace("<nd ref=\"1017\"/>",
+                "<nd ref=\"1017\"/><nd ref=\"123456\"/>");
+        try {
+            graph.apply(change(osc));
+            fail("Applied a road over an unknown node");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("123456"));
+        }
+        assertEquals(0, graph.version());
+        assertSameGraph(TestMaps.load(dir.newFolder(), "grid.osm", grid), graph);
+    }
+
+    /** Graphs loaded from the snapshot, on or off the heap, read their roads on first use. */
+    @Test
+    public void testApplyToSnapshot() throws Exception {
+        String path = new File(dir.getRoot(), "grid.osm").getPath();
+        assertTrue(GraphSnapshot.isFresh(new File(path), GraphSnapshot.fileFor(path)));
+        GraphDB expected = fresh(grid, MIXED);
+        for (boolean offHeap : new boolean[]{false, true}) {
+            GraphDB loaded = new GraphDB(path, offHeap);
+            assertNull(loaded.ingestStats());
+            assertSameGraph(expected, loaded.apply(change(MIXED)));
+        }
+    }
+
+    /** The version a change is applied to stays as it was. */
+    @Test
+    public void testOldVersionUnchanged() throws Exception {
+        graph.apply(change(MIXED));
+        graph.apply(change(FOOTWAY_TO_ROAD));
+        assertSameGraph(TestMaps.load(dir.newFolder(), "grid.osm", grid), graph);
+        assertEquals(0, graph.version());
+    }
+
+    /**
+     * Hierarchies and landmarks the old version had are built for the new one in the
+     * background, routes are right while they are and once they are, and a version that is
+     * superseded before its builds finish still answers.
+     */
+    @Test
+    public void testHierarchyRebuilt() throws Exception {
+        graph.hierarchy(Router.Metric.DISTANCE);
+        graph.landmarks(Router.Metric.DISTANCE);
+        GraphDB next = graph.apply(change(MIXED));
+        GraphDB expected = fresh(grid, MIXED);
+        assertRoutes(expected, next);
+        assertNotNull(next.hierarchy(Router.Metric.DISTANCE));
+        assertNotNull(next.readyHierarchy(Router.Metric.DISTANCE));
+        assertNotNull(next.landmarks(Router.Metric.DISTANCE));
+        assertNotNull(next.readyLandmarks(Router.Metric.DISTANCE));
+        assertRoutes(expected, next);
+
+        GraphDB last = next.apply(change(FOOTWAY_TO_ROAD));
+        assertRoutes(expected, next);
+        assertNotNull(next.hierarchy(Router.Metric.DISTANCE));
+        last.hierarchy(Router.Metric.DISTANCE);
+        assertRoutes(fresh(edited(grid, MIXED), FOOTWAY_TO_ROAD), last);
+    }
+
+    /** Routes in actual through its hierarchy, or A* while it is built, match expected's. */
+    private static void assertRoutes(GraphDB expected, GraphDB actual) {
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            int s = random.nextInt(actual.size()), t = random.nextInt(actual.size());
+            assertArrayEquals(Router.path(expected, s, t, Router.Metric.DISTANCE,
+                    Router.Mode.A_STAR, Router.EUCLIDEAN, null), Router.path(actual, s, t,
+                    Router.Metric.DISTANCE, Router.Mode.CONTRACTION_HIERARCHY,
+                    Router.EUCLIDEAN, null));
+        }
+    }
+
+    /**
+     * Elements keep their last version; deleted ones, and ways that stop being roads, map to
+     * null.
+     */
+    @Test
+    public void testReadChange() throws Exception {
+        OsmChange change = OsmChange.read(change(MIXED));
+        assertTrue(change.ways.containsKey(9L));
+        assertNull(change.ways.get(9L));
+        assertNull(change.nodes.get(1021L));
+        assertEquals("Row 1 Extension", change.ways.get(2L).name);
+        assertArrayEquals(new long[]{1006, 1007, 1008, 1009, 1010}, change.ways.get(2L).nodes);
+        assertEquals("Brand New Plaza", change.nodes.get(990001L).name);
+        assertEquals(37.8743, change.nodes.get(1028L).latitude, 0);
+
+        OsmChange later = OsmChange.read(change(RENAME_ROW.replace("residential", "footway")));
+        assertTrue(later.ways.containsKey(3L));
+        assertNull(later.ways.get(3L));
+    }
+
+    /** The osmChange xml, written to a file of its own. */
+    private File change(String xml) throws Exception {
+        return TestMaps.write(dir.newFolder(), "change.osc", xml);
+    }
+
+    /** The graph of a fresh load of the OSM xml with the osmChange osc made to it. */
+    private GraphDB fresh(String xml, String osc) throws Exception {
+        return TestMaps.load(dir.newFolder(), "edited.osm", edited(xml, osc));
+    }
+
+    /**
+     * The OSM xml with the osmChange osc made to it, the way an editor saves it: changed
+     * elements stay where they were, new nodes go after the last node and new ways at the
+     * end.
+     */
+    static String edited(String xml, String osc) throws Exception {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Document osm = db.parse(new InputSource(new StringReader(xml)));
+        Document change = db.parse(new InputSource(new StringReader(osc)));
+        Element root = osm.getDocumentElement();
+        for (Element block : children(change.getDocumentElement())) {
+            for (Element e : children(block)) {
+                Element old = null;
+                Element firstWay = null;
+                for (Element x : children(root)) {
+                    if (x.getTagName().equals(e.getTagName())
+                            && x.getAttribute("id").equals(e.getAttribute("id"))) {
+                        old = x;
+                    }
+                    if (firstWay == null && x.getTagName().equals("way")) {
+                        firstWay = x;
+                    }
+                }
+                Node copy = osm.importNode(e, true);
+                if (block.getTagName().equals("delete")) {
+                    root.removeChild(old);
+                } else if (old != null) {
+                    root.replaceChild(copy, old);
+                } else if (e.getTagName().equals("node")) {
+                    root.insertBefore(copy, firstWay);
+                } else {
+                    root.appendChild(copy);
+                }
+            }
+        }
+        StringWriter out = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(osm),
+                new StreamResult(out));
+        return out.toString();
+    }
+
+    private static List<Element> children(Element e) {
+        List<Element> result = new ArrayList<>();
+        NodeList nodes = e.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                result.add((Element) nodes.item(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check that actual has the vertices, edges, way names, locations, autocomplete ranking
+     * and nearest vertices of expected.
+     */
+    static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertEquals("Vertex count", expected.size(), actual.size());
+        for (int v = 0; v < expected.size(); v++) {
+            long id = expected.idAt(v);
+            assertEquals("Vertex " + v, id, actual.idAt(v));
+            assertEquals("Latitude of " + id, expected.latAt(v), actual.latAt(v), 0);
+            assertEquals("Longitude of " + id, expected.lonAt(v), actual.lonAt(v), 0);
+            assertEquals("Edges of " + id, edges(expected, v), edges(actual, v));
+        }
+        List<String> names = expected.findlocationbyprefix("");
+        assertEquals(names, actual.findlocationbyprefix(""));
+        for (String name : names) {
+            assertEquals("Locations named " + name, expected.findlocations(name),
+                    actual.findlocations(name));
+        }
+        for (String prefix : new String[]{"", "t", "top", "p", "c", "x"}) {
+            for (int limit : new int[]{1, 3, RadixTrie.TOP_K + 1}) {
+                assertEquals("Suggestions for " + prefix, expected.findlocationbyprefix(prefix,
+                        limit), actual.findlocationbyprefix(prefix, limit));
+            }
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            double lon = -122.271 + random.nextDouble() * SIZE * 0.001;
+            double lat = 37.869 + random.nextDouble() * SIZE * 0.001;
+            assertEquals("Closest to " + lon + ", " + lat, expected.closest(lon, lat),
+                    actual.closest(lon, lat));
+        }
+    }
+
+    /** The edges out of vertex v of g as sorted strings, independent of vertex numbering. */
+    private static List<String> edges(GraphDB g, int v) {
+        GraphStore c = g.store();
+        List<String> result = new ArrayList<>();
+        for (int e = c.begin(v); e < c.end(v); e++) {
+            result.add(g.idAt(c.target(e)) + " " + c.weight(e) + " " + c.time(e) + " "
+                    + g.wayName(c.way(e)));
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
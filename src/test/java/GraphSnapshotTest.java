@@ -0,0 +1,146 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GraphSnapshotTest {
+    private static final int SIZE = 12;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private File osm;
+    private File snapshot;
+    /** The graph as parsed from osm, which also wrote snapshot. */
+    private GraphDB graph;
+
+    @Before
+    public void setUp() throws Exception {
+        graph = TestMaps.load(dir.getRoot(), "grid.osm", TestMaps.grid(SIZE, 5));
+        osm = new File(dir.getRoot(), "grid.osm");
+        snapshot = GraphSnapshot.fileFor(osm.getPath());
+    }
+
+    @Test
+    public void testReadRoundTrip() throws Exception {
+        assertTrue(GraphSnapshot.isFresh(osm, snapshot));
+        GraphSnapshot read = GraphSnapshot.read(snapshot);
+        assertTrue(read.store instanceof CsrGraph);
+        assertSnapshot(read);
+        assertRewritten(read);
+    }
+
+    @Test
+    public void testMapRoundTrip() throws Exception {
+        GraphSnapshot mapped = GraphSnapshot.map(snapshot);
+        assertTrue(mapped.store instanceof MappedGraphStore);
+        assertSnapshot(mapped);
+        assertRewritten(mapped);
+    }
+
+    /** Edited, grown, truncated or older-format snapshots are not used. */
+    @Test
+    public void testStaleness() throws Exception {
+        assertTrue(GraphSnapshot.isFresh(osm, snapshot));
+        assertTrue(osm.setLastModified(osm.lastModified() + 2000));
+        assertFalse(GraphSnapshot.isFresh(osm, snapshot));
+        /* Loading again re-parses the extract and takes a fresh snapshot. */
+        new GraphDB(osm.getPath());
+        assertTrue(GraphSnapshot.isFresh(osm, snapshot));
+
+        Files.write(osm.toPath(), new byte[]{'\n'}, StandardOpenOption.APPEND);
+        assertTrue(osm.setLastModified(snapshot.lastModified()));
+        assertFalse(GraphSnapshot.isFresh(osm, snapshot));
+        new GraphDB(osm.getPath());
+        assertTrue(GraphSnapshot.isFresh(osm, snapshot));
+
+        try (RandomAccessFile out = new RandomAccessFile(snapshot, "rw")) {
+            out.seek(4);
+            out.writeInt(Integer.reverseBytes(GraphSnapshot.VERSION - 1));
+        }
+        assertFalse(GraphSnapshot.isFresh(osm, snapshot));
+        try {
+            GraphSnapshot.read(snapshot);
+            fail("Read a snapshot of an older version");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("version"));
+        }
+
+        try (RandomAccessFile out = new RandomAccessFile(snapshot, "rw")) {
+            out.setLength(16);
+        }
+        assertFalse(GraphSnapshot.isFresh(osm, snapshot));
+        assertFalse(GraphSnapshot.isFresh(new File(dir.getRoot(), "missing.osm"), snapshot));
+    }
+
+    /** s holds the graph, tree, names, roads and off-road nodes of the parsed graph. */
+    private void assertSnapshot(GraphSnapshot s) {
+        GraphStore expected = graph.store(), actual = s.store;
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.edges(), actual.edges());
+        for (int v = 0; v < expected.size(); v++) {
+            assertEquals(expected.id(v), actual.id(v));
+            assertEquals(v, actual.index(expected.id(v)));
+            assertEquals(expected.lat(v), actual.lat(v), 0);
+            assertEquals(expected.lon(v), actual.lon(v), 0);
+            assertEquals(expected.begin(v), actual.begin(v));
+            assertEquals(expected.end(v), actual.end(v));
+        }
+        for (int e = 0; e < expected.edges(); e++) {
+            assertEquals(expected.target(e), actual.target(e));
+            assertEquals(expected.weight(e), actual.weight(e), 0);
+            assertEquals(expected.time(e), actual.time(e), 0);
+            assertEquals(expected.way(e), actual.way(e));
+            assertEquals(graph.wayName(expected.way(e)), s.wayNames[actual.way(e)]);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            double lon = -122.271 + random.nextDouble() * 0.014;
+            double lat = 37.869 + random.nextDouble() * 0.014;
+            assertEquals(graph.closest(lon, lat), actual.id(s.spatial.nearest(lon, lat)));
+        }
+
+        assertEquals(TestMaps.PLACES.length, s.locations.size());
+        for (int i = 0; i < TestMaps.PLACES.length; i++) {
+            assertEquals(TestMaps.FIRST_PLACE + i, s.locations.get(i).id);
+            assertEquals(TestMaps.PLACES[i], s.locations.get(i).name);
+        }
+        assertEquals(Arrays.asList("top dog", "topsys", "toppings"),
+                s.trie.withPrefix("top", 10));
+        assertEquals(graph.trie.withPrefix("", 100), s.trie.withPrefix("", 100));
+
+        LinkedHashMap<Long, GraphDB.Road> roads = GraphSnapshot.roads(s.roads);
+        assertEquals(2 * SIZE, roads.size());
+        assertFalse(roads.containsKey(TestMaps.FOOTWAY));
+        GraphDB.Road row = roads.get(1L);
+        assertEquals("Row 0", s.wayNames[row.name]);
+        assertEquals(TestMaps.corner(SIZE, 0, SIZE - 1), row.nodes[SIZE - 1]);
+        NodePositions offRoad = GraphSnapshot.offRoad(s.roads);
+        for (int i = 0; i < 3; i++) {
+            int at = offRoad.index(TestMaps.FIRST_FOOTWAY_NODE + i);
+            assertTrue(at >= 0);
+            assertEquals(37.8705 + 0.001 * i, offRoad.lat(at), 1e-7);
+            assertEquals(-122.2695, offRoad.lon(at), 1e-7);
+        }
+    }
+
+    /** Writing s back out gives the very same bytes it was read from. */
+    private void assertRewritten(GraphSnapshot s) throws IOException {
+        File copy = new File(dir.getRoot(), "copy.snapshot");
+        GraphSnapshot.write(osm, copy, s.store, s.spatial, s.locations, s.wayNames,
+                GraphSnapshot.offRoad(s.roads), GraphSnapshot.roads(s.roads).values(), s.trie);
+        assertArrayEquals(Files.readAllBytes(snapshot.toPath()),
+                Files.readAllBytes(copy.toPath()));
+    }
+}
@@ -0,0 +1,47 @@
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IsochronesTest {
+    @ClassRule
+    public static final TemporaryFolder DIR = new TemporaryFolder();
+    private static final int SIZE = 6;
+
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = TestMaps.load(DIR.getRoot(), "grid.osm", TestMaps.grid(SIZE, 15));
+    }
+
+    /**
+     * Budgets too large to count in buckets are cut down rather than overflowing into the
+     * start vertex's half of the cache key, which made every start share one entry.
+     */
+    @Test
+    public void testHugeBudgetsKeepStartsApart() {
+        Isochrones isochrones = new Isochrones(1_000_000);
+        long a = TestMaps.corner(SIZE, 0, 0), b = TestMaps.corner(SIZE, SIZE - 1, SIZE - 1);
+        Isochrones.Isochrone fromA = isochrones.around(graph, graph.lon(a), graph.lat(a), 1e300);
+        Isochrones.Isochrone fromB = isochrones.around(graph, graph.lon(b), graph.lat(b), 1e300);
+        assertEquals(a, fromA.center);
+        assertEquals(b, fromB.center);
+        assertEquals(a, fromA.vertices[0]);
+        assertEquals(b, fromB.vertices[0]);
+        assertEquals(graph.size(), fromA.vertices.length);
+        assertTrue(Double.isFinite(fromA.budget));
+    }
+
+    @Test
+    public void testNearbyBudgetsShareABucket() {
+        Isochrones isochrones = new Isochrones(1_000_000);
+        long a = TestMaps.corner(SIZE, 2, 3);
+        Isochrones.Isochrone first = isochrones.around(graph, graph.lon(a), graph.lat(a), 0.0021);
+        Isochrones.Isochrone second = isochrones.around(graph, graph.lon(a), graph.lat(a), 0.0024);
+        assertSame(first, second);
+        assertEquals(5 * Isochrones.BUCKET, first.budget, 1e-12);
+    }
+}
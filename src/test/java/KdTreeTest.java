@@ -0,0 +1,162 @@
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KdTreeTest {
+    private static final int QUERIES = 2000;
+
+    /** Vertices without edges at the given points, numbered in the order given. */
+    static CsrGraph points(double[] lon, double[] lat) {
+        int n = lon.length;
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = 10 * i + 1;
+        }
+        return new CsrGraph(ids, lat, lon, new int[n + 1], new int[0], new float[0],
+                new float[0], new int[0]);
+    }
+
+    /** n points scattered over a map sized area, some of them on top of each other. */
+    static CsrGraph random(int n, Random random) {
+        double[] lon = new double[n];
+        double[] lat = new double[n];
+        for (int i = 0; i < n; i++) {
+            int j = i > 0 && random.nextInt(10) == 0 ? random.nextInt(i) : i;
+            lon[i] = j < i ? lon[j] : -122.3 + random.nextDouble() * 0.1;
+            lat[i] = j < i ? lat[j] : 37.8 + random.nextDouble() * 0.1;
+        }
+        return points(lon, lat);
+    }
+
+    private static double dist2(GraphStore g, int v, double lon, double lat) {
+        double dlon = g.lon(v) - lon, dlat = g.lat(v) - lat;
+        return dlon * dlon + dlat * dlat;
+    }
+
+    /** Check tree against a scan of every vertex of g, for queries inside and around it. */
+    static void assertNearest(GraphStore g, KdTree tree, Random random) {
+        for (int q = 0; q < QUERIES; q++) {
+            double lon = -122.32 + random.nextDouble() * 0.14;
+            double lat = 37.78 + random.nextDouble() * 0.14;
+            if (q % 10 == 0 && g.size() > 0) {
+                int v = random.nextInt(g.size());
+                lon = g.lon(v);
+                lat = g.lat(v);
+            }
+            double best = Double.POSITIVE_INFINITY;
+            for (int v = 0; v < g.size(); v++) {
+                best = Math.min(best, dist2(g, v, lon, lat));
+            }
+            int found = tree.nearest(lon, lat);
+            assertTrue("No vertex for " + lon + ", " + lat, found >= 0);
+            assertEquals("Nearest to " + lon + ", " + lat, best, dist2(g, found, lon, lat), 0);
+        }
+    }
+
+    /** Nearest vertex agrees with a scan, including among vertices on top of each other. */
+    @Test
+    public void testNearestMatchesBruteForce() {
+        Random random = new Random(3);
+        for (int n : new int[]{1, 2, 7, 100, 5000}) {
+            GraphStore g = random(n, random);
+            assertNearest(g, new KdTree(g), random);
+        }
+    }
+
+    /** Trees over a saved vertex order, on the heap or read in place, answer the same. */
+    @Test
+    public void testFromOrder() {
+        Random random = new Random(4);
+        GraphStore g = random(2000, random);
+        KdTree built = new KdTree(g);
+        int[] order = new int[built.size()];
+        for (int slot = 0; slot < order.length; slot++) {
+            order[slot] = built.vertexAt(slot);
+        }
+        assertNearest(g, new KdTree(g, order.clone()), random);
+        assertNearest(g, new KdTree(g, IntBuffer.wrap(order)), random);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(-1, new KdTree(CsrGraph.EMPTY).nearest(-122.25, 37.85));
+    }
+
+    /**
+     * Patch a tree over and over with vertices removed, moved and added, and check it against
+     * a scan after each change, through patches small enough to keep and large enough to
+     * rebuild.
+     */
+    @Test
+    public void testPatchedMatchesBruteForce() {
+        Random random = new Random(22);
+        GraphStore g = random(3000, random);
+        KdTree tree = new KdTree(g);
+        for (int round = 0; round < 12; round++) {
+            int changes = round % 4 == 3 ? 400 : 1 + random.nextInt(40);
+            /* Each old vertex stays, goes, or moves; new ones get ids between the old. */
+            int n = g.size();
+            long[] ids = new long[n + changes];
+            double[] lon = new double[n + changes];
+            double[] lat = new double[n + changes];
+            boolean[] moved = new boolean[n + changes];
+            int k = 0;
+            for (int v = 0; v < n; v++) {
+                int fate = random.nextInt(n) < changes ? random.nextInt(2) : 2;
+                if (fate == 0) {
+                    continue;
+                }
+                ids[k] = g.id(v);
+                moved[k] = fate == 1;
+                lon[k] = fate == 1 ? -122.3 + random.nextDouble() * 0.1 : g.lon(v);
+                lat[k++] = fate == 1 ? 37.8 + random.nextDouble() * 0.1 : g.lat(v);
+            }
+            for (int i = 0; i < changes; i++) {
+                ids[k] = g.id(random.nextInt(n)) + 1 + random.nextInt(9);
+                moved[k] = true;
+                lon[k] = -122.3 + random.nextDouble() * 0.1;
+                lat[k++] = 37.8 + random.nextDouble() * 0.1;
+            }
+            Integer[] order = new Integer[k];
+            for (int i = 0; i < k; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(ids[a], ids[b]));
+            long[] nextIds = new long[k];
+            double[] nextLon = new double[k];
+            double[] nextLat = new double[k];
+            int[] remap = new int[n];
+            Arrays.fill(remap, -1);
+            int[] added = new int[k];
+            int addedCount = 0, m = 0;
+            for (int i = 0; i < k; i++) {
+                int j = order[i];
+                if (m > 0 && ids[j] == nextIds[m - 1]) {
+                    continue;
+                }
+                nextIds[m] = ids[j];
+                nextLon[m] = lon[j];
+                nextLat[m] = lat[j];
+                int old = g.index(ids[j]);
+                if (old >= 0 && !moved[j]) {
+                    remap[old] = m;
+                } else {
+                    added[addedCount++] = m;
+                }
+                m++;
+            }
+            GraphStore next = new CsrGraph(Arrays.copyOf(nextIds, m),
+                    Arrays.copyOf(nextLat, m), Arrays.copyOf(nextLon, m), new int[m + 1],
+                    new int[0], new float[0], new float[0], new int[0]);
+            KdTree patched = tree.patched(next, remap, Arrays.copyOf(added, addedCount));
+            assertNearest(next, patched, random);
+            assertNearest(g, tree, random);
+            g = next;
+            tree = patched;
+        }
+    }
+}
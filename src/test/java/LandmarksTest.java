@@ -0,0 +1,99 @@
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class LandmarksTest {
+    @ClassRule
+    public static final TemporaryFolder DIR = new TemporaryFolder();
+    private static final int SIZE = 14;
+    /** First id of a short road off on its own, far from the grid. */
+    private static final long STRAY = 600_000;
+
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        StringBuilder stray = new StringBuilder();
+        TestMaps.node(stray, STRAY, 37.95, -122.20, null);
+        TestMaps.node(stray, STRAY + 1, 37.951, -122.20, null);
+        TestMaps.way(stray, STRAY, new long[]{STRAY, STRAY + 1}, "residential", null, "Stray");
+        String xml = TestMaps.grid(SIZE, 12).replace("</osm>", stray + "</osm>");
+        graph = TestMaps.load(DIR.getRoot(), "grid.osm", xml);
+    }
+
+    /**
+     * For every target, no vertex is estimated further from it than it really is, in either
+     * metric, and the target itself is estimated at 0.
+     */
+    @Test
+    public void testAdmissible() {
+        GraphStore g = graph.store();
+        for (Router.Metric metric : Router.Metric.values()) {
+            Landmarks landmarks = Landmarks.build(g, Landmarks.DEFAULT_COUNT, metric,
+                    ForkJoinPool.commonPool());
+            for (int t = 0; t < g.size(); t++) {
+                double[] dist = TestMaps.distances(g, t, metric);
+                assertEquals(0, landmarks.estimate(graph, t, t), 0);
+                for (int v = 0; v < g.size(); v++) {
+                    double h = landmarks.estimate(graph, v, t);
+                    assertTrue(h >= 0);
+                    assertTrue("Estimate " + h + " from " + v + " to " + t + " over " + dist[v]
+                            + " in " + metric, h <= dist[v]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Landmarks are picked on the grid, not the stray road, and bound routes across the grid
+     * far tighter than nothing.
+     */
+    @Test
+    public void testLandmarksOnMainComponent() {
+        GraphStore g = graph.store();
+        Landmarks landmarks = Landmarks.build(g, Landmarks.DEFAULT_COUNT,
+                Router.Metric.DISTANCE, ForkJoinPool.commonPool());
+        int[] vertices = landmarks.vertices();
+        assertEquals(Landmarks.DEFAULT_COUNT, vertices.length);
+        for (int v : vertices) {
+            assertTrue(g.id(v) < STRAY);
+        }
+        int s = g.index(TestMaps.corner(SIZE, 0, 0));
+        int t = g.index(TestMaps.corner(SIZE, SIZE - 1, SIZE - 1));
+        double d = TestMaps.distances(g, s, Router.Metric.DISTANCE)[t];
+        assertTrue(landmarks.estimate(graph, s, t) > 0.9 * d);
+
+        Random random = new Random(1);
+        int stray = g.index(STRAY);
+        for (int i = 0; i < 100; i++) {
+            int v = random.nextInt(g.size());
+            assertEquals(0, landmarks.estimate(graph, v, stray), 0);
+        }
+    }
+
+    /** Landmarks make A* settle fewer vertices than the straight-line bound does. */
+    @Test
+    public void testFewerSettled() {
+        Landmarks landmarks = graph.landmarks(Router.Metric.DISTANCE);
+        Random random = new Random(2);
+        long alt = 0, euclidean = 0;
+        for (int i = 0; i < 200; i++) {
+            int s = random.nextInt(graph.size()), t = random.nextInt(graph.size());
+            Router.SearchStats stats = new Router.SearchStats();
+            int[] expected = Router.path(graph, s, t, Router.Metric.DISTANCE,
+                    Router.Mode.A_STAR, Router.EUCLIDEAN, stats);
+            euclidean += stats.forwardSettled;
+            assertArrayEquals(expected, Router.path(graph, s, t, Router.Metric.DISTANCE,
+                    Router.Mode.A_STAR, landmarks, stats));
+            alt += stats.forwardSettled;
+        }
+        assertTrue(alt + " settled with landmarks, " + euclidean + " without",
+                alt < euclidean);
+    }
+}
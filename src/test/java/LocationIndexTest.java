@@ -0,0 +1,100 @@
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LocationIndexTest {
+    @ClassRule
+    public static final TemporaryFolder DIR = new TemporaryFolder();
+
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = TestMaps.load(DIR.getRoot(), "grid.osm", TestMaps.grid(4, 25));
+    }
+
+    private static GraphDB.Node node(long id, double lat, double lon, String name) {
+        GraphDB.Node n = new GraphDB.Node(id, lat, lon);
+        n.name = name;
+        return n;
+    }
+
+    /** Places sharing a cleaned name all get a posting, in file order, not by id. */
+    @Test
+    public void testDuplicateNamesKeepFileOrder() {
+        LocationIndex index = LocationIndex.of(Arrays.asList(
+                node(30, 1, 2, "Top Dog"), node(10, 3, 4, "Peet's Coffee"),
+                node(20, 5, 6, "top dog!"), node(5, 7, 8, "Top Dog")));
+        assertEquals(4, index.size());
+        assertArrayEquals(new int[]{0, 2, 3}, index.rows("top dog"));
+        assertArrayEquals(new int[]{1}, index.rows("peets coffee"));
+        assertArrayEquals(new int[0], index.rows("nowhere"));
+        assertEquals(2, index.row(20));
+        assertEquals(3, index.row(5));
+        assertEquals(0, index.row(30));
+        assertEquals(-1, index.row(40));
+        assertEquals("Top Dog", index.name("top dog"));
+        assertEquals("top dog!", index.name(index.row(20)));
+        assertEquals(5, index.lat(index.row(20)), 0);
+        assertEquals(3, (int) index.weights().get("top dog"));
+        assertEquals(1, (int) index.weights().get("peets coffee"));
+    }
+
+    /** Every place named Top Dog, in the order of the file, as the search results show them. */
+    @Test
+    public void testFindLocations() {
+        List<Map<String, Object>> found = graph.findlocations("Top Dog");
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < TestMaps.PLACES.length; i++) {
+            if (TestMaps.PLACES[i].equals("Top Dog")) {
+                ids.add(TestMaps.FIRST_PLACE + i);
+            }
+        }
+        assertEquals(3, ids.size());
+        assertEquals(ids.size(), found.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Map<String, Object> location = found.get(i);
+            assertEquals(ids.get(i), location.get("id"));
+            assertEquals("Top Dog", location.get("name"));
+            int k = (int) (ids.get(i) - TestMaps.FIRST_PLACE);
+            assertEquals(37.8705 + k * 0.0003, (double) location.get("lat"), 1e-7);
+            assertEquals(-122.2695 + k * 0.0002, (double) location.get("lon"), 1e-7);
+        }
+        assertEquals(found, graph.findlocations("top DOG"));
+        assertEquals(2, graph.findlocations("Peet's Coffee").size());
+        assertTrue(graph.findlocations("Nowhere").isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testResultsAreReadOnly() {
+        graph.findlocations("Top Dog").get(0).put("name", "Bottom Dog");
+    }
+
+    /**
+     * Results are cached per graph version: a version answers repeated searches from its
+     * cache, and a newer one does not see what an older one cached.
+     */
+    @Test
+    public void testCachePerVersion() throws Exception {
+        List<Map<String, Object>> before = graph.findlocations("Topsy's");
+        assertSame(before, graph.findlocations("topsys"));
+        String osc = "<osmChange version=\"0.6\"><create>"
+                + "<node id=\"990000\" lat=\"37.8800\" lon=\"-122.2600\">"
+                + "<tag k=\"name\" v=\"Topsy's\"/></node></create></osmChange>";
+        GraphDB next = graph.apply(TestMaps.write(DIR.newFolder(), "topsy.osc", osc));
+        List<Map<String, Object>> after = next.findlocations("Topsy's");
+        assertEquals(2, after.size());
+        assertEquals(990000L, after.get(1).get("id"));
+        assertSame(after, next.findlocations("Topsy's"));
+        assertSame(before, graph.findlocations("Topsy's"));
+        assertEquals(1, graph.findlocations("Topsy's").size());
+    }
+}
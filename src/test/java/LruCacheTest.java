@@ -0,0 +1,123 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LruCacheTest {
+    /** Entries are weighed by length, and the least recently used go first when over. */
+    @Test
+    public void testWeightedEviction() {
+        LruCache<String, String> cache = new LruCache<>(10, s -> s.length());
+        cache.put("a", "xxx");
+        cache.put("b", "xxx");
+        cache.put("c", "xxx");
+        assertEquals(9, cache.weight());
+        assertEquals("xxx", cache.get("a"));
+        /* b is now the least recently used, and one more 3 goes over 10. */
+        cache.put("d", "xxx");
+        assertNull(cache.get("b"));
+        assertEquals("xxx", cache.get("a"));
+        assertEquals("xxx", cache.get("c"));
+        assertEquals("xxx", cache.get("d"));
+        assertEquals(9, cache.weight());
+        assertEquals(1, cache.evictions());
+
+        /* A heavy entry pushes out as many as it takes, and replacing reweighs. */
+        cache.put("e", "xxxxxxx");
+        assertEquals(2, cache.size());
+        assertEquals(10, cache.weight());
+        assertNull(cache.get("a"));
+        assertNull(cache.get("c"));
+        assertEquals("xxx", cache.get("d"));
+        assertEquals(3, cache.evictions());
+        cache.put("e", "x");
+        assertEquals(4, cache.weight());
+
+        /* An entry heavier than the whole cache is still kept, on its own. */
+        cache.put("f", "xxxxxxxxxxxxxxx");
+        assertEquals(1, cache.size());
+        assertEquals(15, cache.weight());
+        assertEquals("xxxxxxxxxxxxxxx", cache.get("f"));
+    }
+
+    @Test
+    public void testCounts() {
+        LruCache<Integer, Integer> cache = new LruCache<>(2);
+        assertEquals(0, cache.hitRate(), 0);
+        cache.put(1, 1);
+        cache.get(1);
+        cache.get(2);
+        cache.get(1);
+        cache.get(3);
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(0.5, cache.hitRate(), 0);
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    /** Threads missing on the same key at once wait for one load rather than each loading. */
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        LruCache<String, String> cache = new LruCache<>(100);
+        int threads = 8;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> cache.get("key", k -> {
+                    loads.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return "value of " + k;
+                })));
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            /* Give the other threads time to miss and find the load in progress. */
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("value of key", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.size());
+        assertEquals("value of key", cache.get("key", k -> "loaded again"));
+    }
+
+    /** A failing load reaches the caller and caches nothing, so the next call loads again. */
+    @Test
+    public void testFailedLoad() {
+        LruCache<String, String> cache = new LruCache<>(100);
+        try {
+            cache.get("key", k -> {
+                throw new IllegalArgumentException("no " + k);
+            });
+            fail("Load failure was swallowed");
+        } catch (IllegalArgumentException e) {
+            assertEquals("no key", e.getMessage());
+        }
+        assertEquals(0, cache.size());
+        assertEquals("value", cache.get("key", k -> "value"));
+        assertNull(cache.get("other", k -> null));
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,136 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OsmIngestTest {
+    private static final int SIZE = 40;
+    /** Enough extra places for the file to span many batches. */
+    private static final int PLACES = 30_000;
+    private static final String[] NAMES = {"Alpha", "Beta", "Gamma", "Delta", "Epsilon"};
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    /**
+     * The grid plus PLACES named nodes with shuffled ids, cycling through NAMES, so the order
+     * same-name locations come out in is file order and not id order.
+     */
+    private static String places(List<Long> fileOrder) {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < PLACES; i++) {
+            ids.add(2_000_000L + i);
+        }
+        Collections.shuffle(ids, new Random(20));
+        StringBuilder xml = new StringBuilder();
+        for (int i = 0; i < PLACES; i++) {
+            TestMaps.node(xml, ids.get(i), 37.86 + (i % 100) * 1e-4, -122.28 + (i / 100) * 1e-5,
+                    NAMES[i % NAMES.length]);
+            fileOrder.add(ids.get(i));
+        }
+        return TestMaps.grid(SIZE, 20).replace("<osm version=\"0.6\">\n",
+                "<osm version=\"0.6\">\n" + xml);
+    }
+
+    private GraphDB load(String xml, int threads) throws IOException {
+        System.setProperty(GraphDB.INGEST_THREADS_PROPERTY, Integer.toString(threads));
+        try {
+            return TestMaps.load(dir.newFolder(), "map.osm", xml);
+        } finally {
+            System.clearProperty(GraphDB.INGEST_THREADS_PROPERTY);
+        }
+    }
+
+    /** Any number of workers builds exactly the graph one worker does, names in file order. */
+    @Test
+    public void testSameAsSequential() throws Exception {
+        List<Long> fileOrder = new ArrayList<>();
+        String xml = places(fileOrder);
+        GraphDB sequential = load(xml, 1);
+        for (int threads : new int[]{2, 7}) {
+            GraphDB parallel = load(xml, threads);
+            GraphStore a = sequential.store(), b = parallel.store();
+            assertEquals(a.size(), b.size());
+            assertEquals(a.edges(), b.edges());
+            for (int v = 0; v < a.size(); v++) {
+                assertEquals(a.id(v), b.id(v));
+                assertEquals(a.lat(v), b.lat(v), 0);
+                assertEquals(a.lon(v), b.lon(v), 0);
+                assertEquals(a.begin(v), b.begin(v));
+            }
+            for (int e = 0; e < a.edges(); e++) {
+                assertEquals(a.target(e), b.target(e));
+                assertEquals(a.time(e), b.time(e), 0);
+                assertEquals(sequential.wayName(a.way(e)), parallel.wayName(b.way(e)));
+            }
+            for (int k = 0; k < NAMES.length; k++) {
+                List<Map<String, Object>> found = parallel.findlocations(NAMES[k]);
+                assertEquals(PLACES / NAMES.length, found.size());
+                for (int i = 0; i < found.size(); i++) {
+                    assertEquals(fileOrder.get(i * NAMES.length + k), found.get(i).get("id"));
+                }
+            }
+        }
+    }
+
+    /** A row a worker cannot parse fails the read instead of leaving it waiting. */
+    @Test(timeout = 20_000)
+    public void testWorkerFailurePropagates() throws Exception {
+        List<Long> fileOrder = new ArrayList<>();
+        String xml = places(fileOrder).replace("lat=\"37.8600000\"", "lat=\"north\"");
+        GraphDB g = load("<?xml version='1.0' encoding='UTF-8'?>\n<osm version=\"0.6\">\n"
+                + "</osm>\n", 1);
+        try {
+            OsmIngest.read(() -> stream(xml), g, 4);
+            fail("Parsed a node at latitude north");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+    }
+
+    /** Broken XML and a failing stream fail the read too. */
+    @Test(timeout = 20_000)
+    public void testReaderFailurePropagates() throws Exception {
+        List<Long> fileOrder = new ArrayList<>();
+        String xml = places(fileOrder);
+        GraphDB g = load("<?xml version='1.0' encoding='UTF-8'?>\n<osm version=\"0.6\">\n"
+                + "</osm>\n", 1);
+        try {
+            OsmIngest.read(() -> stream(xml.substring(0, xml.length() / 2) + "<<"), g, 4);
+            fail("Parsed broken XML");
+        } catch (XMLStreamException e) {
+            assertNotNull(e.getMessage());
+        }
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        try {
+            OsmIngest.read(() -> new ByteArrayInputStream(bytes) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    if (pos > bytes.length / 2) {
+                        throw new IllegalStateException("disk gone");
+                    }
+                    return super.read(b, off, Math.min(len, 512));
+                }
+            }, g, 4);
+            fail("Read past a failing stream");
+        } catch (IOException e) {
+            assertEquals("disk gone", e.getCause().getMessage());
+        }
+    }
+
+    private static InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,78 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PolylineTest {
+    @Test
+    public void testShortLines() {
+        assertArrayEquals(new int[0], Polyline.simplify(new double[0], new double[0], 1));
+        assertArrayEquals(new int[]{0}, Polyline.simplify(new double[]{1}, new double[]{2}, 1));
+        assertArrayEquals(new int[]{0, 1},
+                Polyline.simplify(new double[]{0, 1}, new double[]{0, 1}, 10));
+    }
+
+    /** Points within tolerance of the chord go; one just beyond it stays. */
+    @Test
+    public void testTolerance() {
+        double[] x = {0, 1, 2, 3, 4};
+        double[] y = {0, 0.1, 0.05, 0.5, 0};
+        assertArrayEquals(new int[]{0, 4}, Polyline.simplify(x, y, 0.6));
+        assertArrayEquals(new int[]{0, 3, 4}, Polyline.simplify(x, y, 0.4));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, Polyline.simplify(x, y, 0));
+    }
+
+    /** A closed loop keeps its far side even though both ends are at the same point. */
+    @Test
+    public void testLoop() {
+        double[] x = {0, 1, 1, 0, 0};
+        double[] y = {0, 0, 1, 1, 0};
+        int[] kept = Polyline.simplify(x, y, 0.1);
+        assertEquals(0, kept[0]);
+        assertEquals(4, kept[kept.length - 1]);
+        assertTrue(kept.length >= 4);
+    }
+
+    /**
+     * On random walks the end points are kept, indices ascend, every dropped point is within
+     * tolerance of the simplified line, and a looser tolerance never keeps more points.
+     */
+    @Test
+    public void testRandomWalks() {
+        Random random = new Random(10);
+        for (int walk = 0; walk < 50; walk++) {
+            int n = 2 + random.nextInt(2000);
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 1; i < n; i++) {
+                x[i] = x[i - 1] + random.nextGaussian();
+                y[i] = y[i - 1] + random.nextGaussian();
+            }
+            int previous = n;
+            for (double tolerance : new double[]{0.1, 1, 5, 50}) {
+                int[] kept = Polyline.simplify(x, y, tolerance);
+                assertEquals(0, kept[0]);
+                assertEquals(n - 1, kept[kept.length - 1]);
+                assertTrue(kept.length <= previous);
+                previous = kept.length;
+                for (int k = 0; k + 1 < kept.length; k++) {
+                    assertTrue(kept[k] < kept[k + 1]);
+                    for (int i = kept[k] + 1; i < kept[k + 1]; i++) {
+                        assertTrue("Point " + i + " dropped at tolerance " + tolerance,
+                                distance(x, y, i, kept[k], kept[k + 1]) <= tolerance + 1e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Distance from point i to the segment from point a to point b. */
+    private static double distance(double[] x, double[] y, int i, int a, int b) {
+        double dx = x[b] - x[a], dy = y[b] - y[a];
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : ((x[i] - x[a]) * dx + (y[i] - y[a]) * dy) / len2;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(x[a] + t * dx - x[i], y[a] + t * dy - y[i]);
+    }
+}
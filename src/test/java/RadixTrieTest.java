@@ -0,0 +1,213 @@
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class RadixTrieTest {
+    @ClassRule
+    public static final TemporaryFolder DIR = new TemporaryFolder();
+    /** Few letters, so that random words share long prefixes and edges split often. */
+    private static final String ALPHABET = "ab d";
+
+    private static List<String> words;
+    private static RadixTrie trie;
+
+    @BeforeClass
+    public static void setUp() {
+        Random random = new Random(23);
+        words = new ArrayList<>(Arrays.asList("", "top", "top dog", "topsy", "toppings",
+                "bandana", "banner", "cafe strada", "caffe mediterraneum", "top dog"));
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder w = new StringBuilder();
+            for (int n = random.nextInt(9); n > 0; n--) {
+                w.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            words.add(w.toString());
+        }
+        trie = RadixTrie.of(words);
+    }
+
+    /** Every prefix of every word, and then some that match nothing. */
+    static List<String> prefixes(List<String> words) {
+        TreeSet<String> prefixes = new TreeSet<>();
+        for (String w : words) {
+            for (int i = 0; i <= w.length(); i++) {
+                prefixes.add(w.substring(0, i));
+            }
+            prefixes.add(w + "x");
+        }
+        prefixes.addAll(Arrays.asList("x", "topx", "bana", "bandx", "c", "cafe", "caff"));
+        return new ArrayList<>(prefixes);
+    }
+
+    /** The distinct non-empty words starting with prefix, in ascending order. */
+    static List<String> bruteForce(List<String> words, String prefix) {
+        TreeSet<String> result = new TreeSet<>();
+        for (String w : words) {
+            if (!w.isEmpty() && w.startsWith(prefix)) {
+                result.add(w);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        for (String prefix : prefixes(words)) {
+            assertEquals("Words starting with \"" + prefix + "\"", bruteForce(words, prefix),
+                    trie.withPrefix(prefix));
+        }
+    }
+
+    /** The empty prefix finds every word but the empty one. */
+    @Test
+    public void testEmptyPrefix() {
+        List<String> all = bruteForce(words, "");
+        assertEquals(all, trie.withPrefix(""));
+        assertEquals(all.size(), trie.size());
+        assertFalse(trie.withPrefix("").contains(""));
+        assertEquals(Collections.emptyList(), RadixTrie.EMPTY.withPrefix(""));
+    }
+
+    /** "bandana" and "banner" share the edge into "ban"; prefixes may stop inside edges. */
+    @Test
+    public void testPrefixEndingMidEdge() {
+        RadixTrie t = RadixTrie.of(Arrays.asList("bandana", "banner"));
+        assertEquals(Arrays.asList("bandana", "banner"), t.withPrefix("b"));
+        assertEquals(Arrays.asList("bandana", "banner"), t.withPrefix("ban"));
+        assertEquals(Collections.singletonList("bandana"), t.withPrefix("band"));
+        assertEquals(Collections.singletonList("bandana"), t.withPrefix("bandan"));
+        assertEquals(Collections.singletonList("banner"), t.withPrefix("bann"));
+        assertEquals(Collections.emptyList(), t.withPrefix("bandx"));
+        assertEquals(Collections.emptyList(), t.withPrefix("bandanas"));
+        assertEquals(Collections.emptyList(), t.withPrefix("bx"));
+    }
+
+    /** A word that is a prefix of others is found both by itself and with them. */
+    @Test
+    public void testWordIsPrefixOfWords() {
+        RadixTrie t = RadixTrie.of(Arrays.asList("top", "top dog", "topsy", "top dog"));
+        assertEquals(Arrays.asList("top", "top dog", "topsy"), t.withPrefix("top"));
+        assertEquals(Arrays.asList("top", "top dog", "topsy"), t.withPrefix("to"));
+        assertEquals(Collections.singletonList("top dog"), t.withPrefix("top "));
+        assertEquals(1, t.weight("top"));
+        assertEquals(2, t.weight("top dog"));
+        assertEquals(0, t.weight("to"));
+        assertEquals(0, t.weight("top d"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testResultIsReadOnly() {
+        trie.withPrefix("top").set(0, "bottom");
+    }
+
+    /**
+     * The best limit words starting with prefix by brute force: more locations first, then
+     * shorter, then alphabetical.
+     */
+    static List<String> ranked(Map<String, Integer> weights, String prefix, int limit) {
+        List<String> matches = bruteForce(new ArrayList<>(weights.keySet()), prefix);
+        matches.sort(Comparator.comparing((String w) -> -weights.get(w))
+                .thenComparing(String::length).thenComparing(w -> w));
+        return matches.subList(0, Math.min(limit, matches.size()));
+    }
+
+    /**
+     * Ranked queries for one suggestion, for TOP_K, for one more than a node keeps and for
+     * more than match, so both the stored lists and the full sort are checked.
+     */
+    @Test
+    public void testRankedMatchesBruteForce() {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String w : words) {
+            weights.merge(w, 1, Integer::sum);
+        }
+        weights.remove("");
+        for (String prefix : prefixes(words)) {
+            int matches = trie.withPrefix(prefix).size();
+            for (int limit : new int[]{1, 2, RadixTrie.TOP_K, RadixTrie.TOP_K + 1,
+                2 * RadixTrie.TOP_K, matches, matches + 5}) {
+                assertEquals("Best " + limit + " for \"" + prefix + "\"",
+                        ranked(weights, prefix, limit), trie.withPrefix(prefix, limit));
+            }
+        }
+    }
+
+    /** Ties in weight go to the shorter word, then to the alphabetically first. */
+    @Test
+    public void testRankOrder() {
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("top dog", 3);
+        weights.put("topsy", 1);
+        weights.put("top", 1);
+        weights.put("toppings", 2);
+        weights.put("tops", 1);
+        weights.put("topaz", 1);
+        RadixTrie t = RadixTrie.of(weights);
+        List<String> all = Arrays.asList("top dog", "toppings", "top", "tops", "topaz",
+                "topsy");
+        assertEquals(all, t.withPrefix("top", 100));
+        assertEquals(all.subList(0, 1), t.withPrefix("top", 1));
+        assertEquals(Arrays.asList("tops", "topsy"), t.withPrefix("tops", RadixTrie.TOP_K));
+        assertEquals(Collections.emptyList(), t.withPrefix("top", 0));
+        assertEquals(Collections.emptyList(), t.withPrefix("x", 5));
+    }
+
+    /** More words under one node than it keeps, so limits past TOP_K must sort its range. */
+    @Test
+    public void testLimitBeyondTopK() {
+        Map<String, Integer> weights = new HashMap<>();
+        for (int i = 0; i < 3 * RadixTrie.TOP_K; i++) {
+            weights.put("cafe " + (char) ('a' + i % 26) + i, 1 + i % 4);
+        }
+        RadixTrie t = RadixTrie.of(weights);
+        for (int limit = 1; limit <= weights.size() + 1; limit++) {
+            assertEquals(ranked(weights, "cafe", limit), t.withPrefix("cafe", limit));
+            assertEquals(ranked(weights, "", limit), t.withPrefix("", limit));
+        }
+    }
+
+    /** A trie written into a snapshot reads back answering every query the same. */
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        RadixTrie read = roundTrip(trie);
+        assertEquals(trie.size(), read.size());
+        for (String prefix : prefixes(words)) {
+            assertEquals(trie.withPrefix(prefix), read.withPrefix(prefix));
+            assertEquals(trie.weight(prefix), read.weight(prefix));
+            assertEquals(trie.withPrefix(prefix, RadixTrie.TOP_K),
+                    read.withPrefix(prefix, RadixTrie.TOP_K));
+        }
+        assertEquals(0, roundTrip(RadixTrie.EMPTY).size());
+    }
+
+    /** t written out with a snapshot writer and read back. */
+    static RadixTrie roundTrip(RadixTrie t) throws Exception {
+        File file = DIR.newFile();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw");
+             FileChannel ch = out.getChannel()) {
+            GraphSnapshot.Writer w = new GraphSnapshot.Writer(ch);
+            t.write(w);
+            w.flush();
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileChannel ch = in.getChannel()) {
+            return RadixTrie.read(GraphSnapshot.section(ch, 0, ch.size()));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class RouteCacheTest {
+    private static final int SIZE = 6;
+    /** Renames the first row of the grid, which makes a new version of the graph. */
+    private static final String RENAME = "<osmChange version=\"0.6\">\n"
+            + " <modify>\n"
+            + "  <way id=\"1\">\n"
+            + "   <nd ref=\"1000\"/><nd ref=\"1001\"/><nd ref=\"1002\"/>\n"
+            + "   <nd ref=\"1003\"/><nd ref=\"1004\"/><nd ref=\"1005\"/>\n"
+            + "   <tag k=\"highway\" v=\"residential\"/>\n"
+            + "   <tag k=\"name\" v=\"First Row\"/>\n"
+            + "  </way>\n"
+            + " </modify>\n"
+            + "</osmChange>\n";
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private GraphDB graph;
+    private double[] from, to;
+
+    @Before
+    public void setUp() throws Exception {
+        graph = TestMaps.load(dir.getRoot(), "grid.osm", TestMaps.grid(SIZE, 18));
+        from = point(TestMaps.corner(SIZE, 0, 0));
+        to = point(TestMaps.corner(SIZE, SIZE - 1, SIZE - 1));
+    }
+
+    private double[] point(long id) {
+        return new double[]{graph.lon(id), graph.lat(id)};
+    }
+
+    private long[] route(RouteCache cache, GraphDB g, Router.Metric metric) {
+        return cache.route(g, from[0], from[1], to[0], to[1], metric);
+    }
+
+    /** The second request for a route is answered from the cache, with the same route. */
+    @Test
+    public void testHitAfterMiss() {
+        RouteCache cache = new RouteCache(Router.Mode.A_STAR, false, 1000);
+        long[] first = route(cache, graph, Router.Metric.DISTANCE);
+        assertEquals(TestMaps.corner(SIZE, 0, 0), first[0]);
+        assertEquals(TestMaps.corner(SIZE, SIZE - 1, SIZE - 1), first[first.length - 1]);
+        assertEquals(0, cache.stats().hits());
+        assertEquals(1, cache.stats().misses());
+        assertSame(first, route(cache, graph, Router.Metric.DISTANCE));
+        assertEquals(1, cache.stats().hits());
+        assertEquals(first.length + 1, cache.stats().weight());
+
+        /* Another metric is another route. */
+        route(cache, graph, Router.Metric.TIME);
+        assertEquals(2, cache.stats().misses());
+        assertEquals(2, cache.stats().size());
+    }
+
+    /** Routes found in one version are not served for the next, and are dropped. */
+    @Test
+    public void testVersionBumpMisses() throws Exception {
+        RouteCache cache = new RouteCache(Router.Mode.A_STAR, true, 1000);
+        long[] first = route(cache, graph, Router.Metric.DISTANCE);
+        route(cache, graph, Router.Metric.DISTANCE);
+        assertEquals(1, cache.stats().hits());
+
+        GraphDB next = graph.apply(TestMaps.write(dir.newFolder(), "rename.osc", RENAME));
+        long[] again = route(cache, next, Router.Metric.DISTANCE);
+        assertNotSame(first, again);
+        assertArrayEquals(first, again);
+        assertEquals(1, cache.stats().hits());
+        assertEquals(2, cache.stats().misses());
+        assertEquals(1, cache.stats().size());
+        assertSame(again, route(cache, next, Router.Metric.DISTANCE));
+    }
+
+    @Test
+    public void testEmptyGraph() throws Exception {
+        GraphDB empty = TestMaps.load(dir.newFolder(), "empty.osm",
+                "<?xml version='1.0' encoding='UTF-8'?>\n<osm version=\"0.6\">\n</osm>\n");
+        RouteCache cache = new RouteCache(Router.Mode.A_STAR, false, 1000);
+        assertEquals(0, route(cache, empty, Router.Metric.DISTANCE).length);
+    }
+}
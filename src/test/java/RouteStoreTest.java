@@ -0,0 +1,114 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RouteStoreTest {
+    /** Time in milliseconds as the store sees it, moved by hand. */
+    private long now = 1_000_000;
+
+    @Test
+    public void testPutAndGet() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        store.put("a", Arrays.asList(1L, 2L, 3L));
+        assertArrayEquals(new long[]{1, 2, 3}, store.get("a"));
+        store.put("a", new long[]{4});
+        assertArrayEquals(new long[]{4}, store.get("a"));
+        assertEquals(0, store.get("b").length);
+        assertEquals(0, store.get(null).length);
+        store.remove("a");
+        assertEquals(0, store.get("a").length);
+        assertEquals(0, store.size());
+    }
+
+    /** Routes expire a TTL after they were last read or written, not after they were put. */
+    @Test
+    public void testExpiry() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        store.put("a", new long[]{1});
+        store.put("b", new long[]{2});
+        now += 800;
+        assertArrayEquals(new long[]{1}, store.get("a"));
+        now += 800;
+        assertArrayEquals(new long[]{1}, store.get("a"));
+        assertEquals(0, store.get("b").length);
+        assertEquals(1, store.size());
+        now += 1001;
+        assertEquals(0, store.get("a").length);
+        assertEquals(0, store.size());
+    }
+
+    /**
+     * Going over capacity drops expired routes, then the least recently used, down to 90% of
+     * capacity, so the next sweep is a tenth of the capacity of puts away.
+     */
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        RouteStore store = new RouteStore(100, 1_000_000, () -> now);
+        for (int i = 0; i < 100; i++) {
+            now++;
+            store.put("r" + i, new long[]{i});
+        }
+        /* Reading the first ten makes them the most recently used. */
+        for (int i = 0; i < 10; i++) {
+            now++;
+            store.get("r" + i);
+        }
+        now++;
+        store.put("new", new long[]{-1});
+        assertEquals(90, store.size());
+        Set<String> kept = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            if (store.get("r" + i).length > 0) {
+                kept.add("r" + i);
+            }
+        }
+        assertArrayEquals(new long[]{-1}, store.get("new"));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(kept.contains("r" + i));
+        }
+        for (int i = 10; i < 21; i++) {
+            assertFalse(kept.contains("r" + i));
+        }
+        for (int i = 21; i < 100; i++) {
+            assertTrue(kept.contains("r" + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            store.put("more" + i, new long[]{i});
+            assertEquals(91 + i, store.size());
+        }
+    }
+
+    /** Expired routes make room before any live one is dropped. */
+    @Test
+    public void testExpiredEvictedFirst() {
+        RouteStore store = new RouteStore(10, 1000, () -> now);
+        for (int i = 0; i < 5; i++) {
+            store.put("old" + i, new long[]{i});
+        }
+        now += 2000;
+        for (int i = 0; i < 6; i++) {
+            now++;
+            store.put("live" + i, new long[]{i});
+        }
+        assertEquals(6, store.size());
+        for (int i = 0; i < 6; i++) {
+            assertArrayEquals(new long[]{i}, store.get("live" + i));
+        }
+    }
+
+    @Test
+    public void testTokens() {
+        RouteStore store = new RouteStore(10, 1000);
+        Set<String> tokens = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            String token = store.newToken();
+            assertTrue(token.matches("[0-9a-zA-Z]{22}"));
+            tokens.add(token);
+        }
+        assertEquals(1000, tokens.size());
+    }
+}
@@ -0,0 +1,130 @@
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RouterAlternativesTest {
+    @ClassRule
+    public static final TemporaryFolder DIR = new TemporaryFolder();
+    private static final int SIZE = 12;
+    private static final int QUERIES = 200;
+    private static final int K = 4;
+    private static final double EPSILON = 1e-9;
+
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = TestMaps.load(DIR.getRoot(), "grid.osm", TestMaps.grid(SIZE, 19));
+    }
+
+    /**
+     * Check every set of alternatives between random vertices: the first is the shortest
+     * path, the rest follow cheapest first, and every route is a simple walk over real edges
+     * from start to destination, at most MAX_STRETCH times the first, sharing at most
+     * MAX_OVERLAP with the ones before it.
+     */
+    @Test
+    public void testAlternatives() {
+        int extra = 0;
+        for (Router.Metric metric : Router.Metric.values()) {
+            Random random = new Random(metric.ordinal());
+            for (int i = 0; i < QUERIES; i++) {
+                long s = graph.idAt(random.nextInt(graph.size()));
+                long t = graph.idAt(random.nextInt(graph.size()));
+                String query = "from " + s + " to " + t + " in " + metric;
+                List<Router.Alternative> routes = Router.alternatives(graph, graph.lon(s),
+                        graph.lat(s), graph.lon(t), graph.lat(t), metric, K);
+                assertFalse(query, routes.isEmpty());
+                assertTrue(query, routes.size() <= K);
+                List<Long> shortest = Router.shortestPath(graph, graph.lon(s), graph.lat(s),
+                        graph.lon(t), graph.lat(t), metric);
+                assertEquals("First route differs " + query, shortest,
+                        toList(routes.get(0).vertices));
+                assertEquals(query, 0, routes.get(0).overlap, 0);
+
+                double best = routes.get(0).length, previous = best;
+                Set<Set<Long>> used = new HashSet<>();
+                for (Router.Alternative route : routes) {
+                    long[] v = route.vertices;
+                    assertTrue("Routes out of order " + query,
+                            route.length >= previous - EPSILON);
+                    previous = route.length;
+                    assertEquals(query, s, v[0]);
+                    assertEquals(query, t, v[v.length - 1]);
+                    Set<Long> seen = new HashSet<>();
+                    double length = 0, shared = 0;
+                    for (int j = 0; j < v.length; j++) {
+                        assertTrue("Vertex " + v[j] + " visited twice " + query,
+                                seen.add(v[j]));
+                        if (j + 1 < v.length) {
+                            double cost = cost(v[j], v[j + 1], metric);
+                            length += cost;
+                            if (used.contains(edge(v[j], v[j + 1]))) {
+                                shared += cost;
+                            }
+                        }
+                    }
+                    assertEquals(query, length, route.length, EPSILON);
+                    assertTrue("Route too long " + query,
+                            route.length <= Router.MAX_STRETCH * best + EPSILON);
+                    assertTrue("Route overlaps too much " + query,
+                            route.overlap <= Router.MAX_OVERLAP + EPSILON);
+                    assertEquals(query, length == 0 ? 0 : shared / length, route.overlap,
+                            EPSILON);
+                    for (int j = 0; j + 1 < v.length; j++) {
+                        used.add(edge(v[j], v[j + 1]));
+                    }
+                }
+                extra += routes.size() - 1;
+            }
+        }
+        assertTrue("Only " + extra + " alternatives in the whole grid", extra > QUERIES);
+    }
+
+    @Test
+    public void testNoRoutesAskedFor() {
+        long s = TestMaps.corner(SIZE, 0, 0), t = TestMaps.corner(SIZE, SIZE - 1, SIZE - 1);
+        assertTrue(Router.alternatives(graph, graph.lon(s), graph.lat(s), graph.lon(t),
+                graph.lat(t), Router.Metric.DISTANCE, 0).isEmpty());
+        assertEquals(1, Router.alternatives(graph, graph.lon(s), graph.lat(s), graph.lon(t),
+                graph.lat(t), Router.Metric.DISTANCE, 1).size());
+    }
+
+    /** Cost in metric of the cheapest edge from v to w, failing if there is none. */
+    private static double cost(long v, long w, Router.Metric metric) {
+        GraphStore c = graph.store();
+        int a = graph.indexOf(v), b = graph.indexOf(w);
+        double best = Double.POSITIVE_INFINITY;
+        for (int e = c.begin(a); e < c.end(a); e++) {
+            if (c.target(e) == b) {
+                best = Math.min(best, metric.cost(c, e));
+            }
+        }
+        assertTrue("No edge from " + v + " to " + w, best < Double.POSITIVE_INFINITY);
+        return best;
+    }
+
+    private static Set<Long> edge(long v, long w) {
+        Set<Long> edge = new HashSet<>();
+        edge.add(v);
+        edge.add(w);
+        return edge;
+    }
+
+    private static List<Long> toList(long[] ids) {
+        List<Long> list = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+}
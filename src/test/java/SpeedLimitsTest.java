@@ -0,0 +1,87 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class SpeedLimitsTest {
+    private static final double MPH = 0.44704;
+    private static final double EPSILON = 1e-9;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    @Test
+    public void testUnits() {
+        assertEquals(25 * MPH, SpeedLimits.parse("25 mph"), EPSILON);
+        assertEquals(25 * MPH, SpeedLimits.parse("25mph"), EPSILON);
+        assertEquals(25 * MPH, SpeedLimits.parse(" 25 MPH "), EPSILON);
+        assertEquals(40 / 3.6, SpeedLimits.parse("40 km/h"), EPSILON);
+        assertEquals(40 / 3.6, SpeedLimits.parse("40 kmh"), EPSILON);
+        assertEquals(40 / 3.6, SpeedLimits.parse("40 kph"), EPSILON);
+        assertEquals(50 / 3.6, SpeedLimits.parse("50"), EPSILON);
+        assertEquals(7.5 / 3.6, SpeedLimits.parse("7.5"), EPSILON);
+        assertEquals(10 * 0.514444, SpeedLimits.parse("10 knots"), EPSILON);
+    }
+
+    /** Of several values the first counts. */
+    @Test
+    public void testSeveralValues() {
+        assertEquals(30 * MPH, SpeedLimits.parse("30 mph;40 mph"), EPSILON);
+        assertEquals(30 / 3.6, SpeedLimits.parse("30;40"), EPSILON);
+        assertEquals(30 / 3.6, SpeedLimits.parse(" 30 ; 40"), EPSILON);
+    }
+
+    @Test
+    public void testJunk() {
+        assertTrue(Double.isNaN(SpeedLimits.parse(null)));
+        assertTrue(Double.isNaN(SpeedLimits.parse("")));
+        assertTrue(Double.isNaN(SpeedLimits.parse("none")));
+        assertTrue(Double.isNaN(SpeedLimits.parse("signals")));
+        assertTrue(Double.isNaN(SpeedLimits.parse("US:urban")));
+        assertTrue(Double.isNaN(SpeedLimits.parse("25 furlongs")));
+        assertTrue(Double.isNaN(SpeedLimits.parse("1.2.3")));
+        assertTrue(Double.isNaN(SpeedLimits.parse(";30")));
+    }
+
+    /** Unreadable or implausible tags give way to the highway type, then to 25 mph. */
+    @Test
+    public void testDefaults() {
+        assertEquals(35 * MPH, SpeedLimits.metersPerSecond("35 mph", "residential"), EPSILON);
+        assertEquals(25 * MPH, SpeedLimits.metersPerSecond("none", "residential"), EPSILON);
+        assertEquals(65 * MPH, SpeedLimits.metersPerSecond(null, "motorway"), EPSILON);
+        assertEquals(65 * MPH, SpeedLimits.metersPerSecond("500 mph", "motorway"), EPSILON);
+        assertEquals(65 * MPH, SpeedLimits.metersPerSecond("0", "motorway"), EPSILON);
+        assertEquals(25 * MPH, SpeedLimits.metersPerSecond(null, "track"), EPSILON);
+        assertEquals(25 * MPH, SpeedLimits.metersPerSecond(null, null), EPSILON);
+    }
+
+    @Test
+    public void testMeters() {
+        assertEquals(0, SpeedLimits.meters(-122.27, 37.87, -122.27, 37.87), 0);
+        /* A degree of latitude is about 111.2 km anywhere. */
+        assertEquals(111_195, SpeedLimits.meters(-122.27, 37, -122.27, 38), 1);
+        assertEquals(SpeedLimits.meters(-122.27, 37.87, -122.25, 37.88),
+                SpeedLimits.meters(-122.25, 37.88, -122.27, 37.87), EPSILON);
+    }
+
+    /**
+     * The TIME heuristic never estimates more than the fastest travel time, on a grid of
+     * roads of different speeds.
+     */
+    @Test
+    public void testTravelTimeAdmissible() throws Exception {
+        int size = 10;
+        GraphDB graph = TestMaps.load(dir.getRoot(), "grid.osm", TestMaps.grid(size, 16));
+        GraphStore g = graph.store();
+        assertEquals(35 * MPH, graph.fastest(), 1e-6);
+        for (int t = 0; t < g.size(); t++) {
+            double[] time = TestMaps.distances(g, t, Router.Metric.TIME);
+            for (int v = 0; v < g.size(); v++) {
+                double h = Router.Metric.TIME.heuristic().estimate(graph, v, t);
+                assertTrue("Estimate " + h + "s from " + v + " to " + t + " over " + time[v]
+                        + "s", h <= time[v]);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Small synthetic OSM extracts for tests that must run without berkeley.osm, which is not
+ * checked in. The grid is a square of residential streets with slightly jittered corners, so
+ * that shortest paths are almost never tied, plus a few named places off the roads, several
+ * of them sharing a name, and a footway whose nodes are on no road.
+ */
+final class TestMaps {
+    /** Ids of the grid corners start here, row by row. */
+    static final long FIRST_CORNER = 1000;
+    /** Ids of the places start here. */
+    static final long FIRST_PLACE = 900_000;
+    /** Ids of the footway nodes start here. */
+    static final long FIRST_FOOTWAY_NODE = 800_000;
+    /** Id of the footway. */
+    static final long FOOTWAY = 700_000;
+    /** Names of the places, in file order; several of them repeat. */
+    static final String[] PLACES = {"Top Dog", "Peet's Coffee", "Top Dog", "Topsy's",
+        "Peet's Coffee", "Cafe Strada", "Top Dog", "Toppings", "Caffe Mediterraneum"};
+
+    private TestMaps() {
+    }
+
+    /** Id of the corner at row r and column c of the grid. */
+    static long corner(int size, int r, int c) {
+        return FIRST_CORNER + (long) r * size + c;
+    }
+
+    /** OSM XML of a size by size grid, jittered by the given seed. */
+    static String grid(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version='1.0' encoding='UTF-8'?>\n<osm version=\"0.6\">\n");
+        for (int r = 0; r < size; r++) {
+            for (int c = 0; c < size; c++) {
+                node(xml, corner(size, r, c), 37.87 + r * 0.001 + random.nextDouble() * 2e-4,
+                        -122.27 + c * 0.001 + random.nextDouble() * 2e-4, null);
+            }
+        }
+        for (int i = 0; i < PLACES.length; i++) {
+            node(xml, FIRST_PLACE + i, 37.8705 + i * 0.0003, -122.2695 + i * 0.0002, PLACES[i]);
+        }
+        for (int i = 0; i < 3; i++) {
+            node(xml, FIRST_FOOTWAY_NODE + i, 37.8705 + 0.001 * i, -122.2695, null);
+        }
+        long way = 1;
+        for (int r = 0; r < size; r++) {
+            long[] refs = new long[size];
+            for (int c = 0; c < size; c++) {
+                refs[c] = corner(size, r, c);
+            }
+            way(xml, way++, refs, "residential", r % 3 == 0 ? "35 mph" : null, "Row " + r);
+        }
+        for (int c = 0; c < size; c++) {
+            long[] refs = new long[size];
+            for (int r = 0; r < size; r++) {
+                refs[r] = corner(size, r, c);
+            }
+            way(xml, way++, refs, c % 2 == 0 ? "tertiary" : "residential", null, "Column " + c);
+        }
+        way(xml, FOOTWAY, new long[]{corner(size, 0, 0), FIRST_FOOTWAY_NODE,
+            FIRST_FOOTWAY_NODE + 1, FIRST_FOOTWAY_NODE + 2, corner(size, 2, 0)},
+                "footway", null, "Shortcut");
+        return xml.append("</osm>\n").toString();
+    }
+
+    static void node(StringBuilder xml, long id, double lat, double lon, String name) {
+        xml.append(String.format("  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"", id, lat, lon));
+        if (name == null) {
+            xml.append("/>\n");
+        } else {
+            xml.append(">\n    <tag k=\"name\" v=\"").append(name).append("\"/>\n  </node>\n");
+        }
+    }
+
+    static void way(StringBuilder xml, long id, long[] refs, String highway, String maxspeed,
+                    String name) {
+        xml.append("  <way id=\"").append(id).append("\">\n");
+        for (long ref : refs) {
+            xml.append("    <nd ref=\"").append(ref).append("\"/>\n");
+        }
+        xml.append("    <tag k=\"highway\" v=\"").append(highway).append("\"/>\n");
+        if (maxspeed != null) {
+            xml.append("    <tag k=\"maxspeed\" v=\"").append(maxspeed).append("\"/>\n");
+        }
+        if (name != null) {
+            xml.append("    <tag k=\"name\" v=\"").append(name).append("\"/>\n");
+        }
+        xml.append("  </way>\n");
+    }
+
+    /** Write xml to the file named name in dir. */
+    static File write(File dir, String name, String xml) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Cost in metric of the shortest path from vertex s to every vertex of g, or infinity
+     * where there is none, by a textbook Dijkstra for checking the routers against.
+     */
+    static double[] distances(GraphStore g, int s, Router.Metric metric) {
+        double[] dist = new double[g.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[s] = 0;
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        queue.add(new double[]{0, s});
+        while (!queue.isEmpty()) {
+            double[] top = queue.poll();
+            int v = (int) top[1];
+            if (top[0] > dist[v]) {
+                continue;
+            }
+            for (int e = g.begin(v); e < g.end(v); e++) {
+                double d = dist[v] + metric.cost(g, e);
+                if (d < dist[g.target(e)]) {
+                    dist[g.target(e)] = d;
+                    queue.add(new double[]{d, g.target(e)});
+                }
+            }
+        }
+        return dist;
+    }
+
+    /** The graph of xml, written to the file named name in dir and loaded from there. */
+    static GraphDB load(File dir, String name, String xml) throws IOException {
+        return new GraphDB(write(dir, name, xml).getPath());
+    }
+}